@@ -0,0 +1,168 @@
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queues concurrent bookings and hands them to one thread, which books them a batch at a
+ * time, each batch in a single transaction with a single commit.
+ *
+ * A batch is whatever has queued up while the previous one was being booked, up to
+ * {@code maxBatch}; at low load a booking waits for nothing. With a wait set, the thread
+ * also waits that long after the first booking of a batch for others to join it, which adds
+ * at most that much latency to a booking. Every booking still gets its own outcome.
+ */
+public class BookingBatcher
+{
+  /**
+   * Books a batch, completing every request of it.
+   */
+  public interface Booker
+  {
+    void book(List<Request> batch);
+  }
+
+  /**
+   * One booking waiting for its outcome.
+   */
+  public static final class Request
+  {
+    final String username;
+    final Query.Itinerary itinerary;
+    private final CompletableFuture<Integer> outcome = new CompletableFuture<>();
+
+    Request(String username, Query.Itinerary itinerary)
+    {
+      this.username = username;
+      this.itinerary = itinerary;
+    }
+
+    /**
+     * @param rid the reservation ID, or {@link FlightStore#SAME_DAY} or {@link FlightStore#NO_SEATS}
+     */
+    void complete(int rid)
+    {
+      outcome.complete(rid);
+    }
+
+    void fail(SQLException e)
+    {
+      outcome.completeExceptionally(e);
+    }
+  }
+
+  // queued by close(): the thread stops once the bookings before it are booked
+  private static final Request CLOSE = new Request(null, null);
+
+  private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+  private final int maxBatch;
+  private final long waitNanos;
+  private final Booker booker;
+  private final Thread thread;
+  private volatile boolean closed;
+
+  /**
+   * @param maxBatch the most bookings in one transaction
+   * @param waitMillis how long a batch waits for more bookings after its first one; 0 waits for none
+   */
+  public BookingBatcher(int maxBatch, long waitMillis, Booker booker)
+  {
+    if (maxBatch < 1)
+      throw new IllegalArgumentException("batch size must be at least 1: " + maxBatch);
+    this.maxBatch = maxBatch;
+    this.waitNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+    this.booker = booker;
+    this.thread = new Thread(this::run, "booking-batcher");
+    thread.setDaemon(true);
+  }
+
+  public void start()
+  {
+    thread.start();
+  }
+
+  /**
+   * Queues a booking and waits for its batch to be booked.
+   *
+   * @return the reservation ID, or {@link FlightStore#SAME_DAY} or {@link FlightStore#NO_SEATS}
+   */
+  public int book(String username, Query.Itinerary it) throws SQLException
+  {
+    Request r = new Request(username, it);
+    if (closed)
+      throw new SQLException("Booking batcher is closed");
+    queue.add(r);
+    if (closed && !thread.isAlive()) // close() may have failed the queue before the add
+      failQueued();
+    try {
+      return r.outcome.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a booking", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof SQLException cause)
+        throw cause;
+      throw new SQLException("Booking failed", e.getCause());
+    }
+  }
+
+  private void run()
+  {
+    List<Request> batch = new ArrayList<>(maxBatch);
+    boolean stop = false;
+    while (!stop) {
+      try {
+        batch.add(queue.take());
+        queue.drainTo(batch, maxBatch - batch.size());
+        long deadline = System.nanoTime() + waitNanos;
+        while (batch.size() < maxBatch) {
+          long left = deadline - System.nanoTime();
+          Request next = left > 0 ? queue.poll(left, TimeUnit.NANOSECONDS) : null;
+          if (next == null)
+            break;
+          batch.add(next);
+          queue.drainTo(batch, maxBatch - batch.size());
+        }
+      } catch (InterruptedException e) {
+        break;
+      }
+      stop = batch.remove(CLOSE);
+      try {
+        if (!batch.isEmpty())
+          booker.book(batch);
+      } catch (RuntimeException e) {
+        e.printStackTrace();
+      }
+      // a booker that left requests undecided must not leave their callers waiting
+      for (Request r : batch)
+        r.fail(new SQLException("Booking was not decided"));
+      batch.clear();
+    }
+    for (Request r : batch)
+      r.fail(new SQLException("Booking batcher is closed"));
+    failQueued();
+  }
+
+  private void failQueued()
+  {
+    Request r;
+    while ((r = queue.poll()) != null)
+      r.fail(new SQLException("Booking batcher is closed"));
+  }
+
+  /**
+   * Books what is already queued, then stops the thread; later bookings fail.
+   */
+  public void close() throws InterruptedException
+  {
+    closed = true;
+    queue.add(CLOSE);
+    if (thread.isAlive())
+      thread.join();
+    failQueued();
+  }
+}
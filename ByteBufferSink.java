@@ -0,0 +1,132 @@
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An {@link Appendable} that encodes text as UTF-8 straight into a {@link ByteBuffer}.
+ *
+ * With a blocking channel, a full buffer is written to the channel and reused, so a response of any
+ * size streams through a buffer of fixed size; call {@link #flush()} at the end to write the
+ * rest. Without one, the caller drains the buffer and a response that does not fit throws
+ * {@link BufferOverflowException}.
+ */
+public class ByteBufferSink implements Appendable
+{
+  private final ByteBuffer buffer;
+  private final WritableByteChannel channel;
+  private char highSurrogate;
+
+  public ByteBufferSink(ByteBuffer buffer)
+  {
+    this(buffer, null);
+  }
+
+  /**
+   * @param buffer at least 4 bytes, in write mode
+   */
+  public ByteBufferSink(ByteBuffer buffer, WritableByteChannel channel)
+  {
+    if (buffer.capacity() < 4)
+      throw new IllegalArgumentException("buffer too small for a UTF-8 code point: " + buffer.capacity());
+    this.buffer = buffer;
+    this.channel = channel;
+  }
+
+  public ByteBuffer buffer()
+  {
+    return buffer;
+  }
+
+  @Override
+  public ByteBufferSink append(CharSequence s) throws IOException
+  {
+    if (s == null)
+      s = "null";
+    return append(s, 0, s.length());
+  }
+
+  @Override
+  public ByteBufferSink append(CharSequence s, int start, int end) throws IOException
+  {
+    if (s == null)
+      s = "null";
+    for (int i = start; i < end; i++)
+      append(s.charAt(i));
+    return this;
+  }
+
+  @Override
+  public ByteBufferSink append(char c) throws IOException
+  {
+    if (highSurrogate != 0) {
+      char high = highSurrogate;
+      highSurrogate = 0;
+      if (Character.isLowSurrogate(c)) {
+        int cp = Character.toCodePoint(high, c);
+        room(4);
+        buffer.put((byte) (0xF0 | (cp >> 18)));
+        buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+        buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+        buffer.put((byte) (0x80 | (cp & 0x3F)));
+        return this;
+      }
+      replacement();
+    }
+    if (c < 0x80) {
+      room(1);
+      buffer.put((byte) c);
+    } else if (c < 0x800) {
+      room(2);
+      buffer.put((byte) (0xC0 | (c >> 6)));
+      buffer.put((byte) (0x80 | (c & 0x3F)));
+    } else if (Character.isHighSurrogate(c)) {
+      highSurrogate = c;
+    } else if (Character.isLowSurrogate(c)) {
+      replacement();
+    } else {
+      room(3);
+      buffer.put((byte) (0xE0 | (c >> 12)));
+      buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+      buffer.put((byte) (0x80 | (c & 0x3F)));
+    }
+    return this;
+  }
+
+  /* an unpaired surrogate is written as '?', as String.getBytes does */
+  private void replacement() throws IOException
+  {
+    room(1);
+    buffer.put((byte) '?');
+  }
+
+  private void room(int bytes) throws IOException
+  {
+    if (buffer.remaining() >= bytes)
+      return;
+    if (channel == null)
+      throw new BufferOverflowException();
+    drain();
+  }
+
+  private void drain() throws IOException
+  {
+    buffer.flip();
+    while (buffer.hasRemaining())
+      channel.write(buffer);
+    buffer.clear();
+  }
+
+  /**
+   * Writes what is buffered to the channel. Without a channel, only ends a dangling surrogate.
+   */
+  public void flush() throws IOException
+  {
+    if (highSurrogate != 0) {
+      highSurrogate = 0;
+      replacement();
+    }
+    if (channel != null)
+      drain();
+  }
+}
@@ -0,0 +1,113 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * Runs commands by name from a table of registered handlers.
+ *
+ * Each entry gives the number of tokens the command takes, counting its name, and the
+ * response for a command with any other number; handlers decode their arguments from the
+ * {@link CommandLine} and report bad ones by throwing {@link CommandException}, whose
+ * message becomes the response. Lookups compare the name in place, so dispatch itself
+ * allocates nothing. Register everything before dispatching from several threads.
+ */
+public class CommandDispatcher
+{
+  public static final int ANY = -1;
+
+  public interface Handler
+  {
+    String run(Query q, Session session, CommandLine command) throws CommandException;
+  }
+
+  /**
+   * A handler that writes its response to {@code out} instead of returning it, for
+   * responses worth streaming.
+   */
+  public interface StreamingHandler
+  {
+    void run(Query q, Session session, CommandLine command, Appendable out) throws CommandException, IOException;
+  }
+
+  private static final class Entry
+  {
+    final String name;
+    final int tokens;
+    final String usage;
+    final StreamingHandler handler;
+
+    Entry(String name, int tokens, String usage, StreamingHandler handler)
+    {
+      this.name = name;
+      this.tokens = tokens;
+      this.usage = usage;
+      this.handler = handler;
+    }
+  }
+
+  private Entry[] entries = new Entry[0];
+
+  /**
+   * @param tokens the number of tokens including the name, or {@link #ANY}
+   * @param usage the response when the number of tokens is wrong
+   * @return this
+   */
+  public CommandDispatcher register(String name, int tokens, String usage, Handler handler)
+  {
+    return registerStreaming(name, tokens, usage,
+                             (q, session, command, out) -> out.append(handler.run(q, session, command)));
+  }
+
+  /**
+   * Like {@link #register}, for a handler that writes its response itself.
+   */
+  public CommandDispatcher registerStreaming(String name, int tokens, String usage, StreamingHandler handler)
+  {
+    for (Entry e : entries)
+      if (e.name.equals(name))
+        throw new IllegalArgumentException("command already registered: " + name);
+    entries = Arrays.copyOf(entries, entries.length + 1);
+    entries[entries.length - 1] = new Entry(name, tokens, usage, handler);
+    return this;
+  }
+
+  public String dispatch(Query q, Session session, CommandLine command)
+  {
+    StringBuilder sb = new StringBuilder();
+    try {
+      dispatch(q, session, command, sb);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // StringBuilder does not throw
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Runs the command, writing its response to {@code out}. A handler that fails with a
+   * {@link CommandException} has not written anything yet.
+   *
+   * @throws IOException only if {@code out} does
+   */
+  public void dispatch(Query q, Session session, CommandLine command, Appendable out) throws IOException
+  {
+    if (command.size() == 0) {
+      out.append("Please enter a command");
+      return;
+    }
+    for (Entry e : entries) {
+      if (!command.is(0, e.name))
+        continue;
+      if (e.tokens != ANY && command.size() != e.tokens) {
+        out.append(e.usage);
+        return;
+      }
+      try {
+        e.handler.run(q, session, command, out);
+      } catch (CommandException x) {
+        out.append(x.getMessage());
+      }
+      return;
+    }
+    out.append("Error: unrecognized command '").append(command.get(0)).append("'");
+  }
+}
@@ -0,0 +1,16 @@
+/**
+ * A command that cannot be run as given. The message is the response for the client.
+ *
+ * Carries no stack trace: it is an expected outcome of bad input, not a bug.
+ */
+public class CommandException extends Exception
+{
+  private static final long serialVersionUID = 1L;
+
+  static final CommandException NOT_AN_INTEGER = new CommandException("Failed to parse integer");
+
+  public CommandException(String response)
+  {
+    super(response, null, false, false);
+  }
+}
@@ -0,0 +1,152 @@
+import java.util.Arrays;
+
+/**
+ * One command split into tokens, in place.
+ *
+ * Tokens are separated by whitespace; a token starting with a double quote runs to the next
+ * double quote and does not include the quotes, as in {@code search "Seattle WA" "Boston MA" 1 1 3}.
+ * Only the bounds of the tokens are recorded, so parsing allocates nothing: a token becomes a
+ * String only when {@link #get} asks for it, and numbers are decoded straight from the input.
+ * An instance can be reused for one command after another, by one thread at a time.
+ */
+public final class CommandLine
+{
+  private CharSequence input = "";
+  private int[] bounds = new int[16]; // start and end of every token
+  private int size;
+
+  /**
+   * Splits {@code line} into tokens, replacing the previous command.
+   *
+   * @return this
+   */
+  public CommandLine parse(CharSequence line)
+  {
+    input = line;
+    size = 0;
+    int n = line.length();
+    int i = 0;
+    while (true) {
+      while (i < n && isWhitespace(line.charAt(i)))
+        i++;
+      if (i >= n)
+        break;
+      if (line.charAt(i) == '"') {
+        int close = indexOfQuote(line, i + 1, n);
+        if (close >= 0) {
+          add(i + 1, close);
+          i = close + 1;
+          continue;
+        }
+      }
+      int start = i;
+      while (i < n && !isWhitespace(line.charAt(i)))
+        i++;
+      add(start, i);
+    }
+    return this;
+  }
+
+  private static int indexOfQuote(CharSequence line, int from, int n)
+  {
+    for (int i = from; i < n; i++)
+      if (line.charAt(i) == '"')
+        return i;
+    return -1;
+  }
+
+  /* the characters of \s in java.util.regex */
+  private static boolean isWhitespace(char c)
+  {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+
+  private void add(int start, int end)
+  {
+    if (2 * size + 2 > bounds.length)
+      bounds = Arrays.copyOf(bounds, 2 * bounds.length);
+    bounds[2 * size] = start;
+    bounds[2 * size + 1] = end;
+    size++;
+  }
+
+  /**
+   * @return the number of tokens
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  public String get(int i)
+  {
+    checkIndex(i);
+    return input.subSequence(bounds[2 * i], bounds[2 * i + 1]).toString();
+  }
+
+  /**
+   * @return true if token i is exactly {@code s}
+   */
+  public boolean is(int i, String s)
+  {
+    checkIndex(i);
+    int start = bounds[2 * i];
+    int length = bounds[2 * i + 1] - start;
+    if (length != s.length())
+      return false;
+    for (int k = 0; k < length; k++)
+      if (input.charAt(start + k) != s.charAt(k))
+        return false;
+    return true;
+  }
+
+  /**
+   * Decodes token i as a decimal int, with an optional sign.
+   *
+   * @throws CommandException if the token is not an int
+   */
+  public int getInt(int i) throws CommandException
+  {
+    checkIndex(i);
+    int k = bounds[2 * i];
+    int end = bounds[2 * i + 1];
+    boolean negative = false;
+    if (k < end && (input.charAt(k) == '-' || input.charAt(k) == '+')) {
+      negative = input.charAt(k) == '-';
+      k++;
+    }
+    if (k == end)
+      throw CommandException.NOT_AN_INTEGER;
+    long value = 0;
+    for (; k < end; k++) {
+      char c = input.charAt(k);
+      if (c < '0' || c > '9')
+        throw CommandException.NOT_AN_INTEGER;
+      value = value * 10 + (c - '0');
+      if (value > (long) Integer.MAX_VALUE + 1)
+        throw CommandException.NOT_AN_INTEGER;
+    }
+    if (negative)
+      value = -value;
+    if (value > Integer.MAX_VALUE)
+      throw CommandException.NOT_AN_INTEGER;
+    return (int) value;
+  }
+
+  /**
+   * @return the tokens as Strings
+   */
+  public String[] toArray()
+  {
+    String[] tokens = new String[size];
+    for (int i = 0; i < size; i++)
+      tokens[i] = get(i);
+    return tokens;
+  }
+
+  private void checkIndex(int i)
+  {
+    if (i < 0 || i >= size)
+      throw new IndexOutOfBoundsException("token " + i + " of " + size);
+  }
+}
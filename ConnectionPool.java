@@ -0,0 +1,196 @@
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of {@link PooledConnection}s shared by all sessions.
+ *
+ * All connections are opened up front; a transaction borrows one for its whole
+ * duration and waits up to {@code timeoutMillis} when every connection is busy. A
+ * connection that cannot be rolled back when it is returned is closed and replaced by a
+ * new one, prepared like the others.
+ */
+public class ConnectionPool
+{
+  private final List<PooledConnection> all = new CopyOnWriteArrayList<>();
+  private final BlockingQueue<PooledConnection> idle;
+  private final long timeoutMillis;
+  private final String url;
+  private final String user;
+  private final String password;
+
+  // how the connections were prepared, for their replacements; prepared is false until they are
+  private volatile boolean prepared;
+  private volatile String readIsolation;
+  private volatile StatementTracer tracer;
+  // connections closed and not replaced yet, because opening a new one failed
+  private final AtomicInteger missing = new AtomicInteger();
+
+  public ConnectionPool(String url, String user, String password, int size, long timeoutMillis)
+    throws SQLException
+  {
+    if (size < 1)
+      throw new IllegalArgumentException("pool size must be at least 1: " + size);
+    this.idle = new ArrayBlockingQueue<>(size);
+    this.timeoutMillis = timeoutMillis;
+    this.url = url;
+    this.user = user;
+    this.password = password;
+    try {
+      for (int i = 0; i < size; i++) {
+        PooledConnection c = new PooledConnection(DriverManager.getConnection(url, user, password));
+        all.add(c);
+        idle.add(c);
+      }
+    } catch (SQLException e) {
+      closeAll();
+      throw e;
+    }
+  }
+
+  /**
+   * prepares the canned statements on every connection of the pool.
+   */
+  public void prepareStatements() throws SQLException
+  {
+    prepareStatements(JdbcFlightStore.DEFAULT_READ_ISOLATION);
+  }
+
+  /**
+   * @param readIsolation the isolation level read-only transactions begin with
+   */
+  public void prepareStatements(String readIsolation) throws SQLException
+  {
+    prepareStatements(readIsolation, null);
+  }
+
+  /**
+   * @param tracer what traces the statements, or null to leave them untraced
+   */
+  public void prepareStatements(String readIsolation, StatementTracer tracer) throws SQLException
+  {
+    this.readIsolation = readIsolation;
+    this.tracer = tracer;
+    prepared = true;
+    for (PooledConnection c : all)
+      c.prepareStatements(readIsolation, tracer);
+  }
+
+  /**
+   * Opens a connection with the same settings as the pooled ones but outside the pool,
+   * for a component that needs one of its own. The caller prepares and closes it.
+   */
+  public PooledConnection openDedicated() throws SQLException
+  {
+    return new PooledConnection(DriverManager.getConnection(url, user, password));
+  }
+
+  public int size()
+  {
+    return all.size();
+  }
+
+  /**
+   * Borrows a connection, blocking while all of them are in use.
+   *
+   * @throws SQLException if no connection became available within the pool timeout
+   */
+  public PooledConnection acquire() throws SQLException
+  {
+    if (missing.get() > 0)
+      replaceMissing();
+    try {
+      PooledConnection c = idle.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+      if (c == null)
+        throw new SQLException("Timed out waiting for a pooled connection");
+      return c;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted waiting for a pooled connection", e);
+    }
+  }
+
+  /**
+   * Returns a borrowed connection to the pool. A transaction that was left
+   * open by the borrower is rolled back first so the next borrower starts clean;
+   * if that fails, the connection may still hold the transaction and its locks, so
+   * it is closed and replaced instead. Passing null is a no-op.
+   */
+  public void release(PooledConnection c)
+  {
+    if (c == null)
+      return;
+    try {
+      if (c.inTransaction())
+        c.rollbackTransaction();
+    } catch (SQLException e) {
+      e.printStackTrace();
+      all.remove(c);
+      try {
+        c.close();
+      } catch (SQLException closing) {
+        e.addSuppressed(closing);
+      }
+      missing.incrementAndGet();
+      replaceMissing();
+      return;
+    }
+    idle.offer(c);
+  }
+
+  /* opens a connection for each one closed, until one fails to open; acquire() tries again later */
+  private void replaceMissing()
+  {
+    while (true) {
+      int n = missing.get();
+      if (n == 0)
+        return;
+      if (!missing.compareAndSet(n, n - 1))
+        continue;
+      PooledConnection c = null;
+      try {
+        c = new PooledConnection(DriverManager.getConnection(url, user, password));
+        if (prepared)
+          c.prepareStatements(readIsolation, tracer);
+      } catch (SQLException e) {
+        if (c != null) {
+          // opened but not prepared: close it rather than leak it on every retry
+          try {
+            c.close();
+          } catch (SQLException closing) {
+            e.addSuppressed(closing);
+          }
+        }
+        missing.incrementAndGet();
+        e.printStackTrace();
+        return;
+      }
+      all.add(c);
+      idle.offer(c);
+    }
+  }
+
+  public void close()
+  {
+    closeAll();
+  }
+
+  /* not close() itself, which the constructor must not call while a subclass may be unconstructed */
+  private void closeAll()
+  {
+    for (PooledConnection c : all) {
+      try {
+        c.close();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+    all.clear();
+    idle.clear();
+  }
+}
@@ -0,0 +1,265 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads rows of Flights from CSV in place, out of a mapped region of the file.
+ *
+ * A row is one line of the 18 Flights columns in table order, UTF-8, separated by commas.
+ * A field may be quoted, with {@code ""} standing for a quote, but no field may span lines.
+ * {@link #next()} only records where each field starts and ends; numbers are decoded
+ * straight from the bytes and a field becomes a String only when {@link #getString} asks.
+ * An empty field is null.
+ */
+public final class FlightCsv
+{
+  static final int COLUMNS = 18;
+
+  private final ByteBuffer in;
+  private final int[] start = new int[COLUMNS];
+  private final int[] end = new int[COLUMNS];
+  private final long offset;
+  private int row; // where the current row starts in the region
+  private byte[] scratch = new byte[64];
+
+  /**
+   * @param region whole lines of the file, from its position to its limit
+   * @param offset where index 0 of the region is in the file, for error messages
+   */
+  public FlightCsv(ByteBuffer region, long offset)
+  {
+    this.in = region;
+    this.offset = offset;
+  }
+
+  /**
+   * Splits a file into regions of about {@code chunkBytes} each that start at a line.
+   *
+   * @return the offset of every region start, followed by the file size
+   */
+  public static long[] split(FileChannel file, long chunkBytes) throws IOException
+  {
+    long size = file.size();
+    List<Long> bounds = new ArrayList<>();
+    bounds.add(0L);
+    ByteBuffer probe = ByteBuffer.allocate(4096);
+    long at = chunkBytes;
+    while (at < size) {
+      // the next region starts after the first newline at or past `at`
+      long newline = -1;
+      for (long pos = at; newline < 0 && pos < size; pos += probe.limit()) {
+        probe.clear();
+        file.read(probe, pos);
+        probe.flip();
+        for (int i = 0; i < probe.limit(); i++) {
+          if (probe.get(i) == '\n') {
+            newline = pos + i;
+            break;
+          }
+        }
+      }
+      if (newline < 0 || newline + 1 >= size)
+        break;
+      bounds.add(newline + 1);
+      at = newline + 1 + chunkBytes;
+    }
+    bounds.add(size);
+    long[] result = new long[bounds.size()];
+    for (int i = 0; i < result.length; i++)
+      result[i] = bounds.get(i);
+    return result;
+  }
+
+  /**
+   * Skips the first line if it is a header rather than a row: its first field is not a number.
+   * Call it before the first {@link #next()} on the region that starts the file.
+   */
+  public void skipHeader()
+  {
+    int p = in.position();
+    int limit = in.limit();
+    if (p < limit && in.get(p) == '"')
+      p++;
+    if (p < limit && in.get(p) == '-')
+      p++;
+    if (p < limit && in.get(p) >= '0' && in.get(p) <= '9')
+      return;
+    while (p < limit && in.get(p) != '\n')
+      p++;
+    in.position(Math.min(p + 1, limit));
+  }
+
+  /**
+   * Moves to the next row, skipping blank lines.
+   *
+   * @return false at the end of the region
+   * @throws IllegalArgumentException if the row does not have 18 fields
+   */
+  public boolean next()
+  {
+    int limit = in.limit();
+    while (true) {
+      int p = in.position();
+      if (p >= limit)
+        return false;
+      row = p;
+      int eol = p;
+      while (eol < limit && in.get(eol) != '\n')
+        eol++;
+      in.position(eol < limit ? eol + 1 : eol);
+      if (eol > p && in.get(eol - 1) == '\r')
+        eol--;
+      if (eol == p)
+        continue;
+      fields(p, eol);
+      return true;
+    }
+  }
+
+  private void fields(int p, int eol)
+  {
+    int column = 0;
+    while (true) {
+      if (column == COLUMNS)
+        throw malformed("more than " + COLUMNS + " fields");
+      int fieldEnd;
+      if (p < eol && in.get(p) == '"') {
+        // a quoted field runs to the quote that is not doubled
+        fieldEnd = p + 1;
+        while (true) {
+          if (fieldEnd >= eol)
+            throw malformed("unterminated quote in field " + (column + 1));
+          if (in.get(fieldEnd) == '"') {
+            if (fieldEnd + 1 < eol && in.get(fieldEnd + 1) == '"') {
+              fieldEnd += 2;
+              continue;
+            }
+            fieldEnd++;
+            break;
+          }
+          fieldEnd++;
+        }
+        if (fieldEnd < eol && in.get(fieldEnd) != ',')
+          throw malformed("text after the closing quote of field " + (column + 1));
+      } else {
+        fieldEnd = p;
+        while (fieldEnd < eol && in.get(fieldEnd) != ',')
+          fieldEnd++;
+      }
+      start[column] = p;
+      end[column] = fieldEnd;
+      column++;
+      if (fieldEnd >= eol)
+        break;
+      p = fieldEnd + 1;
+    }
+    if (column != COLUMNS)
+      throw malformed(column + " fields instead of " + COLUMNS);
+  }
+
+  private IllegalArgumentException malformed(String problem)
+  {
+    return new IllegalArgumentException("row at byte " + (offset + row) + ": " + problem);
+  }
+
+  /**
+   * @param column 0-based, in the order of Flights
+   */
+  public boolean isNull(int column)
+  {
+    return start[column] == end[column];
+  }
+
+  /**
+   * Decodes a field as a decimal int, with an optional sign; null is 0.
+   *
+   * @throws IllegalArgumentException if it is not an int
+   */
+  public int getInt(int column)
+  {
+    int p = start[column];
+    int e = end[column];
+    if (p == e)
+      return 0;
+    if (in.get(p) == '"') {
+      p++;
+      e--;
+    }
+    boolean negative = false;
+    if (p < e && (in.get(p) == '-' || in.get(p) == '+')) {
+      negative = in.get(p) == '-';
+      p++;
+    }
+    if (p == e)
+      throw malformed("field " + (column + 1) + " is not a number");
+    long value = 0;
+    for (; p < e; p++) {
+      int digit = in.get(p) - '0';
+      if (digit < 0 || digit > 9)
+        throw malformed("field " + (column + 1) + " is not a number");
+      value = value * 10 + digit;
+      if (value > (long) Integer.MAX_VALUE + 1)
+        throw malformed("field " + (column + 1) + " is out of range");
+    }
+    if (negative)
+      value = -value;
+    if (value > Integer.MAX_VALUE)
+      throw malformed("field " + (column + 1) + " is out of range");
+    return (int) value;
+  }
+
+  /**
+   * @return the field as text without its quotes, or null if it is empty
+   */
+  public String getString(int column)
+  {
+    int p = start[column];
+    int e = end[column];
+    if (p == e)
+      return null;
+    boolean quoted = in.get(p) == '"';
+    if (quoted) {
+      p++;
+      e--;
+    }
+    if (scratch.length < e - p)
+      scratch = new byte[Math.max(e - p, 2 * scratch.length)];
+    int n = 0;
+    for (; p < e; p++) {
+      byte b = in.get(p);
+      scratch[n++] = b;
+      if (quoted && b == '"')
+        p++; // the second quote of ""
+    }
+    return new String(scratch, 0, n, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @return the current row as a Flight, as {@code JdbcFlightStore.parser} reads it from Flights
+   */
+  public Query.Flight flight()
+  {
+    Query.Flight flight = new Query.Flight();
+    flight.fid = getInt(0);
+    flight.dayOfMonth = getInt(2);
+    flight.carrier = NameDictionary.CARRIERS.code(getString(4));
+    flight.flightNum = getString(5);
+    flight.origin = NameDictionary.CITIES.code(getString(6));
+    flight.dest = NameDictionary.CITIES.code(getString(8));
+    flight.time = getInt(14);
+    flight.capacity = getInt(16);
+    flight.price = getInt(17);
+    return flight;
+  }
+
+  /**
+   * @return true if the current row is a canceled flight
+   */
+  public boolean canceled()
+  {
+    return getInt(13) == 1;
+  }
+}
@@ -0,0 +1,249 @@
+import java.io.FileInputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulk-loads Flights from a CSV file (see {@link FlightCsv} for the format).
+ *
+ * The file is split into regions that start at a line; each loader thread maps one region
+ * at a time, parses it in place and inserts its rows through its own connection, in JDBC
+ * batches that are committed one at a time. Progress and rows per second are printed every
+ * second. A batch that fails stops the load; the batches committed before it stay, so
+ * rerun with {@code -replace} after fixing the file.
+ *
+ * Once every row is in, Capacities is rebuilt in one transaction from Flights and
+ * Reservations, so it counts the seats left on the new flights. A running service keeps
+ * its own copy of flights and seats when route_index or seat_inventory is set, and must be
+ * restarted to see the new data.
+ *
+ * usage: java FlightLoader [-config file] [-batch n] [-threads n] [-replace] file.csv
+ */
+public class FlightLoader
+{
+  static final String INSERT_FLIGHT = "INSERT INTO Flights VALUES (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)";
+
+  // the columns of Flights that hold text; every other one is an int
+  private static final boolean[] TEXT = new boolean[FlightCsv.COLUMNS];
+  static {
+    TEXT[4] = true; // carrier_id
+    TEXT[6] = true; // origin_city
+    TEXT[7] = true; // origin_state
+    TEXT[8] = true; // dest_city
+    TEXT[9] = true; // dest_state
+  }
+
+  // regions are small enough for every thread to get a few, and never too large to map
+  private static final long MIN_REGION_BYTES = 1L << 20;
+  private static final long MAX_REGION_BYTES = 64L << 20;
+
+  private String configFile = FlightService.DBCONFIG_FILENAME;
+  private String csvFile;
+  private int batchSize = -1;
+  private int threads = -1;
+  private boolean replace;
+
+  private final Properties configProps = new Properties();
+  private final AtomicLong rows = new AtomicLong();
+  private volatile boolean failed;
+
+  public static void main(String[] args) throws Exception
+  {
+    FlightLoader loader = new FlightLoader();
+    loader.parse(args);
+    System.exit(loader.run() ? 0 : 1);
+  }
+
+  private void parse(String[] args)
+  {
+    for (int i = 0; i < args.length; i++) {
+      switch (args[i]) {
+        case "-config": configFile = args[++i]; break;
+        case "-batch": batchSize = Integer.parseInt(args[++i]); break;
+        case "-threads": threads = Integer.parseInt(args[++i]); break;
+        case "-replace": replace = true; break;
+        default:
+          if (args[i].startsWith("-") || csvFile != null)
+            throw new IllegalArgumentException("unknown option " + args[i]);
+          csvFile = args[i];
+      }
+    }
+    if (csvFile == null)
+      throw new IllegalArgumentException("usage: java FlightLoader [-config file] [-batch n] [-threads n] [-replace] file.csv");
+  }
+
+  /**
+   * @return true if every row was loaded
+   */
+  public boolean run() throws Exception
+  {
+    configProps.load(new FileInputStream(configFile));
+    if (batchSize < 0)
+      batchSize = Integer.parseInt(configProps.getProperty("flightservice.load_batch_size", "1000"));
+    if (threads < 0)
+      threads = Integer.parseInt(configProps.getProperty("flightservice.load_threads", "4"));
+    Class.forName(configProps.getProperty("flightservice.jdbc_driver")).getDeclaredConstructor().newInstance();
+
+    if (replace)
+      deleteFlights();
+
+    try (FileChannel file = FileChannel.open(Paths.get(csvFile), StandardOpenOption.READ)) {
+      long regionBytes = Math.max(MIN_REGION_BYTES, Math.min(MAX_REGION_BYTES, file.size() / (4L * threads)));
+      long[] bounds = FlightCsv.split(file, regionBytes);
+      AtomicInteger nextRegion = new AtomicInteger();
+
+      long start = System.nanoTime();
+      ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "flight-loader-progress");
+        t.setDaemon(true);
+        return t;
+      });
+      progress.scheduleAtFixedRate(() -> report("loaded", start), 1, 1, TimeUnit.SECONDS);
+
+      List<Future<Void>> loaders = new ArrayList<>();
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      for (int i = 0; i < threads; i++)
+        loaders.add(pool.submit(() -> {
+          load(file, bounds, nextRegion);
+          return null;
+        }));
+      pool.shutdown();
+      for (Future<Void> loader : loaders) {
+        try {
+          loader.get();
+        } catch (ExecutionException e) {
+          System.out.println("Load failed: " + e.getCause().getMessage());
+        }
+      }
+      progress.shutdownNow();
+      report(failed ? "Load stopped after" : "Loaded", start);
+      if (failed)
+        return false;
+    }
+
+    rebuildCapacities();
+    System.out.println("Rebuilt Capacities");
+    return true;
+  }
+
+  private Connection connect() throws SQLException
+  {
+    return DriverManager.getConnection(configProps.getProperty("flightservice.url"),
+            configProps.getProperty("flightservice.sqlazure_username"),
+            configProps.getProperty("flightservice.sqlazure_password"));
+  }
+
+  /* one loader thread: takes regions until there are none left or another thread failed */
+  private void load(FileChannel file, long[] bounds, AtomicInteger nextRegion) throws Exception
+  {
+    try (Connection c = connect(); PreparedStatement insert = c.prepareStatement(INSERT_FLIGHT)) {
+      c.setAutoCommit(false);
+      int region;
+      while (!failed && (region = nextRegion.getAndIncrement()) < bounds.length - 1) {
+        long from = bounds[region];
+        MappedByteBuffer mapped = file.map(FileChannel.MapMode.READ_ONLY, from, bounds[region + 1] - from);
+        FlightCsv csv = new FlightCsv(mapped, from);
+        if (region == 0)
+          csv.skipHeader();
+        int batched = 0;
+        while (!failed && csv.next()) {
+          for (int column = 0; column < FlightCsv.COLUMNS; column++) {
+            if (csv.isNull(column))
+              insert.setNull(column + 1, TEXT[column] ? Types.VARCHAR : Types.INTEGER);
+            else if (TEXT[column])
+              insert.setString(column + 1, csv.getString(column));
+            else
+              insert.setInt(column + 1, csv.getInt(column));
+          }
+          insert.addBatch();
+          if (++batched == batchSize) {
+            commit(c, insert, batched);
+            batched = 0;
+          }
+        }
+        if (batched > 0)
+          commit(c, insert, batched);
+      }
+    } catch (Exception e) {
+      failed = true;
+      throw e;
+    }
+  }
+
+  private void commit(Connection c, PreparedStatement insert, int batched) throws SQLException
+  {
+    insert.executeBatch();
+    c.commit();
+    rows.addAndGet(batched);
+  }
+
+  /*
+   * Capacities refers to Flights, and so do Reservations and ReservationLegs; reservations are
+   * not the loader's to delete, so it refuses to replace flights while there are any
+   */
+  private void deleteFlights() throws SQLException
+  {
+    try (Connection c = connect(); Statement s = c.createStatement()) {
+      c.setAutoCommit(false);
+      c.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+      try {
+        ResultSet results = s.executeQuery("SELECT COUNT(*) FROM Reservations");
+        results.next();
+        int reservations = results.getInt(1);
+        results.close();
+        if (reservations > 0)
+          throw new IllegalStateException("-replace needs Reservations to be empty, but it has "
+                                          + reservations + " reservations on the current flights");
+        s.executeUpdate("DELETE FROM Capacities");
+        s.executeUpdate("DELETE FROM Flights");
+        c.commit();
+      } catch (SQLException | RuntimeException e) {
+        c.rollback();
+        throw e;
+      }
+    }
+  }
+
+  /* Capacities holds the seats left on booked flights only; the rest are seeded from Flights on first booking */
+  private void rebuildCapacities() throws SQLException
+  {
+    try (Connection c = connect(); Statement s = c.createStatement()) {
+      c.setAutoCommit(false);
+      c.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+      try {
+        s.executeUpdate("DELETE FROM Capacities");
+        SeatInventory.recoverCapacities(c, s);
+        c.commit();
+      } catch (SQLException e) {
+        c.rollback();
+        throw e;
+      }
+    }
+  }
+
+  private void report(String what, long start)
+  {
+    long n = rows.get();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.printf("%s %d rows in %.1f s (%.0f rows/s)%n", what, n, seconds, n / Math.max(seconds, 1e-9));
+  }
+}
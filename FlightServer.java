@@ -0,0 +1,273 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves the flight service over TCP, one virtual thread and one {@link Session} per client.
+ *
+ * The protocol is the one of the interactive menu: the client sends one command per line
+ * and gets back the response of {@link FlightService#execute}, followed by an empty line
+ * that marks its end. "quit" or closing the connection ends the session. Clients beyond
+ * {@code maxConnections} are turned away, and a client that sends nothing for
+ * {@code idleTimeoutMillis} is disconnected.
+ *
+ * Clients get virtual threads on Java 21 and later; on older JDKs, where the rest of the
+ * service still builds and runs, each gets a platform thread from a cached pool instead.
+ */
+public class FlightServer
+{
+  public static final int DEFAULT_PORT = 9000;
+  public static final int DEFAULT_MAX_CONNECTIONS = 10000;
+  public static final int DEFAULT_IDLE_TIMEOUT_MS = 300000;
+
+  private static final String BUSY = "Server busy, try again later\n";
+  private static final String IDLE = "Idle timeout\n";
+
+  private final Query q;
+  private final int port;
+  private final int maxConnections;
+  private final int idleTimeoutMillis;
+  private final Semaphore slots;
+  private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+  private volatile ServerSocket serverSocket;
+
+  /**
+   * @param idleTimeoutMillis how long a client may stay silent, 0 for no limit
+   */
+  public FlightServer(Query q, int port, int maxConnections, int idleTimeoutMillis)
+  {
+    if (maxConnections < 1)
+      throw new IllegalArgumentException("max connections must be at least 1: " + maxConnections);
+    this.q = q;
+    this.port = port;
+    this.maxConnections = maxConnections;
+    this.idleTimeoutMillis = idleTimeoutMillis;
+    this.slots = new Semaphore(maxConnections);
+  }
+
+  /**
+   * Accepts clients until {@link #close()} is called, then waits for the sessions still
+   * running to end.
+   */
+  public void serve() throws IOException
+  {
+    ExecutorService sessions = threadPerTaskExecutor();
+    try (ServerSocket ss = new ServerSocket(port, Math.min(maxConnections, 4096))) {
+      serverSocket = ss;
+      while (true) {
+        Socket socket;
+        try {
+          socket = ss.accept();
+        } catch (SocketException e) {
+          if (ss.isClosed())
+            break;
+          throw e;
+        }
+        if (!slots.tryAcquire()) {
+          reject(socket);
+          continue;
+        }
+        clients.add(socket);
+        sessions.submit(() -> {
+          try {
+            handle(socket);
+          } finally {
+            clients.remove(socket);
+            slots.release();
+          }
+        });
+      }
+    } finally {
+      awaitTermination(sessions);
+    }
+  }
+
+  /**
+   * @return an executor that runs each task on a new virtual thread, looked up reflectively
+   * so that this compiles before Java 21, or else on a thread of a cached pool
+   */
+  static ExecutorService threadPerTaskExecutor()
+  {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newCachedThreadPool();
+    }
+  }
+
+  /**
+   * Shuts the executor down and waits for the tasks already submitted, as
+   * {@code ExecutorService.close()} does from Java 19 on; if interrupted, cancels them.
+   */
+  static void awaitTermination(ExecutorService executor)
+  {
+    executor.shutdown();
+    boolean interrupted = false;
+    while (!executor.isTerminated()) {
+      try {
+        executor.awaitTermination(1, TimeUnit.DAYS);
+      } catch (InterruptedException e) {
+        if (!interrupted) {
+          executor.shutdownNow();
+          interrupted = true;
+        }
+      }
+    }
+    if (interrupted)
+      Thread.currentThread().interrupt();
+  }
+
+  /**
+   * @return the port the server listens on, once {@link #serve()} has bound it
+   */
+  public int getLocalPort()
+  {
+    ServerSocket ss = serverSocket;
+    return ss == null ? -1 : ss.getLocalPort();
+  }
+
+  public int activeConnections()
+  {
+    return maxConnections - slots.availablePermits();
+  }
+
+  private void handle(Socket s)
+  {
+    Session session = q.newSession();
+    try (Socket socket = s;
+         BufferedReader in = new BufferedReader(
+           new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+         Writer out = new BufferedWriter(
+           new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8))) {
+      socket.setSoTimeout(idleTimeoutMillis);
+      socket.setTcpNoDelay(true);
+      CommandLine command = new CommandLine();
+      Response response = new Response(out);
+      try {
+        String line;
+        while ((line = in.readLine()) != null) {
+          // rendered straight into the socket's writer
+          FlightService.execute(q, session, command.parse(line), response);
+          response.end();
+          if (command.size() > 0 && command.is(0, "quit"))
+            break;
+        }
+      } catch (SocketTimeoutException e) {
+        respond(out, IDLE);
+      }
+    } catch (IOException e) {
+      // the client went away or the server is closing
+    }
+  }
+
+  /* writes one response after another, each ended by a newline and an empty line */
+  private static final class Response implements Appendable
+  {
+    private final Writer out;
+    private char last = '\n';
+
+    Response(Writer out)
+    {
+      this.out = out;
+    }
+
+    @Override
+    public Response append(CharSequence s) throws IOException
+    {
+      if (s == null)
+        s = "null";
+      return append(s, 0, s.length());
+    }
+
+    @Override
+    public Response append(CharSequence s, int start, int end) throws IOException
+    {
+      if (s == null)
+        s = "null";
+      if (start < end) {
+        out.append(s, start, end);
+        last = s.charAt(end - 1);
+      }
+      return this;
+    }
+
+    @Override
+    public Response append(char c) throws IOException
+    {
+      out.write(c);
+      last = c;
+      return this;
+    }
+
+    void end() throws IOException
+    {
+      if (last != '\n')
+        out.write('\n');
+      out.write('\n');
+      out.flush();
+      last = '\n';
+    }
+  }
+
+  private static void respond(Writer out, String response) throws IOException
+  {
+    out.write(response);
+    if (!response.endsWith("\n"))
+      out.write('\n');
+    out.write('\n');
+    out.flush();
+  }
+
+  private static void reject(Socket socket)
+  {
+    try {
+      respond(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), BUSY);
+    } catch (IOException ignored) {
+      // nothing more to tell a client we are turning away
+    } finally {
+      closeQuietly(socket);
+    }
+  }
+
+  private static void closeQuietly(Socket socket)
+  {
+    try {
+      socket.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  /**
+   * Stops accepting clients and disconnects the ones still connected.
+   */
+  public void close()
+  {
+    ServerSocket ss = serverSocket;
+    if (ss != null)
+      closeQuietly(ss);
+    for (Socket socket : clients)
+      closeQuietly(socket);
+  }
+
+  private static void closeQuietly(ServerSocket socket)
+  {
+    try {
+      socket.close();
+    } catch (IOException ignored) {
+    }
+  }
+}
@@ -1,9 +1,6 @@
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class FlightService
 {
@@ -17,153 +14,109 @@ public class FlightService
     System.out.println("> create <username> <password> <initial amount>");
     System.out.println("> login <username> <password>");
     System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+    System.out.println("> next [num itineraries]");
     System.out.println("> book <itinerary id>");
     System.out.println("> pay <reservation id>");
     System.out.println("> reservations");
     System.out.println("> cancel <reservation id>");
+    System.out.println("> stats");
     System.out.println("> quit");
   }
 
   public static String[] tokenize(String command)
   {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
-    List<String> tokens = new ArrayList<>();
-    while (m.find())
-    {
-      if (m.group(1) != null)
-        tokens.add(m.group(1));
-      else
-        tokens.add(m.group(2));
-    }
-    return tokens.toArray(new String[0]);
+    return new CommandLine().parse(command).toArray();
   }
 
-  public static String execute (Query q, String command)
-  {
-    String response;
-
-    String[] tokens = tokenize(command.trim());
-    if (tokens.length == 0)
-      response = "Please enter a command";
-
-    else if (tokens[0].equals("login"))
-    {
-      if (tokens.length == 3)
-      {
-        /* authenticate the user */
-        String username = tokens[1];
-        String password = tokens[2];
-        response = q.transaction_login(username, password);
-      }
-      else
-        response = "Error: Please provide a username and password";
-    }
+  /* every command of usage(), with the response for a wrong number of parameters */
+  static final CommandDispatcher COMMANDS = new CommandDispatcher()
+    .register("login", 3, "Error: Please provide a username and password",
+      /* authenticate the user */
+      (q, session, c) -> q.transaction_login(session, c.get(1), c.get(2)))
 
-    else if (tokens[0].equals("create"))
-    {
+    .register("create", 4, "Error: Please provide a username, password, and initial amount in the account",
       /* create a new customer */
-      if (tokens.length == 4)
-      {
-        String username = tokens[1];
-        String password = tokens[2];
-        int initAmount = Integer.parseInt(tokens[3]);
-        response = q.transaction_createCustomer(username, password, initAmount);
-      }
-      else
-        response = "Error: Please provide a username, password, and initial amount in the account";
-    }
-
-    else if (tokens[0].equals("search"))
-    {
-				/* search for flights */
-      if (tokens.length == 6)
-      {
-        String originCity = tokens[1];
-        String destinationCity = tokens[2];
-        boolean direct = tokens[3].equals("1");
-        Integer day;
-        Integer count;
-        try
-        {
-          day = Integer.valueOf(tokens[4]);
-          count = Integer.valueOf(tokens[5]);
-          //System.out.println("Searching for flights");
-          //response = q.transaction_search_unsafe(originCity, destinationCity, direct, day, count);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
-        }
-        catch (NumberFormatException e) { response = "Failed to parse integer"; }
-      }
-      else
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
-    }
-
-    else if (tokens[0].equals("book"))
-    {
-				/* book a flight ticket */
-      if (tokens.length == 2)
-      {
-        int itinerary_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Booking itinerary.");
-        response = q.transaction_book(itinerary_id);
-      }
-      else
-        response = "Error: Please provide an itinerary_id";
-    }
+      (q, session, c) -> q.transaction_createCustomer(session, c.get(1), c.get(2), c.getInt(3)))
+
+    .registerStreaming("search", 6, "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>",
+      /* search for flights */
+      (q, session, c, out) -> {
+        boolean direct = c.is(3, "1");
+        int day = c.getInt(4);
+        int count = c.getInt(5);
+        q.transaction_search(session, c.get(1), c.get(2), direct, day, count, out);
+      })
+
+    .registerStreaming("next", CommandDispatcher.ANY, null,
+      /* the next page of the last search */
+      (q, session, c, out) -> {
+        if (c.size() > 2)
+          throw new CommandException("Error: Please provide at most the number of itineraries <nb itineraries>");
+        int count = c.size() > 1 ? c.getInt(1) : 0;
+        q.transaction_next(session, count, out);
+      })
+
+    .register("book", 2, "Error: Please provide an itinerary_id",
+      /* book a flight ticket */
+      (q, session, c) -> q.transaction_book(session, c.getInt(1)))
+
+    .registerStreaming("reservations", CommandDispatcher.ANY, null,
+      /* list all reservations */
+      (q, session, c, out) -> q.transaction_reservations(session, out))
+
+    .register("pay", 2, "Error: Please provide a reservation_id",
+      /* pay for an unpaid reservation */
+      (q, session, c) -> q.transaction_pay(session, c.getInt(1)))
 
-    else if (tokens[0].equals("reservations"))
-    {
-				/* list all reservations */
-      response = q.transaction_reservations();
-    }
+    .register("cancel", 2, "Error: Please provide a reservation_id",
+      /* cancel a reservation */
+      (q, session, c) -> q.transaction_cancel(session, c.getInt(1)))
 
-    else if (tokens[0].equals("pay"))
-    {
-      /* pay for an unpaid reservation */
-      if (tokens.length == 2)
-      {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Paying reservation.");
-        response = q.transaction_pay(reservation_id);
-      }
-      else
-        response = "Error: Please provide a reservation_id";
-    }
+    .registerStreaming("stats", CommandDispatcher.ANY, null,
+      /* counts and latencies of every type of transaction, and of every statement if traced */
+      (q, session, c, out) -> q.appendStats(out))
 
-    else if (tokens[0].equals("cancel"))
-    {
-				/* cancel a reservation */
-      if (tokens.length == 2)
-      {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        //System.out.println("Canceling reservation.");
-        response = q.transaction_cancel(reservation_id);
-      }
-      else
-        response = "Error: Please provide a reservation_id";
-    }
+    .register("quit", CommandDispatcher.ANY, null, (q, session, c) -> "Goodbye\n");
 
-    else if (tokens[0].equals("quit"))
-      response = "Goodbye\n";
+  public static String execute (Query q, Session session, String command)
+  {
+    return execute(q, session, new CommandLine().parse(command));
+  }
 
-    else
-      response = "Error: unrecognized command '" + tokens[0] + "'";
+  /**
+   * Runs a command that has already been split, e.g. into a {@link CommandLine} reused
+   * for every command of a connection.
+   */
+  public static String execute (Query q, Session session, CommandLine command)
+  {
+    return COMMANDS.dispatch(q, session, command);
+  }
 
-    return response;
+  /**
+   * Runs a command, writing the response to {@code out} as it is rendered.
+   *
+   * @throws IOException only if {@code out} does
+   */
+  public static void execute (Query q, Session session, CommandLine command, Appendable out) throws IOException
+  {
+    COMMANDS.dispatch(q, session, command, out);
   }
 
   /* REPL (Read-Execute-Print-Loop) */
   public static void menu(Query q) throws Exception
   {
+    Session session = q.newSession();
+    BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
     while (true)
     {
       usage();
 
-      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
       System.out.print("> ");
 
       String command = r.readLine();
-      String response = execute(q, command);
+      if (command == null) /* end of input */
+        command = "quit";
+      String response = execute(q, session, command);
       System.out.print(response);
 
       if (response.equals("Goodbye\n"))
@@ -171,13 +124,41 @@ public class FlightService
     }
   }
 
+  /* serves clients over TCP until the process is stopped; usage: -server [port] */
+  public static void serve(Query q, String[] args) throws Exception
+  {
+    int port = args.length > 1 ? Integer.parseInt(args[1])
+      : Integer.parseInt(q.getProperty("flightservice.server_port", String.valueOf(FlightServer.DEFAULT_PORT)));
+    int maxConnections = Integer.parseInt(q.getProperty("flightservice.server_max_connections",
+            String.valueOf(FlightServer.DEFAULT_MAX_CONNECTIONS)));
+    int idleTimeout = Integer.parseInt(q.getProperty("flightservice.server_idle_timeout_ms",
+            String.valueOf(FlightServer.DEFAULT_IDLE_TIMEOUT_MS)));
+
+    FlightServer server = new FlightServer(q, port, maxConnections, idleTimeout);
+    Thread main = Thread.currentThread();
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      /* let main close the database connections once the sessions have ended */
+      server.close();
+      try {
+        main.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }));
+    System.out.println("Serving flights on port " + port);
+    server.serve();
+  }
+
   public static void main(String[] args) throws Exception
   {
 		/* prepare the database connection stuff */
     Query q = new Query(DBCONFIG_FILENAME);
     q.openConnection();
     q.prepareStatements();
-    menu(q); /* menu(...) does the real work */
+    if (args.length > 0 && args[0].equals("-server"))
+      serve(q, args);
+    else
+      menu(q); /* menu(...) does the real work */
     q.closeConnection();
   }
 
@@ -0,0 +1,295 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+/**
+ * The non-canceled flights in a compact columnar file, written once from Flights and
+ * memory-mapped at startup instead of reading the table again.
+ *
+ * Layout, big-endian: magic, version, the fingerprint of Flights the file was written from
+ * (row count and CHECKSUM_AGG), the number of flights, the city, carrier and flight number
+ * dictionaries (count, then a length-prefixed UTF-8 string each), one int column per field
+ * (fid, day, carrier code, flight number code, origin code, destination code, time, capacity,
+ * price, distance) and a CRC32C of everything before it. The codes in the file are its own;
+ * each name in its dictionaries is given its {@link NameDictionary} code once, when it is read.
+ * Flight numbers are kept as the strings read from Flights, so a NULL one reads back as null.
+ */
+public final class FlightSnapshot
+{
+  static final int MAGIC = 0x464C534E; // "FLSN"
+  static final int VERSION = 2;
+  // the length a dictionary gives a NULL carrier, city or flight number
+  private static final int NULL_LENGTH = 0xFFFF;
+
+  // cheap enough to run at every start: one scan of Flights, no rows sent back
+  static final String FINGERPRINT = "SELECT COUNT(*), CHECKSUM_AGG(BINARY_CHECKSUM(*)) FROM Flights;";
+
+  private static final int FIELDS = 10;
+  private static final int FID = 0, DAY = 1, CARRIER = 2, NUMBER = 3, ORIGIN = 4, DEST = 5,
+                           TIME = 6, CAPACITY = 7, PRICE = 8, DISTANCE = 9;
+
+  private final long sourceFingerprint;
+  private final int size;
+  private final String[] cities;
+  private final String[] carriers;
+  private final String[] numbers;
+  private final IntBuffer[] columns = new IntBuffer[FIELDS];
+
+  private FlightSnapshot(ByteBuffer in) throws IOException
+  {
+    if (in.remaining() < 8 + 4 || in.getInt() != MAGIC)
+      throw new IOException("not a flight snapshot");
+    int version = in.getInt();
+    if (version != VERSION)
+      throw new IOException("flight snapshot version " + version + ", expected " + VERSION);
+
+    // the checksum covers everything before it
+    int body = in.limit() - 4;
+    CRC32C crc = new CRC32C();
+    crc.update(in.duplicate().position(0).limit(body));
+    if ((int) crc.getValue() != in.getInt(body))
+      throw new IOException("flight snapshot is corrupt: checksum mismatch");
+
+    sourceFingerprint = in.getLong();
+    size = in.getInt();
+    cities = strings(in);
+    carriers = strings(in);
+    numbers = strings(in);
+    for (int f = 0; f < FIELDS; f++) {
+      ByteBuffer column = in.slice().limit(4 * size);
+      columns[f] = column.asIntBuffer();
+      in.position(in.position() + 4 * size);
+    }
+  }
+
+  private static String[] strings(ByteBuffer in)
+  {
+    String[] strings = new String[in.getInt()];
+    byte[] bytes = new byte[64];
+    for (int i = 0; i < strings.length; i++) {
+      int length = in.getShort() & 0xFFFF;
+      if (length == NULL_LENGTH)
+        continue;
+      if (bytes.length < length)
+        bytes = new byte[length];
+      in.get(bytes, 0, length);
+      strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+    return strings;
+  }
+
+  /**
+   * Maps a snapshot file and checks its version and checksum.
+   *
+   * @throws IOException if it cannot be read, or is not a snapshot of this version, or is corrupt
+   */
+  public static FlightSnapshot open(Path file) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      return new FlightSnapshot(mapped);
+    }
+  }
+
+  /**
+   * The flights in {@code file} if it is a good snapshot of Flights as it is now; otherwise
+   * the flights read from Flights, after writing them to {@code file} for the next start.
+   */
+  public static List<Query.Flight> load(Path file, Connection c) throws SQLException, IOException
+  {
+    long fingerprint = fingerprint(c);
+    if (Files.exists(file)) {
+      try {
+        FlightSnapshot snapshot = open(file);
+        if (snapshot.sourceFingerprint == fingerprint)
+          return snapshot.flights();
+        System.out.println("Flight snapshot " + file + " is out of date, rewriting it");
+      } catch (IOException e) {
+        System.out.println("Flight snapshot " + file + " is unusable (" + e.getMessage() + "), rewriting it");
+      }
+    }
+    List<Query.Flight> flights = new ArrayList<>();
+    try (Statement s = c.createStatement();
+         ResultSet results = s.executeQuery(RouteIndex.LOAD_FLIGHTS)) {
+      List<Integer> distances = new ArrayList<>();
+      while (results.next()) {
+        flights.add(JdbcFlightStore.parser(results, true));
+        distances.add(results.getInt(16));
+      }
+      write(file, fingerprint, flights, distances);
+    }
+    return flights;
+  }
+
+  /* the row count and checksum of Flights, together in one long */
+  static long fingerprint(Connection c) throws SQLException
+  {
+    try (Statement s = c.createStatement();
+         ResultSet results = s.executeQuery(FINGERPRINT)) {
+      results.next();
+      return ((long) results.getInt(1) << 32) | (results.getInt(2) & 0xFFFFFFFFL);
+    }
+  }
+
+  /**
+   * Writes the flights to {@code file}, replacing it atomically.
+   *
+   * @param distances the distance of each flight, in the same order
+   */
+  static void write(Path file, long sourceFingerprint, List<Query.Flight> flights, List<Integer> distances)
+    throws IOException
+  {
+    Map<String, Integer> cityCodes = new HashMap<>();
+    Map<String, Integer> carrierCodes = new HashMap<>();
+    Map<String, Integer> numberCodes = new HashMap<>();
+    List<String> cities = new ArrayList<>();
+    List<String> carriers = new ArrayList<>();
+    List<String> numbers = new ArrayList<>();
+    int n = flights.size();
+    int[][] columns = new int[FIELDS][n];
+    for (int i = 0; i < n; i++) {
+      Query.Flight f = flights.get(i);
+      columns[FID][i] = f.fid;
+      columns[DAY][i] = f.dayOfMonth;
+      columns[CARRIER][i] = code(carrierCodes, carriers, f.carrierId());
+      columns[NUMBER][i] = code(numberCodes, numbers, f.flightNum);
+      columns[ORIGIN][i] = code(cityCodes, cities, f.originCity());
+      columns[DEST][i] = code(cityCodes, cities, f.destCity());
+      columns[TIME][i] = f.time;
+      columns[CAPACITY][i] = f.capacity;
+      columns[PRICE][i] = f.price;
+      columns[DISTANCE][i] = distances.get(i);
+    }
+
+    byte[][] cityBytes = bytes(cities);
+    byte[][] carrierBytes = bytes(carriers);
+    byte[][] numberBytes = bytes(numbers);
+    int length = 4 + 4 + 8 + 4 + dictionaryLength(cityBytes) + dictionaryLength(carrierBytes)
+                 + dictionaryLength(numberBytes) + FIELDS * 4 * n + 4;
+    ByteBuffer out = ByteBuffer.allocate(length);
+    out.putInt(MAGIC).putInt(VERSION).putLong(sourceFingerprint).putInt(n);
+    putDictionary(out, cityBytes);
+    putDictionary(out, carrierBytes);
+    putDictionary(out, numberBytes);
+    for (int[] column : columns) {
+      out.asIntBuffer().put(column);
+      out.position(out.position() + 4 * n);
+    }
+    CRC32C crc = new CRC32C();
+    crc.update(out.array(), 0, out.position());
+    out.putInt((int) crc.getValue());
+    out.flip();
+
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+      while (out.hasRemaining())
+        channel.write(out);
+      channel.force(false);
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static int code(Map<String, Integer> codes, List<String> strings, String s)
+  {
+    Integer code = codes.get(s);
+    if (code == null) {
+      code = strings.size();
+      codes.put(s, code);
+      strings.add(s);
+    }
+    return code;
+  }
+
+  private static byte[][] bytes(List<String> strings)
+  {
+    byte[][] bytes = new byte[strings.size()][];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = strings.get(i) == null ? null : strings.get(i).getBytes(StandardCharsets.UTF_8);
+      if (bytes[i] != null && bytes[i].length >= NULL_LENGTH)
+        throw new IllegalArgumentException("string too long for a flight snapshot: " + strings.get(i));
+    }
+    return bytes;
+  }
+
+  private static int dictionaryLength(byte[][] strings)
+  {
+    int length = 4;
+    for (byte[] s : strings)
+      length += 2 + (s == null ? 0 : s.length);
+    return length;
+  }
+
+  private static void putDictionary(ByteBuffer out, byte[][] strings)
+  {
+    out.putInt(strings.length);
+    for (byte[] s : strings) {
+      if (s == null) {
+        out.putShort((short) NULL_LENGTH);
+        continue;
+      }
+      out.putShort((short) s.length);
+      out.put(s);
+    }
+  }
+
+  /**
+   * @return the number of flights
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  /**
+   * @return the distance of the i-th flight, in miles
+   */
+  public int distance(int i)
+  {
+    return columns[DISTANCE].get(i);
+  }
+
+  /**
+   * @return every flight, in the order they were written
+   */
+  public List<Query.Flight> flights()
+  {
+    List<Query.Flight> flights = new ArrayList<>(size);
+    int[] carrierCodes = new int[carriers.length];
+    for (int i = 0; i < carriers.length; i++)
+      carrierCodes[i] = NameDictionary.CARRIERS.code(carriers[i]);
+    int[] cityCodes = new int[cities.length];
+    for (int i = 0; i < cities.length; i++)
+      cityCodes[i] = NameDictionary.CITIES.code(cities[i]);
+    for (int i = 0; i < size; i++) {
+      Query.Flight f = new Query.Flight();
+      f.fid = columns[FID].get(i);
+      f.dayOfMonth = columns[DAY].get(i);
+      f.carrier = carrierCodes[columns[CARRIER].get(i)];
+      f.flightNum = numbers[columns[NUMBER].get(i)];
+      f.origin = cityCodes[columns[ORIGIN].get(i)];
+      f.dest = cityCodes[columns[DEST].get(i)];
+      f.time = columns[TIME].get(i);
+      f.capacity = columns[CAPACITY].get(i);
+      f.price = columns[PRICE].get(i);
+      flights.add(f);
+    }
+    return flights;
+  }
+}
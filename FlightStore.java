@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Where flights, users, reservations, capacities and the reservation sequence are kept.
+ *
+ * Every method is one transaction: it either happens completely or not at all, and
+ * concurrent calls behave as if they ran one after the other. {@code Query} checks the
+ * session and renders the responses; the store only decides and records outcomes.
+ * A failure of the store itself is reported as a SQLException.
+ *
+ * @see JdbcFlightStore
+ * @see MemoryFlightStore
+ */
+public interface FlightStore
+{
+  /* outcomes of book(), besides a reservation ID */
+  int SAME_DAY = -1; // the user already has a reservation on that day
+  int NO_SEATS = -2; // a flight of the itinerary is full
+
+  /**
+   * Finishes setting up, once everything the store needs has been configured.
+   */
+  void prepare() throws Exception;
+
+  /**
+   * Deletes every user and reservation, gives every seat back and restarts reservation IDs at 1.
+   * Flights are kept.
+   */
+  void clear() throws SQLException;
+
+  /**
+   * @return true if a user with that username and password exists
+   */
+  boolean login(String username, String password) throws SQLException;
+
+  /**
+   * @return false if the username is taken
+   */
+  boolean createUser(String username, String password, int balance) throws SQLException;
+
+  /**
+   * @return the best {@code numberOfItineraries} of the direct and, unless {@code directFlight},
+   * the one-stop itineraries from origin to destination on that day, best first
+   * @see ItineraryRanker
+   */
+  default List<Query.Itinerary> search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                                       int numberOfItineraries) throws SQLException
+  {
+    return search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, null);
+  }
+
+  /**
+   * Like {@link #search(String, String, boolean, int, int)}, but only for the itineraries that
+   * rank after the key of {@code after}, found by seeking past it.
+   *
+   * @param after where the previous page ended, or null for the first page
+   */
+  List<Query.Itinerary> search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                               int numberOfItineraries, SearchCursor after) throws SQLException;
+
+  /**
+   * Takes a seat on every flight of the itinerary and records an unpaid reservation.
+   *
+   * @return the new reservation ID, or {@link #SAME_DAY} or {@link #NO_SEATS}
+   */
+  int book(String username, Query.Itinerary it) throws SQLException;
+
+  /**
+   * @return the reservations of the user, by ID
+   */
+  List<Query.Reservation> reservations(String username) throws SQLException;
+
+  /**
+   * Pays for an unpaid reservation of the user out of their balance.
+   */
+  Payment pay(String username, int reservationId) throws SQLException;
+
+  /**
+   * Deletes a reservation of the user, refunding it if it was paid and giving its seats back.
+   *
+   * @return false if the user has no such reservation
+   */
+  boolean cancel(String username, int reservationId) throws SQLException;
+
+  void close() throws Exception;
+
+  /**
+   * Writes what the store measures of itself, if anything, for the {@code stats} command.
+   */
+  default void appendStats(Appendable out) throws IOException
+  {
+  }
+
+  /**
+   * The outcome of {@link FlightStore#pay}.
+   */
+  final class Payment
+  {
+    public static final Payment NOT_FOUND = new Payment(false, 0, 0);
+
+    public final boolean paid;
+    public final int balance; // after paying, or the balance that was too low
+    public final int cost;
+
+    private Payment(boolean paid, int balance, int cost)
+    {
+      this.paid = paid;
+      this.balance = balance;
+      this.cost = cost;
+    }
+
+    static Payment paid(int remainingBalance, int cost)
+    {
+      return new Payment(true, remainingBalance, cost);
+    }
+
+    static Payment insufficient(int balance, int cost)
+    {
+      return new Payment(false, balance, cost);
+    }
+  }
+}
@@ -0,0 +1,68 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Keeps the K best itineraries offered to it, in the order of {@code Itinerary.compareTo}:
+ * total flight time, then fid.
+ *
+ * Candidates are kept in a max-heap bounded to K entries, so no more than K
+ * itineraries are alive at any time no matter how many are offered. Callers that read
+ * candidates in increasing time order can stop as soon as {@link #accepts(int)} says no.
+ */
+public class ItineraryRanker
+{
+  private final int k;
+  private final PriorityQueue<Query.Itinerary> heap;
+
+  public ItineraryRanker(int k)
+  {
+    this.k = Math.max(k, 0);
+    this.heap = new PriorityQueue<Query.Itinerary>(Math.max(this.k, 1), Collections.reverseOrder());
+  }
+
+  /**
+   * @return false if an itinerary with this total time can no longer make the top K,
+   * because K itineraries that are strictly faster are already kept.
+   */
+  public boolean accepts(int time)
+  {
+    if (heap.size() < k)
+      return true;
+    return k > 0 && time <= heap.peek().time();
+  }
+
+  /**
+   * Offers a candidate, evicting the current worst one if the candidate ranks above it.
+   *
+   * @return true if the candidate is kept
+   */
+  public boolean offer(Query.Itinerary it)
+  {
+    if (heap.size() < k) {
+      heap.add(it);
+      return true;
+    }
+    if (k == 0 || it.compareTo(heap.peek()) >= 0)
+      return false;
+    heap.poll();
+    heap.add(it);
+    return true;
+  }
+
+  public int size()
+  {
+    return heap.size();
+  }
+
+  /**
+   * @return the kept itineraries, best first
+   */
+  public List<Query.Itinerary> toSortedList()
+  {
+    List<Query.Itinerary> sorted = new ArrayList<Query.Itinerary>(heap);
+    Collections.sort(sorted);
+    return sorted;
+  }
+}
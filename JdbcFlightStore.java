@@ -0,0 +1,1097 @@
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Paths;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * The flight store on SQL Server, through JDBC: the Flights table plus the tables of
+ * createTables.sql, reached through a pool of connections with prepared statements.
+ */
+public class JdbcFlightStore implements FlightStore
+{
+  private final Properties configProps;
+
+  // DB Connections, each with its own prepared statements
+  private ConnectionPool pool;
+
+  // In-memory index over Flights, null unless flightservice.route_index is set
+  private RouteIndex routeIndex;
+
+  // Searches of more than two flights, null unless RoutePlanner.wanted(configProps)
+  private RoutePlanner routePlanner;
+
+  // Whether the database has ReservationLegs, where the flights after the second of a reservation are kept
+  private boolean reservationLegs;
+
+  private TransactionRunner runner;
+  private String readIsolation = DEFAULT_READ_ISOLATION;
+
+  // Per-statement counts, times and slow-query log, null unless flightservice.trace_statements is set
+  private StatementTracer tracer;
+
+  // In-memory seat counters written behind to Capacities, null unless flightservice.seat_inventory is set
+  private SeatInventory seatInventory;
+
+  // Source of reservation IDs, gap-free unless flightservice.reservation_id_block is set
+  private ReservationIdAllocator reservationIds;
+
+  // Books concurrent bookings together, null unless flightservice.book_batch_size is set
+  private BookingBatcher bookingBatcher;
+
+  // Pay and cancel each in one round trip, see PAY_BATCH and CANCEL_BATCH
+  private boolean payCancelBatches;
+
+  private static final int DEFAULT_POOL_SIZE = 4;
+  private static final long DEFAULT_POOL_TIMEOUT_MS = 30000;
+
+  // a batch binds up to two fids per booking in one statement; SQL Server takes at most 2100 parameters
+  private static final int MAX_BOOK_BATCH = 1000;
+
+  private static final int OFFSET = 18;
+  private static final int TIME_COLUMN = 15; // actual_time
+
+  // Canned queries, prepared on every pooled connection (see PooledConnection)
+
+  static final String CHECK_FLIGHT_CAPACITY2 = "SELECT capacity FROM Capacities WHERE fid = ?";
+
+  static final String GET_USER = "SELECT * FROM Users WHERE username = ? AND pass = ?";
+
+  static final String CREATE_USER = "INSERT INTO Users VALUES(?, ?, ?)";
+
+  static final String CHECK_RESERVE = "SELECT * FROM Reservations WHERE usr = ?";
+
+  static final String GET_CAPACITY = "SELECT * FROM Flights WHERE fid = ?";
+
+  static final String GET_USER2 = "SELECT * FROM Users WHERE username = ? and pass = ?;";
+
+  static final String INSERT_CAPACITY = "INSERT INTO Capacities "
+    + "SELECT F.fid, F.capacity "
+    + "FROM Flights F "
+    + "WHERE F.fid = ? "
+    + "AND NOT EXISTS "
+    + "(SELECT * FROM Capacities c WHERE c.fid = f.fid);";
+
+  static final String GET_RESERVATION_COUNT = "SELECT count FROM ReserveCount;";
+
+  static final String SET_RESERVATION_COUNT = "UPDATE ReserveCount SET count = ((SELECT count FROM ReserveCount) + 1);";
+
+  static final String INSERT_RESERVATION = "INSERT INTO Reservations VALUES (?,?,?,?,?,?,?);";
+
+  // every reservation of a user together with its flights, in one round trip
+  static final String GET_RESERVATION = "SELECT R.rid, R.paid, F1.*, F2.* "
+                                      + "FROM Reservations R JOIN Flights F1 ON F1.fid = R.fid1 "
+                                      + "LEFT OUTER JOIN Flights F2 ON F2.fid = R.fid2 "
+                                      + "WHERE R.usr = ? ORDER BY R.rid ASC;";
+  private static final int RESERVATION_OFFSET = 2; // rid, paid come before the flight columns
+
+  static final String GET_ONE_RESERVATION = "SELECT * FROM Reservations WHERE rid = ? AND usr = ?;";
+
+  static final String SET_CAPACITY = "UPDATE Capacities SET capacity = ((SELECT capacity FROM Capacities WHERE fid = ?) - 1) WHERE fid = ?";
+
+  static final String ADD_CAPACITY = "UPDATE Capacities SET capacity = ((SELECT capacity FROM Capacities WHERE fid = ?) + 1) WHERE fid = ?";
+
+  static final String CHANGE_CAPACITY = "UPDATE Capacities SET capacity = capacity + ? WHERE fid = ?;";
+
+  static final String ADD_MONEY = "UPDATE Users SET balance = ((SELECT balance FROM Users WHERE username = ?) + ?) WHERE username = ?";
+
+  static final String SPEND_MONEY = "UPDATE Users SET balance = ((SELECT balance FROM Users WHERE username = ?) - ?) WHERE username = ?";
+
+  // transactions
+  static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
+
+  // read-only transactions; SNAPSHOT needs ALLOW_SNAPSHOT_ISOLATION on the database
+  static final String DEFAULT_READ_ISOLATION = "READ COMMITTED";
+
+  static final List<String> READ_ISOLATION_LEVELS =
+    Arrays.asList("READ COMMITTED", "SNAPSHOT", "REPEATABLE READ", "SERIALIZABLE");
+
+  static String beginReadTransactionSql(String isolation)
+  {
+    if (!READ_ISOLATION_LEVELS.contains(isolation))
+      throw new IllegalArgumentException("unsupported read isolation level: " + isolation);
+    return "SET TRANSACTION ISOLATION LEVEL " + isolation + "; BEGIN TRANSACTION;";
+  }
+
+  static final String COMMIT_SQL = "COMMIT TRANSACTION";
+
+  static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
+
+  static final String GET_PAID_STATUS = "SELECT * FROM Reservations WHERE rid = ? AND usr = ?;";
+
+  static final String SET_PAID_STATUS = "UPDATE Reservations SET paid = ? WHERE rid = ? AND usr = ?;";
+
+  static final String DELETE_RESERVATION = "DELETE FROM Reservations WHERE rid = ?;";
+
+  // the flights of a reservation after its second, from leg 3 on, for flightservice.max_legs above 2
+  static final String INSERT_RESERVATION_LEG = "INSERT INTO ReservationLegs VALUES (?, ?, ?);";
+
+  static final String GET_RESERVATION_LEGS = "SELECT L.rid, F.* FROM ReservationLegs L "
+                                           + "JOIN Reservations R ON R.rid = L.rid JOIN Flights F ON F.fid = L.fid "
+                                           + "WHERE R.usr = ? ORDER BY L.rid, L.leg;";
+
+  static final String GET_ONE_RESERVATION_LEGS = "SELECT fid FROM ReservationLegs WHERE rid = ? ORDER BY leg;";
+
+  static final String DELETE_RESERVATION_LEGS = "DELETE FROM ReservationLegs WHERE rid = ?;";
+
+  static final String GET_BALANCE = "SELECT balance FROM Users WHERE username = ?;";
+
+  // pay and cancel as one statement batch each, with its own transaction, for flightservice.pay_cancel_batches.
+  // A failure rolls the transaction back and is rethrown, so deadlock victims are still retried.
+  static final String PAY_BATCH = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; "
+    + "DECLARE @rid INT = ?, @usr VARCHAR(20) = ?, @cost INT, @paid INT, @balance INT, @status INT; "
+    + "BEGIN TRY "
+    + "BEGIN TRANSACTION; "
+    + "SELECT @cost = cost, @paid = paid FROM Reservations WITH (UPDLOCK) WHERE rid = @rid AND usr = @usr; "
+    + "SELECT @balance = balance FROM Users WITH (UPDLOCK) WHERE username = @usr; "
+    + "IF @cost IS NULL OR @paid = 1 SET @status = 0; "
+    + "ELSE IF @cost > @balance SET @status = 1; "
+    + "ELSE BEGIN "
+    + "UPDATE Users SET balance = balance - @cost WHERE username = @usr; "
+    + "UPDATE Reservations SET paid = 1 WHERE rid = @rid; "
+    + "SELECT @balance = @balance - @cost, @status = 2; "
+    + "END "
+    + "COMMIT TRANSACTION; "
+    + "END TRY "
+    + "BEGIN CATCH IF @@TRANCOUNT > 0 ROLLBACK TRANSACTION; THROW; END CATCH "
+    + "SELECT @status AS status, @balance AS balance, @cost AS cost;";
+
+  // statuses of PAY_BATCH
+  private static final int PAY_NOT_FOUND = 0;
+  private static final int PAY_INSUFFICIENT = 1;
+  private static final int PAY_PAID = 2;
+
+  // the third parameter is 0 when the seat inventory gives the seats back instead of Capacities,
+  // the fourth 1 when the database has ReservationLegs; returns the first two flights of the
+  // reservation canceled, nulls if there was none, then the fids of its flights after those
+  static final String CANCEL_BATCH = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; "
+    + "DECLARE @rid INT = ?, @usr VARCHAR(20) = ?, @seats INT = ?, @legs INT = ?, "
+    + "@fid1 INT, @fid2 INT, @paid INT, @cost INT; "
+    + "DECLARE @more TABLE (fid INT); "
+    + "BEGIN TRY "
+    + "BEGIN TRANSACTION; "
+    + "SELECT @fid1 = fid1, @fid2 = fid2, @paid = paid, @cost = cost "
+    + "FROM Reservations WITH (UPDLOCK) WHERE rid = @rid AND usr = @usr; "
+    + "IF @fid1 IS NOT NULL BEGIN "
+    + "IF @legs = 1 BEGIN "
+    + "INSERT INTO @more SELECT fid FROM ReservationLegs WITH (UPDLOCK) WHERE rid = @rid; "
+    + "DELETE FROM ReservationLegs WHERE rid = @rid; "
+    + "END "
+    + "IF @seats = 1 UPDATE Capacities SET capacity = capacity + 1 "
+    + "WHERE fid IN (@fid1, @fid2) OR fid IN (SELECT fid FROM @more); "
+    + "IF @paid = 1 UPDATE Users SET balance = balance + @cost WHERE username = @usr; "
+    + "DELETE FROM Reservations WHERE rid = @rid; "
+    + "END "
+    + "COMMIT TRANSACTION; "
+    + "END TRY "
+    + "BEGIN CATCH IF @@TRANCOUNT > 0 ROLLBACK TRANSACTION; THROW; END CATCH "
+    + "SELECT @fid1 AS fid1, @fid2 AS fid2; "
+    + "SELECT fid FROM @more;";
+
+  static final String DIRECT_SEARCH = "SELECT Top(?) * "
+                                    + "FROM Flights "
+                                    + "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? "
+                                    + "AND canceled != 1 ORDER BY actual_time ASC, fid ASC;";
+
+  static final String INDIRECT_SEARCH = "SELECT TOP (?) * FROM Flights F1, Flights F2 "
+                                      + "WHERE F1.origin_city = ? AND F1.dest_city = F2.origin_city AND F2.dest_city = ? "                                              + "AND F1.day_of_month = ? AND F1.day_of_month = F2.day_of_month "
+                                      + "AND F1.canceled != 1 AND F2.canceled != 1 "
+                                      + "ORDER BY (F1.actual_time + F2.actual_time), F1.fid ASC, F2.fid ASC;";
+
+  // the pages after the first: the same searches, seeking past the (time, fid1, fid2) of a SearchCursor
+  static final String DIRECT_SEARCH_AFTER = "SELECT Top(?) * "
+                                          + "FROM Flights "
+                                          + "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? "
+                                          + "AND canceled != 1 "
+                                          + "AND (actual_time > ? OR (actual_time = ? AND fid > ?)) "
+                                          + "ORDER BY actual_time ASC, fid ASC;";
+
+  static final String INDIRECT_SEARCH_AFTER = "SELECT TOP (?) * FROM Flights F1, Flights F2 "
+                                            + "WHERE F1.origin_city = ? AND F1.dest_city = F2.origin_city AND F2.dest_city = ? "
+                                            + "AND F1.day_of_month = ? AND F1.day_of_month = F2.day_of_month "
+                                            + "AND F1.canceled != 1 AND F2.canceled != 1 "
+                                            + "AND F1.actual_time + F2.actual_time >= ? "
+                                            + "AND (F1.actual_time + F2.actual_time > ? OR F1.fid > ? OR (F1.fid = ? AND F2.fid > ?)) "
+                                            + "ORDER BY (F1.actual_time + F2.actual_time), F1.fid ASC, F2.fid ASC;";
+
+  /**
+   * Opens the connections to the database; {@link #prepare()} then prepares their statements.
+   *
+   * @param metrics where retried transactions are counted; may be null
+   */
+  public JdbcFlightStore(Properties configProps, TransactionMetrics metrics) throws Exception
+  {
+    this.configProps = configProps;
+
+    String jSQLDriver = configProps.getProperty("flightservice.jdbc_driver");
+    String jSQLUrl = configProps.getProperty("flightservice.url");
+    String jSQLUser = configProps.getProperty("flightservice.sqlazure_username");
+    String jSQLPassword = configProps.getProperty("flightservice.sqlazure_password");
+
+    int poolSize = Integer.parseInt(configProps.getProperty("flightservice.pool_size",
+            String.valueOf(DEFAULT_POOL_SIZE)));
+    long poolTimeout = Long.parseLong(configProps.getProperty("flightservice.pool_timeout_ms",
+            String.valueOf(DEFAULT_POOL_TIMEOUT_MS)));
+
+    /* load jdbc drivers */
+    Class.forName(jSQLDriver).newInstance();
+
+    /* open connections to the flights database */
+    pool = new ConnectionPool(jSQLUrl, // database
+            jSQLUser, // user
+            jSQLPassword, // password
+            poolSize, poolTimeout);
+
+    int txAttempts = Integer.parseInt(configProps.getProperty("flightservice.tx_max_attempts", "5"));
+    long txBackoff = Long.parseLong(configProps.getProperty("flightservice.tx_backoff_ms", "10"));
+    long txMaxBackoff = Long.parseLong(configProps.getProperty("flightservice.tx_max_backoff_ms", "1000"));
+    runner = new TransactionRunner(pool, txAttempts, txBackoff, txMaxBackoff, metrics);
+
+    String schema = configProps.getProperty("flightservice.schema", "off");
+    if (!schema.equals("off") && !schema.equals("migrate") && !schema.equals("verify"))
+      throw new IllegalArgumentException("unknown flightservice.schema: " + schema);
+    PooledConnection sc = pool.acquire();
+    try {
+      SchemaManager schemaManager = new SchemaManager(sc.conn);
+      if (schema.equals("migrate"))
+        for (String migration : schemaManager.migrate())
+          System.out.println("Applied schema migration " + migration);
+      if (!schema.equals("off"))
+        schemaManager.verify();
+      // reservations booked with more flights stay readable and cancelable whatever max_legs is now
+      reservationLegs = schemaManager.hasTable("ReservationLegs");
+    } finally {
+      pool.release(sc);
+    }
+    if (RoutePlanner.maxLegs(configProps) > 2 && !reservationLegs)
+      throw new IllegalStateException("flightservice.max_legs above 2 needs the ReservationLegs table; "
+                                      + "start with flightservice.schema=migrate or create it from createTables.sql");
+
+    /* the isolation level of each transaction is set by BEGIN_TRANSACTION_SQL,
+       or by the read isolation level for read-only transactions */
+    readIsolation = configProps.getProperty("flightservice.read_isolation", DEFAULT_READ_ISOLATION)
+            .trim().toUpperCase();
+    beginReadTransactionSql(readIsolation);
+
+    if (Boolean.parseBoolean(configProps.getProperty("flightservice.trace_statements", "false"))) {
+      long slowMillis = Long.parseLong(configProps.getProperty("flightservice.slow_query_ms", "100"));
+      String slowLog = configProps.getProperty("flightservice.slow_query_log");
+      tracer = new StatementTracer(slowMillis, slowLog == null ? System.err
+                                               : new PrintStream(new FileOutputStream(slowLog, true), true));
+    }
+
+    boolean indexed = Boolean.parseBoolean(configProps.getProperty("flightservice.route_index", "false"));
+    if (indexed || RoutePlanner.wanted(configProps)) {
+      List<Query.Flight> flights;
+      PooledConnection c = pool.acquire();
+      try {
+        String snapshot = configProps.getProperty("flightservice.flights_snapshot");
+        if (snapshot != null)
+          flights = FlightSnapshot.load(Paths.get(snapshot), c.conn);
+        else
+          flights = RouteIndex.loadFlights(c);
+      } finally {
+        pool.release(c);
+      }
+      if (indexed)
+        routeIndex = RouteIndex.build(flights);
+      routePlanner = RoutePlanner.configure(configProps, flights);
+    }
+  }
+
+  /**
+   * prepare all the SQL statements on every pooled connection.
+   * "preparing" a statement is almost like compiling it.
+   * Note that the parameters (with ?) are still not filled in
+   */
+  public void prepare() throws Exception
+  {
+    pool.prepareStatements(readIsolation, tracer);
+
+    int idBlock = Integer.parseInt(configProps.getProperty("flightservice.reservation_id_block", "0"));
+    reservationIds = new ReservationIdAllocator(pool, idBlock);
+
+    if (Boolean.parseBoolean(configProps.getProperty("flightservice.seat_inventory", "false"))) {
+      long flushInterval = Long.parseLong(configProps.getProperty("flightservice.seat_flush_ms", "200"));
+      SeatInventory inventory = new SeatInventory(pool, flushInterval);
+      PooledConnection c = pool.acquire();
+      try {
+        inventory.recover(c);
+      } finally {
+        pool.release(c);
+      }
+      inventory.start();
+      seatInventory = inventory;
+    }
+
+    payCancelBatches = Boolean.parseBoolean(configProps.getProperty("flightservice.pay_cancel_batches", "false"));
+
+    int bookBatchSize = Integer.parseInt(configProps.getProperty("flightservice.book_batch_size", "0"));
+    if (bookBatchSize > MAX_BOOK_BATCH)
+      throw new IllegalArgumentException("flightservice.book_batch_size is at most " + MAX_BOOK_BATCH + ": "
+                                         + bookBatchSize);
+    if (bookBatchSize > 0) {
+      long bookBatchWait = Long.parseLong(configProps.getProperty("flightservice.book_batch_wait_ms", "0"));
+      bookingBatcher = new BookingBatcher(bookBatchSize, bookBatchWait, this::bookBatch);
+      bookingBatcher.start();
+    }
+  }
+
+  public void close() throws Exception
+  {
+    if (bookingBatcher != null)
+      bookingBatcher.close();
+    if (seatInventory != null)
+      seatInventory.close();
+    if (reservationIds != null)
+      reservationIds.close();
+    pool.close();
+    if (tracer != null)
+      tracer.close();
+  }
+
+  @Override
+  public void appendStats(Appendable out) throws IOException
+  {
+    if (tracer != null)
+      tracer.appendTo(out);
+  }
+
+  /**
+   * @return the runner all transactions go through, with its retry and abort counts
+   */
+  public TransactionRunner getTransactionRunner()
+  {
+    return runner;
+  }
+
+  public void clear() throws SQLException
+  {
+    if (seatInventory != null)
+      seatInventory.clear();
+    runner.run(c -> {
+      Statement clear = c.conn.createStatement();
+      if (reservationLegs)
+        clear.executeUpdate("DELETE FROM ReservationLegs");
+      clear.executeUpdate("DELETE FROM Reservations");
+      clear.executeUpdate("DELETE FROM Users");
+      clear.executeUpdate("DELETE FROM Capacities");
+      clear.executeUpdate("DELETE FROM ReserveCount");
+      clear.close();
+      return null;
+    });
+    reservationIds.reset();
+  }
+
+  public boolean login(String username, String password) throws SQLException
+  {
+    return runner.run(TransactionMetrics.Type.LOGIN, c -> {
+      c.getUserStatement.clearParameters();
+      c.getUserStatement.setString(1, username);
+      c.getUserStatement.setString(2, password);
+      ResultSet results = c.getUserStatement.executeQuery();
+      boolean exists = results.next();
+      results.close();
+      return exists;
+    });
+  }
+
+  public boolean createUser(String username, String password, int balance) throws SQLException
+  {
+    return runner.run(TransactionMetrics.Type.CREATE, c -> {
+      c.getUserStatement2.clearParameters();
+      c.getUserStatement2.setString(1,username);
+      c.getUserStatement2.setString(2,password);
+      ResultSet re = c.getUserStatement2.executeQuery();
+      //THERE ALREADY EXISTS A USER W SAME USERNAME
+      if (re.next()){
+        re.close();
+        c.rollbackTransaction();
+        return false;
+      }
+      re.close();
+      c.createUserStatement.clearParameters();
+      c.createUserStatement.setString(1,username);
+      c.createUserStatement.setString(2,password);
+      c.createUserStatement.setInt(3,balance);
+      c.createUserStatement.execute();
+      c.commitTransaction();
+      return true;
+    });
+  }
+
+  public List<Query.Itinerary> search(String originCity, String destinationCity, boolean directFlight,
+                                      int dayOfMonth, int numberOfItineraries, SearchCursor after)
+    throws SQLException
+  {
+    ItineraryRanker ranker;
+    if (routePlanner != null && !directFlight) {
+      ranker = new ItineraryRanker(numberOfItineraries);
+      routePlanner.search(ranker, originCity, destinationCity, dayOfMonth, after);
+    } else if (routeIndex != null) {
+      // flights are static, so the in-memory index answers the whole search
+      ranker = new ItineraryRanker(numberOfItineraries);
+      routeIndex.search(ranker, originCity, destinationCity, directFlight, dayOfMonth, after);
+    } else {
+      ranker = runner.runReadOnly(TransactionMetrics.Type.SEARCH,
+                                  c -> searchFlights(c, originCity, destinationCity, directFlight, dayOfMonth,
+                                                     numberOfItineraries, after));
+    }
+    return ranker.toSortedList();
+  }
+
+  /* runs DIRECT_SEARCH and INDIRECT_SEARCH, or their _AFTER forms past a cursor, keeping the
+     best numberOfItineraries results of both */
+  private ItineraryRanker searchFlights(PooledConnection c, String originCity, String destinationCity,
+                                        boolean directFlight, int dayOfMonth, int numberOfItineraries,
+                                        SearchCursor after)
+    throws SQLException
+  {
+    ItineraryRanker ranker = new ItineraryRanker(numberOfItineraries);
+
+    // direct flight data, fastest first
+    PreparedStatement direct = after == null ? c.directSearchStatement : c.directSearchAfterStatement;
+    direct.clearParameters();
+    direct.setInt(1, numberOfItineraries);
+    direct.setString(2, originCity);
+    direct.setString(3, destinationCity);
+    direct.setInt(4, dayOfMonth);
+    if (after != null) {
+      direct.setInt(5, after.time);
+      direct.setInt(6, after.time);
+      direct.setInt(7, after.fid1);
+    }
+
+    ResultSet oneHopResults = direct.executeQuery();
+
+    while (oneHopResults.next() && ranker.accepts(oneHopResults.getInt(TIME_COLUMN))) {
+      Query.Flight flight = parser(oneHopResults, true);
+      Query.Itinerary it = new Query.Itinerary();
+      it.f1 = flight;
+      it.f2 = null;
+      it.dayOfMonth = flight.dayOfMonth;
+      it.cost = flight.price;
+      ranker.offer(it);
+    } 
+    oneHopResults.close();
+
+    // one-stop flights compete with the direct ones for the same top-n slots;
+    // they also come fastest first, so stop once none of the rest can make the cut
+    if (!directFlight) {
+      PreparedStatement indirect = after == null ? c.indirectSearchStatement : c.indirectSearchAfterStatement;
+      indirect.clearParameters();
+      indirect.setInt(1, numberOfItineraries);
+      indirect.setString(2, originCity);
+      indirect.setString(3, destinationCity);
+      indirect.setInt(4, dayOfMonth);
+      if (after != null) {
+        indirect.setInt(5, after.time);
+        indirect.setInt(6, after.time);
+        indirect.setInt(7, after.fid1);
+        indirect.setInt(8, after.fid1);
+        indirect.setInt(9, after.fid2);
+      }
+
+      ResultSet twoHopResults = indirect.executeQuery();
+
+      while (twoHopResults.next()
+             && ranker.accepts(twoHopResults.getInt(TIME_COLUMN) + twoHopResults.getInt(TIME_COLUMN + OFFSET))){
+        Query.Flight flight1 = parser(twoHopResults, true);
+        Query.Flight flight2 = parser(twoHopResults, false);
+
+        Query.Itinerary it = new Query.Itinerary();
+        it.f1 = flight1;
+        it.f2 = flight2;
+        it.dayOfMonth = flight1.dayOfMonth; 
+        it.cost = flight1.price + flight2.price;
+        ranker.offer(it);
+      }
+      twoHopResults.close();
+    }
+    return ranker;
+  }
+
+  static Query.Flight parser(ResultSet results, boolean direct) throws SQLException {
+    int offset = 0;
+    if (!direct){
+      offset = OFFSET;
+    }
+    return parser(results, offset);
+  }
+
+  /* reads the Flights columns that start after the first {@code offset} columns of the row */
+  static Query.Flight parser(ResultSet results, int offset) throws SQLException {
+    Query.Flight flight = new Query.Flight();
+    flight.fid = results.getInt(1 + offset);
+    flight.dayOfMonth = results.getInt(3 + offset);
+    flight.carrier = NameDictionary.CARRIERS.code(results.getString(5 + offset));
+    flight.flightNum = results.getString(6 + offset);
+    flight.origin = NameDictionary.CITIES.code(results.getString(7 + offset));
+    flight.dest = NameDictionary.CITIES.code(results.getString(9 + offset));
+    flight.time = results.getInt(TIME_COLUMN + offset);
+    flight.capacity = results.getInt(17 + offset);
+    flight.price = results.getInt(18 + offset);
+    return flight;
+  }
+
+  public int book(String username, Query.Itinerary it) throws SQLException
+  {
+    // batches book two flights at most
+    if (bookingBatcher != null && it.more == null)
+      return bookingBatcher.book(username, it);
+    return runner.run(TransactionMetrics.Type.BOOK, c -> book(c, username, it));
+  }
+
+  /* books a batch in one transaction; if that fails, books each on its own, so a bad one fails alone */
+  private void bookBatch(List<BookingBatcher.Request> batch)
+  {
+    int[] outcomes;
+    try {
+      outcomes = runner.run(TransactionMetrics.Type.BOOK, c -> bookBatch(c, batch));
+    } catch (SQLException e) {
+      for (BookingBatcher.Request r : batch) {
+        try {
+          r.complete(runner.run(TransactionMetrics.Type.BOOK, c -> book(c, r.username, r.itinerary)));
+        } catch (SQLException failure) {
+          r.fail(failure);
+        }
+      }
+      return;
+    }
+    for (int i = 0; i < batch.size(); i++)
+      batch.get(i).complete(outcomes[i]);
+  }
+
+  /*
+   * one attempt at booking a batch, in order, as book() would one after the other: the days
+   * booked and the seats left are read once for all of it, and the seats and reservations
+   * written in JDBC batches
+   */
+  private int[] bookBatch(PooledConnection c, List<BookingBatcher.Request> batch) throws SQLException
+  {
+    int n = batch.size();
+    int[] outcomes = new int[n];
+    Map<String, Set<Integer>> days = bookedDays(c, batch);
+    Map<Integer, Integer> seats = seatInventory == null ? capacities(c, batch) : null;
+    Map<Integer, Integer> taken = new LinkedHashMap<>();
+    boolean[] held = new boolean[n]; // seats taken from seatInventory for bookings that have not committed yet
+    try {
+      int accepted = 0;
+      for (int i = 0; i < n; i++) {
+        Query.Itinerary it = batch.get(i).itinerary;
+        Set<Integer> booked = days.computeIfAbsent(batch.get(i).username.toLowerCase(Locale.ROOT),
+                                                   u -> new HashSet<>());
+        if (booked.contains(it.dayOfMonth)) {
+          outcomes[i] = SAME_DAY;
+          continue;
+        }
+        if (seatInventory != null) {
+          if (!seatInventory.reserve(it.f1, it.f2)) {
+            outcomes[i] = NO_SEATS;
+            continue;
+          }
+          held[i] = true;
+        } else {
+          if (seats.get(it.f1.fid) <= 0 || (it.f2 != null && seats.get(it.f2.fid) <= 0)) {
+            outcomes[i] = NO_SEATS;
+            continue;
+          }
+          seats.merge(it.f1.fid, -1, Integer::sum);
+          taken.merge(it.f1.fid, 1, Integer::sum);
+          if (it.f2 != null) {
+            seats.merge(it.f2.fid, -1, Integer::sum);
+            taken.merge(it.f2.fid, 1, Integer::sum);
+          }
+        }
+        booked.add(it.dayOfMonth);
+        accepted++;
+      }
+
+      if (accepted > 0) {
+        if (!taken.isEmpty()) {
+          c.insertCapacityStatement.clearParameters();
+          for (int fid : taken.keySet()) {
+            c.insertCapacityStatement.setInt(1, fid);
+            c.insertCapacityStatement.addBatch();
+          }
+          c.insertCapacityStatement.executeBatch();
+          c.changeCapacityStatement.clearParameters();
+          for (Map.Entry<Integer, Integer> e : taken.entrySet()) {
+            c.changeCapacityStatement.setInt(1, -e.getValue());
+            c.changeCapacityStatement.setInt(2, e.getKey());
+            c.changeCapacityStatement.addBatch();
+          }
+          c.changeCapacityStatement.executeBatch();
+        }
+
+        int[] rids = reservationIds.next(c, accepted);
+        int next = 0;
+        c.insertReservationStatement.clearParameters();
+        for (int i = 0; i < n; i++) {
+          if (outcomes[i] != 0)
+            continue;
+          Query.Itinerary it = batch.get(i).itinerary;
+          outcomes[i] = rids[next++];
+          c.insertReservationStatement.setInt(1, outcomes[i]);
+          c.insertReservationStatement.setInt(2, it.f1.fid);
+          c.insertReservationStatement.setInt(3, it.fid2());
+          c.insertReservationStatement.setString(4, batch.get(i).username);
+          c.insertReservationStatement.setInt(5, 0);
+          c.insertReservationStatement.setInt(6, it.cost);
+          c.insertReservationStatement.setInt(7, it.f1.dayOfMonth);
+          c.insertReservationStatement.addBatch();
+        }
+        c.insertReservationStatement.executeBatch();
+      }
+      c.commitTransaction();
+      for (int i = 0; i < n; i++) {
+        if (held[i]) {
+          Query.Itinerary it = batch.get(i).itinerary;
+          seatInventory.booked(it.f1.fid, it.fid2());
+          held[i] = false;
+        }
+      }
+      return outcomes;
+    } finally {
+      for (int i = 0; i < n; i++) {
+        if (held[i]) {
+          Query.Itinerary it = batch.get(i).itinerary;
+          seatInventory.undo(it.f1.fid, it.fid2());
+        }
+      }
+    }
+  }
+
+  /* the days each user of the batch has reservations on, by lower-cased username */
+  private static Map<String, Set<Integer>> bookedDays(PooledConnection c, List<BookingBatcher.Request> batch)
+    throws SQLException
+  {
+    Set<String> users = new HashSet<>();
+    for (BookingBatcher.Request r : batch)
+      users.add(r.username);
+    Map<String, Set<Integer>> days = new HashMap<>();
+    try (PreparedStatement s = c.conn.prepareStatement(
+           "SELECT usr, day FROM Reservations WHERE usr IN (" + placeholders(users.size()) + ");")) {
+      int p = 1;
+      for (String user : users)
+        s.setString(p++, user);
+      ResultSet results = s.executeQuery();
+      while (results.next())
+        days.computeIfAbsent(results.getString("usr").toLowerCase(Locale.ROOT), u -> new HashSet<>())
+            .add(results.getInt("day"));
+      results.close();
+    }
+    return days;
+  }
+
+  /* the seats left on every flight of the batch, from Flights for those without a Capacities row */
+  private static Map<Integer, Integer> capacities(PooledConnection c, List<BookingBatcher.Request> batch)
+    throws SQLException
+  {
+    Set<Integer> fids = new HashSet<>();
+    for (BookingBatcher.Request r : batch) {
+      fids.add(r.itinerary.f1.fid);
+      if (r.itinerary.f2 != null)
+        fids.add(r.itinerary.f2.fid);
+    }
+    Map<Integer, Integer> seats = new HashMap<>();
+    try (PreparedStatement s = c.conn.prepareStatement(
+           "SELECT F.fid, COALESCE(C.capacity, F.capacity) AS capacity "
+           + "FROM Flights F LEFT OUTER JOIN Capacities C ON C.fid = F.fid "
+           + "WHERE F.fid IN (" + placeholders(fids.size()) + ");")) {
+      int p = 1;
+      for (int fid : fids)
+        s.setInt(p++, fid);
+      ResultSet results = s.executeQuery();
+      while (results.next())
+        seats.put(results.getInt("fid"), results.getInt("capacity"));
+      results.close();
+    }
+    return seats;
+  }
+
+  private static String placeholders(int n)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < n; i++)
+      sb.append(i == 0 ? "?" : ",?");
+    return sb.toString();
+  }
+
+  /* one attempt at booking: seats taken from seatInventory are given back unless it commits */
+  private int book(PooledConnection c, String username, Query.Itinerary it) throws SQLException
+  {
+    c.checkReserveStatement.clearParameters();
+    c.checkReserveStatement.setString(1, username);
+    ResultSet result = c.checkReserveStatement.executeQuery();
+    while (result.next()) {
+      int bookedDay = result.getInt("day");
+
+      if (it.dayOfMonth == bookedDay) {
+        result.close();
+        c.rollbackTransaction();
+        return SAME_DAY;
+      }
+    }
+    
+    result.close();
+
+    boolean seatsHeld = false; // seats taken from seatInventory for a booking that has not committed yet
+    try {
+      // check and take a seat on every flight of the itinerary
+      if (seatInventory != null) {
+        if (!seatInventory.reserve(it)) {
+          c.rollbackTransaction();
+          return NO_SEATS;
+        }
+        seatsHeld = true;
+      } else {
+        for (int leg = 0; leg < it.legs(); leg++) {
+          if (capacity(c, it.leg(leg).fid) == 0) {
+            c.rollbackTransaction();
+            return NO_SEATS;
+          }
+        }
+        for (int leg = 0; leg < it.legs(); leg++)
+          takeSeat(c, it.leg(leg).fid);
+      }
+
+      // update reservation
+      int rid = reservationIds.next(c);
+
+      c.insertReservationStatement.clearParameters();
+      c.insertReservationStatement.setInt(1, rid);
+      c.insertReservationStatement.setInt(2, it.f1.fid);
+      if (it.f2 != null)
+        c.insertReservationStatement.setInt(3, it.f2.fid);
+      else 
+        c.insertReservationStatement.setInt(3, -1);
+      c.insertReservationStatement.setString(4, username);
+      c.insertReservationStatement.setInt(5, 0);
+      c.insertReservationStatement.setInt(6, it.cost);
+      c.insertReservationStatement.setInt(7, it.f1.dayOfMonth);
+      c.insertReservationStatement.executeUpdate();
+      for (int leg = 2; leg < it.legs(); leg++) {
+        PreparedStatement insertLeg = c.insertReservationLegStatement();
+        insertLeg.clearParameters();
+        insertLeg.setInt(1, rid);
+        insertLeg.setInt(2, leg + 1);
+        insertLeg.setInt(3, it.leg(leg).fid);
+        insertLeg.executeUpdate();
+      }
+      c.commitTransaction();
+      if (seatsHeld) {
+        seatInventory.booked(it.f1.fid, it.fid2());
+        for (int leg = 2; leg < it.legs(); leg++)
+          seatInventory.booked(it.leg(leg).fid, -1);
+        seatsHeld = false;
+      }
+      return rid;
+    } finally {
+      if (seatsHeld) {
+        seatInventory.undo(it.f1.fid, it.fid2());
+        for (int leg = 2; leg < it.legs(); leg++)
+          seatInventory.undo(it.leg(leg).fid, -1);
+      }
+    }
+  }
+
+  /* remaining seats of a flight; its Capacities row is created from Flights on first use */
+  private int capacity(PooledConnection c, int fid) throws SQLException
+  {
+    int capacity;
+    c.checkFlightCapacityStatement2.clearParameters();
+    c.checkFlightCapacityStatement2.setInt(1, fid);
+    ResultSet re = c.checkFlightCapacityStatement2.executeQuery();
+    if (re.isBeforeFirst()) {
+      re.next();
+      capacity = re.getInt("capacity");
+    } else {
+      c.insertCapacityStatement.clearParameters();
+      c.insertCapacityStatement.setInt(1, fid);
+      c.insertCapacityStatement.executeUpdate();
+      c.getCapacityStatement.clearParameters();
+      c.getCapacityStatement.setInt(1, fid);
+      ResultSet capacityresult = c.getCapacityStatement.executeQuery();
+      capacityresult.next();
+      capacity = capacityresult.getInt("capacity");
+      capacityresult.close();
+    }
+    re.close();
+    return capacity;
+  }
+
+  private void takeSeat(PooledConnection c, int fid) throws SQLException
+  {
+    c.setCapacityStatement.clearParameters();
+    c.setCapacityStatement.setInt(1, fid);
+    c.setCapacityStatement.setInt(2, fid);
+    c.setCapacityStatement.executeUpdate();
+  }
+
+  public List<Query.Reservation> reservations(String username) throws SQLException
+  {
+    return runner.runReadOnly(TransactionMetrics.Type.RESERVATIONS, c -> {
+      c.getReservationStatement.clearParameters();
+      c.getReservationStatement.setString(1, username);
+      ResultSet resever = c.getReservationStatement.executeQuery();
+      List<Query.Reservation> found = new ArrayList<>();
+      while(resever.next()) {
+        Query.Reservation r = new Query.Reservation();
+        r.rid = resever.getInt("rid");
+        r.paid = resever.getInt("paid") == 1;
+        r.f1 = parser(resever, RESERVATION_OFFSET);
+        // the second flight's columns are all null when fid2 is -1
+        resever.getInt(1 + RESERVATION_OFFSET + OFFSET);
+        if (!resever.wasNull())
+          r.f2 = parser(resever, RESERVATION_OFFSET + OFFSET);
+        found.add(r);
+      }
+      resever.close();
+      if (reservationLegs)
+        addLegs(c, username, found);
+      c.commitTransaction();
+      return found;
+    });
+  }
+
+  /* attaches the flights after the second to the reservations, which are by ID */
+  private void addLegs(PooledConnection c, String username, List<Query.Reservation> reservations)
+    throws SQLException
+  {
+    PreparedStatement getLegs = c.getReservationLegsStatement();
+    getLegs.clearParameters();
+    getLegs.setString(1, username);
+    ResultSet legs = getLegs.executeQuery();
+    int i = 0;
+    List<Query.Flight> more = new ArrayList<>();
+    boolean any = legs.next();
+    while (any) {
+      int rid = legs.getInt(1);
+      more.clear();
+      do {
+        more.add(parser(legs, 1));
+        any = legs.next();
+      } while (any && legs.getInt(1) == rid);
+      while (i < reservations.size() && reservations.get(i).rid != rid)
+        i++;
+      if (i < reservations.size())
+        reservations.get(i).more = more.toArray(new Query.Flight[0]);
+    }
+    legs.close();
+  }
+
+  /* the fids of the flights of a reservation after its second */
+  private static List<Integer> legs(PooledConnection c, int reservationId) throws SQLException
+  {
+    PreparedStatement getLegs = c.getOneReservationLegsStatement();
+    getLegs.clearParameters();
+    getLegs.setInt(1, reservationId);
+    ResultSet results = getLegs.executeQuery();
+    List<Integer> fids = new ArrayList<>();
+    while (results.next())
+      fids.add(results.getInt(1));
+    results.close();
+    return fids;
+  }
+
+  public boolean cancel(String username, int reservationId) throws SQLException
+  {
+    if (payCancelBatches)
+      return cancelBatch(username, reservationId);
+    return runner.run(TransactionMetrics.Type.CANCEL, c -> {
+      c.getOneReservation.clearParameters();
+      c.getOneReservation.setInt(1, reservationId);
+      c.getOneReservation.setString(2, username);
+      ResultSet re = c.getOneReservation.executeQuery();
+      if (re.isBeforeFirst()) {
+        re.next();
+        int pid = re.getInt("paid");
+        int fid1 = re.getInt("fid1");
+        int fid2 = re.getInt("fid2");
+        List<Integer> more = reservationLegs ? legs(c, reservationId) : List.of();
+
+        // add capacity, unless the seat inventory gives the seats back after commit
+        if (seatInventory == null) {
+          c.addCapacityStatement.clearParameters();
+          c.addCapacityStatement.setInt(1, fid1);
+          c.addCapacityStatement.setInt(2, fid1);
+          c.addCapacityStatement.executeUpdate();
+          if (fid2 != -1) {
+            c.addCapacityStatement.clearParameters();
+            c.addCapacityStatement.setInt(1, fid2);
+            c.addCapacityStatement.setInt(2, fid2);
+            c.addCapacityStatement.executeUpdate();
+          }
+          for (int fid : more) {
+            c.addCapacityStatement.clearParameters();
+            c.addCapacityStatement.setInt(1, fid);
+            c.addCapacityStatement.setInt(2, fid);
+            c.addCapacityStatement.executeUpdate();
+          }
+        }
+        // refund
+        if (pid == 1) {
+          int money = re.getInt("cost");
+          c.addMoneyStatament.clearParameters();
+          c.addMoneyStatament.setString(1, username);
+          c.addMoneyStatament.setInt(2, money);
+          c.addMoneyStatament.setString(3, username);
+          c.addMoneyStatament.executeUpdate();
+        }
+        re.close();
+        // delete reservation
+        if (!more.isEmpty()) {
+          PreparedStatement deleteLegs = c.deleteReservationLegsStatement();
+          deleteLegs.clearParameters();
+          deleteLegs.setInt(1, reservationId);
+          deleteLegs.executeUpdate();
+        }
+        c.deleteReservationStatement.clearParameters();
+        c.deleteReservationStatement.setInt(1, reservationId);
+        c.deleteReservationStatement.executeUpdate();
+        c.commitTransaction();
+        if (seatInventory != null) {
+          seatInventory.canceled(fid1, fid2);
+          for (int fid : more)
+            seatInventory.canceled(fid, -1);
+        }
+        return true;
+      }
+      re.close();
+      c.rollbackTransaction();
+      return false;
+    });
+  }
+
+  public Payment pay(String username, int reservationId) throws SQLException
+  {
+    if (payCancelBatches)
+      return payBatch(username, reservationId);
+    return runner.run(TransactionMetrics.Type.PAY, c -> {
+      c.getPaidStatusStatement.clearParameters();
+      c.getPaidStatusStatement.setInt(1, reservationId);
+      c.getPaidStatusStatement.setString(2, username);
+
+      ResultSet p = c.getPaidStatusStatement.executeQuery();
+      if (!p.isBeforeFirst()) {
+        p.close();
+        c.rollbackTransaction();
+        return Payment.NOT_FOUND;
+      } else {
+        p.next();
+        int paid = p.getInt("paid");
+        if (paid == 1) {
+          p.close();
+          c.rollbackTransaction();
+          return Payment.NOT_FOUND;
+        } 
+
+        int cost = p.getInt("cost");
+
+        c.getBalanceStatement.clearParameters();
+        c.getBalanceStatement.setString(1, username);
+        ResultSet re = c.getBalanceStatement.executeQuery();
+        re.next();
+        int balance = re.getInt("balance");
+        if (cost > balance) {
+          p.close();
+          re.close();
+          c.rollbackTransaction();
+          return Payment.insufficient(balance, cost);
+        } else {
+          c.spendMoneyStatament.clearParameters();
+          c.spendMoneyStatament.setString(1, username);
+          c.spendMoneyStatament.setInt(2, cost);
+          c.spendMoneyStatament.setString(3, username);
+          c.spendMoneyStatament.executeUpdate();
+
+          c.setPaidStatusStatement.clearParameters();
+          c.setPaidStatusStatement.setInt(1, 1);
+          c.setPaidStatusStatement.setInt(2, reservationId);
+          c.setPaidStatusStatement.setString(3, username);
+          c.setPaidStatusStatement.executeUpdate();
+          c.commitTransaction();
+          return Payment.paid(balance - cost, cost);
+        }
+      }
+    });
+  }
+
+  private boolean cancelBatch(String username, int reservationId) throws SQLException
+  {
+    return runner.runBatch(TransactionMetrics.Type.CANCEL, c -> {
+      PreparedStatement cancel = c.cancelBatchStatement();
+      cancel.clearParameters();
+      cancel.setInt(1, reservationId);
+      cancel.setString(2, username);
+      cancel.setInt(3, seatInventory == null ? 1 : 0);
+      cancel.setInt(4, reservationLegs ? 1 : 0);
+      ResultSet canceled = batchResults(cancel);
+      canceled.next();
+      int fid1 = canceled.getInt("fid1");
+      boolean found = !canceled.wasNull();
+      int fid2 = canceled.getInt("fid2");
+      canceled.close();
+      List<Integer> more = new ArrayList<>();
+      if (cancel.getMoreResults()) {
+        ResultSet legs = cancel.getResultSet();
+        while (legs.next())
+          more.add(legs.getInt("fid"));
+        legs.close();
+      }
+      if (found && seatInventory != null) {
+        seatInventory.canceled(fid1, fid2);
+        for (int fid : more)
+          seatInventory.canceled(fid, -1);
+      }
+      return found;
+    });
+  }
+
+  private Payment payBatch(String username, int reservationId) throws SQLException
+  {
+    return runner.runBatch(TransactionMetrics.Type.PAY, c -> {
+      PreparedStatement pay = c.payBatchStatement();
+      pay.clearParameters();
+      pay.setInt(1, reservationId);
+      pay.setString(2, username);
+      ResultSet paid = batchResults(pay);
+      paid.next();
+      int status = paid.getInt("status");
+      int balance = paid.getInt("balance");
+      int cost = paid.getInt("cost");
+      paid.close();
+      switch (status) {
+        case PAY_PAID:
+          return Payment.paid(balance, cost);
+        case PAY_INSUFFICIENT:
+          return Payment.insufficient(balance, cost);
+        default:
+          return Payment.NOT_FOUND;
+      }
+    });
+  }
+
+  /* the result set of a statement batch, past the update counts of the statements before it */
+  private static ResultSet batchResults(PreparedStatement batch) throws SQLException
+  {
+    boolean isResultSet = batch.execute();
+    while (!isResultSet) {
+      if (batch.getUpdateCount() == -1)
+        throw new SQLException("Statement batch returned no result set");
+      isResultSet = batch.getMoreResults();
+    }
+    return batch.getResultSet();
+  }
+}
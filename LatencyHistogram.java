@@ -0,0 +1,106 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent histogram of latencies in microseconds, in the style of HdrHistogram.
+ *
+ * Values below {@code 2 * SUB_BUCKETS} are counted exactly; above that every power of two
+ * is split into {@code SUB_BUCKETS} equal buckets, so any recorded value is reported within
+ * 1/SUB_BUCKETS (under 1%) of itself, from microseconds up to hours, in a few thousand counters.
+ * Recording is lock-free and may happen from any number of threads; the count, sum and max
+ * are striped across cells, so threads recording at once do not contend on them.
+ */
+public class LatencyHistogram
+{
+  private static final int SUB_BUCKET_BITS = 7;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS; // 128
+
+  // values up to 2^MAX_BITS - 1 microseconds, about 9 hours
+  private static final int MAX_BITS = 45;
+  private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+  private final AtomicLongArray counts = new AtomicLongArray(index(MAX_VALUE) + 1);
+  private final LongAdder total = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+  /* exact below 2 * SUB_BUCKETS, then SUB_BUCKETS buckets per power of two */
+  static int index(long value)
+  {
+    if (value < 2 * SUB_BUCKETS)
+      return (int) value;
+    int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    int sub = (int) (value >>> shift) - SUB_BUCKETS;
+    return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + sub;
+  }
+
+  /* the highest value counted in a bucket */
+  static long highestValue(int index)
+  {
+    if (index < 2 * SUB_BUCKETS)
+      return index;
+    int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+    long sub = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+    return ((sub + 1) << shift) - 1;
+  }
+
+  public void record(long micros)
+  {
+    long v = Math.max(0, Math.min(micros, MAX_VALUE));
+    counts.incrementAndGet(index(v));
+    total.increment();
+    sum.add(v);
+    max.accumulate(v);
+  }
+
+  public long count()
+  {
+    return total.sum();
+  }
+
+  public long max()
+  {
+    return max.get();
+  }
+
+  public double mean()
+  {
+    long n = total.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the value at or below which that share of the recorded values falls, 0 if empty
+   */
+  public long percentile(double percentile)
+  {
+    long n = total.sum();
+    if (n == 0)
+      return 0;
+    long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= rank)
+        return Math.min(highestValue(i), max());
+    }
+    return max();
+  }
+
+  /**
+   * Adds the values recorded in another histogram to this one.
+   */
+  public void add(LatencyHistogram other)
+  {
+    for (int i = 0; i < counts.length(); i++) {
+      long c = other.counts.get(i);
+      if (c != 0)
+        counts.addAndGet(i, c);
+    }
+    total.add(other.total.sum());
+    sum.add(other.sum.sum());
+    max.accumulate(other.max.get());
+  }
+}
@@ -0,0 +1,344 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Drives the flight service with many concurrent sessions and reports how it held up.
+ *
+ * Every session creates and logs in its own user, then either replays a script (one
+ * command per line, {@code $user} and {@code $session} substituted) or runs {@code -ops}
+ * commands drawn from a weighted mix of search, book, pay, reservations and cancel, with
+ * an exponentially distributed think time between commands. Commands go through
+ * {@link FlightService#execute} on a shared {@link Query}, exactly as the menu runs them.
+ *
+ * Afterwards it prints the throughput and latency percentiles of each command and checks
+ * that no flight is overbooked, Capacities matches Reservations, no reservation ID was
+ * handed out twice (counting the reservations canceled since) and every user's balance plus
+ * what they paid adds up to what they started with.
+ *
+ * usage: java LoadDriver [-config file] [-sessions n] [-ops n] [-think ms] [-seed n]
+ *        [-mix search=50,book=20,pay=10,reservations=15,cancel=5] [-script file]
+ */
+public class LoadDriver
+{
+  private static final int INITIAL_BALANCE = 1000000;
+  private static final Pattern RESERVATION_ID = Pattern.compile("^Booked flight\\(s\\), reservation ID: (\\d+)");
+  private static final Pattern ITINERARY = Pattern.compile("(?m)^Itinerary \\d+:");
+
+  private String configFile = FlightService.DBCONFIG_FILENAME;
+  private int sessions = 16;
+  private int ops = 100;
+  private long thinkMillis = 0;
+  private long seed = System.nanoTime();
+  private String scriptFile;
+  private final Map<String, Integer> mix = new LinkedHashMap<>();
+
+  private Query q;
+  private List<String> cities = new ArrayList<>();
+  private List<String> script;
+  private final String userPrefix = "ld" + Long.toString(System.currentTimeMillis() % 1000000000L, 36);
+
+  private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+  private final Map<String, AtomicLong> failures = new ConcurrentHashMap<>();
+  private final Set<Integer> reservationIds = ConcurrentHashMap.newKeySet(); // every one booked, canceled or not
+  private final AtomicLong reusedIds = new AtomicLong();
+
+  public static void main(String[] args) throws Exception
+  {
+    LoadDriver driver = new LoadDriver();
+    driver.parse(args);
+    System.exit(driver.run() ? 0 : 1);
+  }
+
+  private void parse(String[] args) throws Exception
+  {
+    mix.put("search", 50);
+    mix.put("book", 20);
+    mix.put("pay", 10);
+    mix.put("reservations", 15);
+    mix.put("cancel", 5);
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      String value = args[i + 1];
+      switch (args[i]) {
+        case "-config": configFile = value; break;
+        case "-sessions": sessions = Integer.parseInt(value); break;
+        case "-ops": ops = Integer.parseInt(value); break;
+        case "-think": thinkMillis = Long.parseLong(value); break;
+        case "-seed": seed = Long.parseLong(value); break;
+        case "-script": scriptFile = value; break;
+        case "-mix":
+          mix.clear();
+          for (String part : value.split(",")) {
+            String[] kv = part.split("=");
+            mix.put(kv[0].trim(), Integer.parseInt(kv[1].trim()));
+          }
+          break;
+        default:
+          throw new IllegalArgumentException("unknown option " + args[i]);
+      }
+    }
+    if (scriptFile != null) {
+      script = new ArrayList<>();
+      try (BufferedReader r = new BufferedReader(new FileReader(scriptFile))) {
+        String line;
+        while ((line = r.readLine()) != null)
+          if (!line.trim().isEmpty())
+            script.add(line);
+      }
+    }
+  }
+
+  /**
+   * @return true if every invariant held
+   */
+  public boolean run() throws Exception
+  {
+    q = new Query(configFile);
+    q.openConnection();
+    q.prepareStatements();
+    if (q.getStore() instanceof MemoryFlightStore) {
+      // the memory store may not have a database at all
+      cities.addAll(((MemoryFlightStore) q.getStore()).originCities());
+      if (cities.isEmpty())
+        throw new IllegalStateException("no flights");
+      drive();
+      System.out.println("other invariants not checked: the memory store keeps nothing in the database");
+      return checkReservationIds();
+    }
+    try (Connection check = openCheckConnection()) {
+      loadCities(check);
+      drive();
+      return checkInvariants(check);
+    }
+  }
+
+  /* runs every session to the end, then reports */
+  private void drive() throws Exception
+  {
+    long start = System.nanoTime();
+    ExecutorService clients = FlightServer.threadPerTaskExecutor();
+    try {
+      for (int i = 0; i < sessions; i++) {
+        final int id = i;
+        clients.submit(() -> {
+          runSession(id, new Random(seed + id));
+          return null;
+        });
+      }
+    } finally {
+      FlightServer.awaitTermination(clients);
+    }
+    long elapsed = System.nanoTime() - start;
+    q.closeConnection(); // writes back anything the service still holds in memory
+
+    report(elapsed);
+  }
+
+  private Connection openCheckConnection() throws SQLException
+  {
+    return DriverManager.getConnection(q.getProperty("flightservice.url", null),
+            q.getProperty("flightservice.sqlazure_username", null),
+            q.getProperty("flightservice.sqlazure_password", null));
+  }
+
+  private void loadCities(Connection c) throws SQLException
+  {
+    try (Statement s = c.createStatement();
+         ResultSet results = s.executeQuery("SELECT DISTINCT origin_city FROM Flights")) {
+      while (results.next())
+        cities.add(results.getString(1));
+    }
+    if (cities.isEmpty())
+      throw new IllegalStateException("Flights is empty");
+  }
+
+  private void runSession(int id, Random random)
+  {
+    Session session = q.newSession();
+    String user = userPrefix + "u" + id;
+    execute(session, "create " + user + " pw " + INITIAL_BALANCE);
+    execute(session, "login " + user + " pw");
+
+    if (script != null) {
+      for (String line : script) {
+        think(random);
+        recordBooking(execute(session, line.replace("$user", user).replace("$session", String.valueOf(id))));
+      }
+      return;
+    }
+
+    List<Integer> booked = new ArrayList<>(); // reservation IDs of this session not canceled yet
+    int itineraries = 0;
+    for (int i = 0; i < ops; i++) {
+      think(random);
+      String command = pick(random);
+      switch (command) {
+        case "search": {
+          String from = cities.get(random.nextInt(cities.size()));
+          String to = cities.get(random.nextInt(cities.size()));
+          String response = execute(session, "search \"" + from + "\" \"" + to + "\" "
+                  + random.nextInt(2) + " " + (1 + random.nextInt(31)) + " " + (1 + random.nextInt(10)));
+          itineraries = 0;
+          Matcher m = ITINERARY.matcher(response);
+          while (m.find())
+            itineraries++;
+          break;
+        }
+        case "book": {
+          int rid = recordBooking(execute(session, "book " + (itineraries == 0 ? 0 : random.nextInt(itineraries))));
+          if (rid > 0)
+            booked.add(rid);
+          break;
+        }
+        case "pay":
+          execute(session, "pay " + (booked.isEmpty() ? 0 : booked.get(random.nextInt(booked.size()))));
+          break;
+        case "cancel":
+          if (booked.isEmpty())
+            execute(session, "cancel 0");
+          else
+            execute(session, "cancel " + booked.remove(random.nextInt(booked.size())));
+          break;
+        default:
+          execute(session, command);
+      }
+    }
+  }
+
+  /**
+   * Remembers the reservation ID of a booking, counting it if an earlier booking got it too.
+   *
+   * @return the ID, or -1 if the response is not a booking
+   */
+  private int recordBooking(String response)
+  {
+    Matcher m = RESERVATION_ID.matcher(response);
+    if (!m.find())
+      return -1;
+    int rid = Integer.parseInt(m.group(1));
+    if (!reservationIds.add(rid))
+      reusedIds.incrementAndGet();
+    return rid;
+  }
+
+  private String pick(Random random)
+  {
+    int total = 0;
+    for (int w : mix.values())
+      total += w;
+    int r = random.nextInt(total);
+    for (Map.Entry<String, Integer> e : mix.entrySet()) {
+      r -= e.getValue();
+      if (r < 0)
+        return e.getKey();
+    }
+    throw new IllegalStateException("empty mix");
+  }
+
+  private void think(Random random)
+  {
+    if (thinkMillis <= 0)
+      return;
+    try {
+      Thread.sleep((long) (-thinkMillis * Math.log(1 - random.nextDouble())));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private String execute(Session session, String command)
+  {
+    String name = FlightService.tokenize(command)[0];
+    long start = System.nanoTime();
+    String response = FlightService.execute(q, session, command);
+    long micros = (System.nanoTime() - start) / 1000;
+    latencies.computeIfAbsent(name, k -> new LatencyHistogram()).record(micros);
+    if (response.contains("ailed") || response.startsWith("Error"))
+      failures.computeIfAbsent(name, k -> new AtomicLong()).incrementAndGet();
+    return response;
+  }
+
+  private void report(long elapsedNanos)
+  {
+    double seconds = elapsedNanos / 1e9;
+    System.out.printf("%d sessions in %.2f s%n", sessions, seconds);
+    System.out.printf("%-13s %8s %6s %9s %9s %9s %9s %9s %9s%n",
+            "command", "count", "failed", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+    LatencyHistogram all = new LatencyHistogram();
+    for (Map.Entry<String, LatencyHistogram> e : latencies.entrySet()) {
+      AtomicLong failed = failures.get(e.getKey());
+      print(e.getKey(), e.getValue(), failed == null ? 0 : failed.get(), seconds);
+      all.add(e.getValue());
+    }
+    long failed = 0;
+    for (AtomicLong f : failures.values())
+      failed += f.get();
+    print("all", all, failed, seconds);
+  }
+
+  private static void print(String name, LatencyHistogram h, long failed, double seconds)
+  {
+    System.out.printf("%-13s %8d %6d %9.1f %9.2f %9.2f %9.2f %9.2f %9.2f%n", name, h.count(), failed,
+            h.count() / seconds, h.percentile(50) / 1000.0, h.percentile(90) / 1000.0,
+            h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0, h.max() / 1000.0);
+  }
+
+  private boolean checkInvariants(Connection c) throws SQLException
+  {
+    boolean ok = true;
+    // the seats taken on a flight by reservations, with the flights after their second if kept
+    String taken = "(SELECT COUNT(*) FROM Reservations R WHERE R.fid1 = F.fid OR R.fid2 = F.fid)";
+    if (new SchemaManager(c).hasTable("ReservationLegs"))
+      taken += " + (SELECT COUNT(*) FROM ReservationLegs L WHERE L.fid = F.fid)";
+    try (Statement s = c.createStatement()) {
+      ResultSet results = s.executeQuery("SELECT COUNT(*) FROM Flights F WHERE F.capacity < " + taken);
+      results.next();
+      ok &= check("no flight overbooked", results.getInt(1), 0);
+      results.close();
+
+      results = s.executeQuery(
+              "SELECT COUNT(*) FROM Capacities C JOIN Flights F ON F.fid = C.fid WHERE C.capacity <> "
+              + "F.capacity - (" + taken + ")");
+      results.next();
+      ok &= check("Capacities matches Reservations", results.getInt(1), 0);
+      results.close();
+
+      results = s.executeQuery(
+              "SELECT COUNT(*) FROM Users U WHERE U.username LIKE '" + userPrefix + "u%' AND U.balance + "
+              + "(SELECT COALESCE(SUM(R.cost), 0) FROM Reservations R WHERE R.usr = U.username AND R.paid = 1) <> "
+              + INITIAL_BALANCE);
+      results.next();
+      ok &= check("balances reconcile", results.getInt(1), 0);
+      results.close();
+    }
+    return checkReservationIds() && ok;
+  }
+
+  /* Reservations cannot show it, as rid is its key and canceled rows are gone */
+  private boolean checkReservationIds()
+  {
+    return check("reservation IDs unique, canceled ones included", (int) reusedIds.get(), 0);
+  }
+
+  private static boolean check(String invariant, int violations, int expected)
+  {
+    boolean ok = violations == expected;
+    System.out.println((ok ? "OK   " : "FAIL ") + invariant + (ok ? "" : " (" + violations + " violations)"));
+    return ok;
+  }
+}
@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The flight store kept entirely in memory: nothing is written anywhere, and everything but
+ * the flights is gone when the process exits.
+ *
+ * Searches are answered by a {@link RouteIndex}. Each user is a monitor: book, pay, cancel and
+ * reservations run while holding it, so the transactions of one user are serialized just as
+ * SERIALIZABLE serializes them in the database, and transactions of different users never wait
+ * on each other. Seats are the only state users share; they are per-flight counters decided by
+ * compare-and-set and seeded lazily from Flights.capacity, as in {@link SeatInventory}.
+ * Usernames are compared case-insensitively, like the default collation of SQL Server.
+ * With flightservice.flights_file set, flights come from a CSV file and no database is needed.
+ */
+public class MemoryFlightStore implements FlightStore
+{
+  private final RouteIndex routes;
+  private final RoutePlanner planner; // null unless RoutePlanner.wanted
+  private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<Integer, AtomicInteger> seats = new ConcurrentHashMap<>();
+  private final AtomicInteger lastReservationId = new AtomicInteger();
+
+  private static final long FLIGHTS_CHUNK_BYTES = 64L << 20;
+
+  private static final class User
+  {
+    final String password;
+    int balance;
+    final TreeMap<Integer, Booking> reservations = new TreeMap<>();
+
+    User(String password, int balance)
+    {
+      this.password = password;
+      this.balance = balance;
+    }
+  }
+
+  private static final class Booking
+  {
+    final int rid;
+    final Query.Itinerary it;
+    boolean paid;
+
+    Booking(int rid, Query.Itinerary it)
+    {
+      this.rid = rid;
+      this.it = it;
+    }
+  }
+
+  /**
+   * @param flights the non-canceled flights; they are shared with the search results, not copied
+   */
+  public MemoryFlightStore(List<Query.Flight> flights)
+  {
+    this(flights, null);
+  }
+
+  /**
+   * @param planner what answers the searches that are not for direct flights only, or null
+   * for the one-stop searches of the route index
+   */
+  public MemoryFlightStore(List<Query.Flight> flights, RoutePlanner planner)
+  {
+    this.routes = RouteIndex.build(flights);
+    this.planner = planner;
+  }
+
+  /**
+   * Reads the non-canceled flights once: from the CSV file named by flightservice.flights_file
+   * (see {@link FlightCsv}), or else from the database configured in {@code configProps},
+   * through the snapshot named by flightservice.flights_snapshot if there is one.
+   */
+  public static List<Query.Flight> loadFlights(Properties configProps) throws Exception
+  {
+    String flightsFile = configProps.getProperty("flightservice.flights_file");
+    if (flightsFile != null)
+      return loadFlights(flightsFile);
+
+    Class.forName(configProps.getProperty("flightservice.jdbc_driver")).getDeclaredConstructor().newInstance();
+    try (Connection conn = DriverManager.getConnection(configProps.getProperty("flightservice.url"),
+                                                       configProps.getProperty("flightservice.sqlazure_username"),
+                                                       configProps.getProperty("flightservice.sqlazure_password"))) {
+      String snapshot = configProps.getProperty("flightservice.flights_snapshot");
+      if (snapshot != null)
+        return FlightSnapshot.load(Paths.get(snapshot), conn);
+
+      List<Query.Flight> flights = new ArrayList<>();
+      try (Statement load = conn.createStatement();
+           ResultSet results = load.executeQuery(RouteIndex.LOAD_FLIGHTS)) {
+        while (results.next())
+          flights.add(JdbcFlightStore.parser(results, true));
+      }
+      return flights;
+    }
+  }
+
+  static List<Query.Flight> loadFlights(String csvFile) throws IOException
+  {
+    List<Query.Flight> flights = new ArrayList<>();
+    try (FileChannel file = FileChannel.open(Paths.get(csvFile), StandardOpenOption.READ)) {
+      long[] bounds = FlightCsv.split(file, FLIGHTS_CHUNK_BYTES);
+      for (int region = 0; region + 1 < bounds.length; region++) {
+        long from = bounds[region];
+        FlightCsv csv = new FlightCsv(file.map(FileChannel.MapMode.READ_ONLY, from, bounds[region + 1] - from), from);
+        if (region == 0)
+          csv.skipHeader();
+        while (csv.next())
+          if (!csv.canceled())
+            flights.add(csv.flight());
+      }
+    }
+    return flights;
+  }
+
+  /**
+   * @return every city a flight leaves from
+   */
+  public List<String> originCities()
+  {
+    return routes.originCities();
+  }
+
+  public void prepare()
+  {
+  }
+
+  public void close()
+  {
+  }
+
+  public void clear()
+  {
+    users.clear();
+    seats.clear();
+    lastReservationId.set(0);
+  }
+
+  private static String key(String username)
+  {
+    return username.toLowerCase(Locale.ROOT);
+  }
+
+  public boolean login(String username, String password)
+  {
+    User user = users.get(key(username));
+    return user != null && user.password.equals(password);
+  }
+
+  public boolean createUser(String username, String password, int balance)
+  {
+    return users.putIfAbsent(key(username), new User(password, balance)) == null;
+  }
+
+  public List<Query.Itinerary> search(String originCity, String destinationCity, boolean directFlight,
+                                      int dayOfMonth, int numberOfItineraries, SearchCursor after)
+  {
+    ItineraryRanker ranker = new ItineraryRanker(numberOfItineraries);
+    if (planner != null && !directFlight)
+      planner.search(ranker, originCity, destinationCity, dayOfMonth, after);
+    else
+      routes.search(ranker, originCity, destinationCity, directFlight, dayOfMonth, after);
+    return ranker.toSortedList();
+  }
+
+  public int book(String username, Query.Itinerary it) throws SQLException
+  {
+    User user = user(username);
+    synchronized (user) {
+      for (Booking b : user.reservations.values())
+        if (b.it.dayOfMonth == it.dayOfMonth)
+          return SAME_DAY;
+
+      for (int leg = 0; leg < it.legs(); leg++) {
+        if (!take(it.leg(leg))) {
+          for (int taken = 0; taken < leg; taken++)
+            release(it.leg(taken).fid);
+          return NO_SEATS;
+        }
+      }
+      int rid = lastReservationId.incrementAndGet();
+      user.reservations.put(rid, new Booking(rid, it));
+      return rid;
+    }
+  }
+
+  public List<Query.Reservation> reservations(String username) throws SQLException
+  {
+    User user = user(username);
+    List<Query.Reservation> found = new ArrayList<>();
+    synchronized (user) {
+      for (Booking b : user.reservations.values()) {
+        Query.Reservation r = new Query.Reservation();
+        r.rid = b.rid;
+        r.paid = b.paid;
+        r.f1 = b.it.f1;
+        r.f2 = b.it.f2;
+        r.more = b.it.more;
+        found.add(r);
+      }
+    }
+    return found;
+  }
+
+  public Payment pay(String username, int reservationId) throws SQLException
+  {
+    User user = user(username);
+    synchronized (user) {
+      Booking b = user.reservations.get(reservationId);
+      if (b == null || b.paid)
+        return Payment.NOT_FOUND;
+      if (b.it.cost > user.balance)
+        return Payment.insufficient(user.balance, b.it.cost);
+      user.balance -= b.it.cost;
+      b.paid = true;
+      return Payment.paid(user.balance, b.it.cost);
+    }
+  }
+
+  public boolean cancel(String username, int reservationId) throws SQLException
+  {
+    User user = user(username);
+    synchronized (user) {
+      Booking b = user.reservations.remove(reservationId);
+      if (b == null)
+        return false;
+      if (b.paid)
+        user.balance += b.it.cost;
+      for (int leg = 0; leg < b.it.legs(); leg++)
+        release(b.it.leg(leg).fid);
+      return true;
+    }
+  }
+
+  /* the session logged in, so the user exists unless the store was cleared since */
+  private User user(String username) throws SQLException
+  {
+    User user = users.get(key(username));
+    if (user == null)
+      throw new SQLException("no such user: " + username);
+    return user;
+  }
+
+  private boolean take(Query.Flight f)
+  {
+    AtomicInteger counter = seats.computeIfAbsent(f.fid, fid -> new AtomicInteger(f.capacity));
+    while (true) {
+      int left = counter.get();
+      if (left <= 0)
+        return false;
+      if (counter.compareAndSet(left, left - 1))
+        return true;
+    }
+  }
+
+  /* a seat back on the flight's counter, unless clear() has dropped the counters since it was taken */
+  private void release(int fid)
+  {
+    AtomicInteger counter = seats.get(fid);
+    if (counter != null)
+      counter.incrementAndGet();
+  }
+}
@@ -0,0 +1,107 @@
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Dense int codes for names that repeat across flights: cities and carriers.
+ *
+ * Codes are handed out from 1 in the order names are first seen and never change, so a
+ * code can stand for its name in flights, index keys and cache keys; names are looked up
+ * again only to print them. Code 0 stands for a NULL column and prints as "null", as the
+ * name itself did before. Looking up a code or a name never blocks; adding a name takes a
+ * lock. Names are added as flights are read, whether at startup by the route index, the
+ * snapshot or the memory store or by a search; never from what clients type in, so the
+ * dictionaries hold the names in Flights and nothing else.
+ *
+ * Names that differ only in case have codes of their own, so that each prints as it was
+ * read, but share a folded code: the code of the first of them seen. Searches compare cities
+ * by folded code, as SQL Server's case-insensitive collation compares them by name.
+ */
+public final class NameDictionary
+{
+  static final NameDictionary CITIES = new NameDictionary();
+  static final NameDictionary CARRIERS = new NameDictionary();
+
+  static final int NONE = -1;
+  static final int NULL = 0;
+
+  private final ConcurrentHashMap<String, Integer> codes = new ConcurrentHashMap<>();
+  // folded codes by lower-cased name
+  private final ConcurrentHashMap<String, Integer> folded = new ConcurrentHashMap<>();
+  private volatile String[] names = new String[64]; // names[NULL] stays null
+  private volatile int[] folds = new int[64];
+  private int size = 1;
+
+  /**
+   * @return the code of {@code name}, adding it if it is new
+   */
+  public int code(String name)
+  {
+    if (name == null)
+      return NULL;
+    Integer code = codes.get(name);
+    if (code != null)
+      return code;
+    synchronized (this) {
+      code = codes.get(name);
+      if (code != null)
+        return code;
+      if (size == names.length) {
+        names = Arrays.copyOf(names, 2 * size);
+        folds = Arrays.copyOf(folds, 2 * size);
+      }
+      String lower = name.toLowerCase(Locale.ROOT);
+      Integer fold = folded.get(lower);
+      names[size] = name;
+      folds[size] = fold == null ? size : fold;
+      codes.put(name, size); // publishes the name and folded code along with its code
+      if (fold == null)
+        folded.put(lower, size);
+      return size++;
+    }
+  }
+
+  /**
+   * @return the code of {@code name}, or {@link #NONE} if it has none
+   */
+  public int find(String name)
+  {
+    if (name == null)
+      return NULL;
+    Integer code = codes.get(name);
+    return code == null ? NONE : code;
+  }
+
+  /**
+   * @return the folded code of {@code name} in any case, or {@link #NONE} if it has none
+   */
+  public int findFolded(String name)
+  {
+    if (name == null)
+      return NULL;
+    Integer code = folded.get(name.toLowerCase(Locale.ROOT));
+    return code == null ? NONE : code;
+  }
+
+  /**
+   * @return the folded code of {@code code}: the code of the first name seen that differs
+   * from its name only in case
+   */
+  public int fold(int code)
+  {
+    return folds[code];
+  }
+
+  public String name(int code)
+  {
+    return names[code];
+  }
+
+  /**
+   * @return the number of codes, {@link #NULL} included
+   */
+  public int size()
+  {
+    return codes.size() + 1;
+  }
+}
@@ -0,0 +1,240 @@
+import java.sql.*;
+
+/**
+ * One JDBC connection together with its own set of prepared statements.
+ *
+ * A pooled connection is only ever used by one thread at a time: it is handed
+ * out by {@link ConnectionPool#acquire()} for the duration of a single
+ * transaction and given back with {@link ConnectionPool#release(PooledConnection)}.
+ */
+public class PooledConnection
+{
+  final Connection conn;
+  private boolean readOnly; // inside a transaction begun by beginReadTransaction()
+  private StatementTracer tracer;
+
+  PreparedStatement checkFlightCapacityStatement2;
+  PreparedStatement getUserStatement;
+  PreparedStatement createUserStatement;
+  PreparedStatement checkReserveStatement;
+  PreparedStatement getCapacityStatement;
+  PreparedStatement getUserStatement2;
+  PreparedStatement insertCapacityStatement;
+  PreparedStatement getReservationCountStatement;
+  PreparedStatement setReservationCountStatement;
+  PreparedStatement addReservationCountStatement;
+  PreparedStatement insertReservationStatement;
+  PreparedStatement getReservationStatement;
+  PreparedStatement getOneReservation;
+  PreparedStatement setCapacityStatement;
+  PreparedStatement addCapacityStatement;
+  PreparedStatement changeCapacityStatement;
+  PreparedStatement addMoneyStatament;
+  PreparedStatement spendMoneyStatament;
+  PreparedStatement beginTransactionStatement;
+  PreparedStatement beginReadTransactionStatement;
+  PreparedStatement commitTransactionStatement;
+  PreparedStatement rollbackTransactionStatement;
+  PreparedStatement getPaidStatusStatement;
+  PreparedStatement setPaidStatusStatement;
+  PreparedStatement deleteReservationStatement;
+  PreparedStatement getBalanceStatement;
+  PreparedStatement directSearchStatement;
+  PreparedStatement indirectSearchStatement;
+  PreparedStatement directSearchAfterStatement;
+  PreparedStatement indirectSearchAfterStatement;
+  private PreparedStatement payBatchStatement;
+  private PreparedStatement cancelBatchStatement;
+  private PreparedStatement insertReservationLegStatement;
+  private PreparedStatement getReservationLegsStatement;
+  private PreparedStatement getOneReservationLegsStatement;
+  private PreparedStatement deleteReservationLegsStatement;
+
+  PooledConnection(Connection conn) throws SQLException
+  {
+    this.conn = conn;
+    conn.setAutoCommit(true); //by default automatically commit after each statement
+  }
+
+  /**
+   * prepare all the SQL statements of this connection.
+   * The canned queries themselves are defined in {@code JdbcFlightStore}.
+   */
+  void prepareStatements() throws SQLException
+  {
+    prepareStatements(JdbcFlightStore.DEFAULT_READ_ISOLATION);
+  }
+
+  /**
+   * @param readIsolation the isolation level {@link #beginReadTransaction()} begins with
+   */
+  void prepareStatements(String readIsolation) throws SQLException
+  {
+    prepareStatements(readIsolation, null);
+  }
+
+  /**
+   * @param tracer what traces every statement, or null to leave them untraced
+   */
+  void prepareStatements(String readIsolation, StatementTracer tracer) throws SQLException
+  {
+    this.tracer = tracer;
+    beginTransactionStatement = prepare(JdbcFlightStore.BEGIN_TRANSACTION_SQL, "BEGIN_TRANSACTION_SQL");
+    beginReadTransactionStatement = prepare(JdbcFlightStore.beginReadTransactionSql(readIsolation),
+                                            "BEGIN_READ_TRANSACTION");
+    commitTransactionStatement = prepare(JdbcFlightStore.COMMIT_SQL, "COMMIT_SQL");
+    rollbackTransactionStatement = prepare(JdbcFlightStore.ROLLBACK_SQL, "ROLLBACK_SQL");
+
+
+    directSearchStatement = prepare(JdbcFlightStore.DIRECT_SEARCH, "DIRECT_SEARCH");
+    indirectSearchStatement = prepare(JdbcFlightStore.INDIRECT_SEARCH, "INDIRECT_SEARCH");
+    directSearchAfterStatement = prepare(JdbcFlightStore.DIRECT_SEARCH_AFTER, "DIRECT_SEARCH_AFTER");
+    indirectSearchAfterStatement = prepare(JdbcFlightStore.INDIRECT_SEARCH_AFTER, "INDIRECT_SEARCH_AFTER");
+    getUserStatement = prepare(JdbcFlightStore.GET_USER, "GET_USER", 2);
+    createUserStatement = prepare(JdbcFlightStore.CREATE_USER, "CREATE_USER", 2);
+    checkReserveStatement = prepare(JdbcFlightStore.CHECK_RESERVE, "CHECK_RESERVE");
+    getCapacityStatement = prepare(JdbcFlightStore.GET_CAPACITY, "GET_CAPACITY");
+    setCapacityStatement = prepare(JdbcFlightStore.SET_CAPACITY, "SET_CAPACITY");
+    insertCapacityStatement = prepare(JdbcFlightStore.INSERT_CAPACITY, "INSERT_CAPACITY");
+    getReservationCountStatement = prepare(JdbcFlightStore.GET_RESERVATION_COUNT, "GET_RESERVATION_COUNT");
+    setReservationCountStatement = prepare(JdbcFlightStore.SET_RESERVATION_COUNT, "SET_RESERVATION_COUNT");
+    addReservationCountStatement = prepare(ReservationIdAllocator.RESERVE_BLOCK, "RESERVE_BLOCK");
+    insertReservationStatement = prepare(JdbcFlightStore.INSERT_RESERVATION, "INSERT_RESERVATION");
+    getReservationStatement = prepare(JdbcFlightStore.GET_RESERVATION, "GET_RESERVATION");
+    getOneReservation = prepare(JdbcFlightStore.GET_ONE_RESERVATION, "GET_ONE_RESERVATION");
+    addCapacityStatement = prepare(JdbcFlightStore.ADD_CAPACITY, "ADD_CAPACITY");
+    changeCapacityStatement = prepare(JdbcFlightStore.CHANGE_CAPACITY, "CHANGE_CAPACITY");
+    addMoneyStatament = prepare(JdbcFlightStore.ADD_MONEY, "ADD_MONEY");
+    spendMoneyStatament = prepare(JdbcFlightStore.SPEND_MONEY, "SPEND_MONEY");
+    getPaidStatusStatement = prepare(JdbcFlightStore.GET_PAID_STATUS, "GET_PAID_STATUS");
+    setPaidStatusStatement = prepare(JdbcFlightStore.SET_PAID_STATUS, "SET_PAID_STATUS");
+    deleteReservationStatement = prepare(JdbcFlightStore.DELETE_RESERVATION, "DELETE_RESERVATION");
+    getBalanceStatement = prepare(JdbcFlightStore.GET_BALANCE, "GET_BALANCE");
+    getUserStatement2 = prepare(JdbcFlightStore.GET_USER2, "GET_USER2", 2);
+    checkFlightCapacityStatement2 = prepare(JdbcFlightStore.CHECK_FLIGHT_CAPACITY2, "CHECK_FLIGHT_CAPACITY2");
+  }
+
+  /**
+   * {@link JdbcFlightStore#PAY_BATCH}, prepared on first use: only flightservice.pay_cancel_batches runs it.
+   */
+  PreparedStatement payBatchStatement() throws SQLException
+  {
+    if (payBatchStatement == null)
+      payBatchStatement = prepare(JdbcFlightStore.PAY_BATCH, "PAY_BATCH");
+    return payBatchStatement;
+  }
+
+  /**
+   * {@link JdbcFlightStore#CANCEL_BATCH}, prepared on first use like {@link #payBatchStatement()}.
+   */
+  PreparedStatement cancelBatchStatement() throws SQLException
+  {
+    if (cancelBatchStatement == null)
+      cancelBatchStatement = prepare(JdbcFlightStore.CANCEL_BATCH, "CANCEL_BATCH");
+    return cancelBatchStatement;
+  }
+
+  /*
+   * the statements on ReservationLegs, prepared on first use: databases from before schema
+   * migration 3 do not have the table
+   */
+  PreparedStatement insertReservationLegStatement() throws SQLException
+  {
+    if (insertReservationLegStatement == null)
+      insertReservationLegStatement = prepare(JdbcFlightStore.INSERT_RESERVATION_LEG, "INSERT_RESERVATION_LEG");
+    return insertReservationLegStatement;
+  }
+
+  PreparedStatement getReservationLegsStatement() throws SQLException
+  {
+    if (getReservationLegsStatement == null)
+      getReservationLegsStatement = prepare(JdbcFlightStore.GET_RESERVATION_LEGS, "GET_RESERVATION_LEGS");
+    return getReservationLegsStatement;
+  }
+
+  PreparedStatement getOneReservationLegsStatement() throws SQLException
+  {
+    if (getOneReservationLegsStatement == null)
+      getOneReservationLegsStatement = prepare(JdbcFlightStore.GET_ONE_RESERVATION_LEGS, "GET_ONE_RESERVATION_LEGS");
+    return getOneReservationLegsStatement;
+  }
+
+  PreparedStatement deleteReservationLegsStatement() throws SQLException
+  {
+    if (deleteReservationLegsStatement == null)
+      deleteReservationLegsStatement = prepare(JdbcFlightStore.DELETE_RESERVATION_LEGS, "DELETE_RESERVATION_LEGS");
+    return deleteReservationLegsStatement;
+  }
+
+  /* the secret parameters are the passwords, never written to the slow-query log */
+  private PreparedStatement prepare(String sql, String name, int... secret) throws SQLException
+  {
+    PreparedStatement statement = conn.prepareStatement(sql);
+    return tracer == null ? statement : tracer.wrap(statement, name, secret);
+  }
+
+  public void beginTransaction() throws SQLException
+  {
+    conn.setAutoCommit(false);
+    beginTransactionStatement.executeUpdate();
+  }
+
+  /**
+   * Begins a transaction that only reads, at the read isolation level and on a connection
+   * marked read-only, so it neither takes nor waits for the range locks of the writers.
+   */
+  public void beginReadTransaction() throws SQLException
+  {
+    conn.setReadOnly(true);
+    readOnly = true;
+    try {
+      conn.setAutoCommit(false);
+      beginReadTransactionStatement.executeUpdate();
+    } catch (SQLException e) {
+      // a transaction that did start is ended by its rollback
+      if (!inTransaction())
+        endReadOnly();
+      throw e;
+    }
+  }
+
+  public void commitTransaction() throws SQLException
+  {
+    commitTransactionStatement.executeUpdate();
+    conn.setAutoCommit(true);
+    endReadOnly();
+  }
+
+  public void rollbackTransaction() throws SQLException
+  {
+    try {
+      rollbackTransactionStatement.executeUpdate();
+    } finally {
+      // even if the server already rolled the transaction back itself, e.g. for a deadlock victim
+      conn.setAutoCommit(true);
+      endReadOnly();
+    }
+  }
+
+  private void endReadOnly() throws SQLException
+  {
+    if (readOnly) {
+      readOnly = false;
+      conn.setReadOnly(false);
+    }
+  }
+
+  /**
+   * @return true if a transaction was begun on this connection and has not
+   * been committed or rolled back yet.
+   */
+  boolean inTransaction() throws SQLException
+  {
+    return !conn.getAutoCommit();
+  }
+
+  void close() throws SQLException
+  {
+    conn.close();
+  }
+}
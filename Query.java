@@ -1,7 +1,8 @@
 import java.io.FileInputStream;
-import java.sql.*;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.SQLException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 import java.util.Properties;
 
@@ -13,124 +14,23 @@ public class Query
   private String configFilename;
   private Properties configProps = new Properties();
 
-  private String jSQLDriver;
-  private String jSQLUrl;
-  private String jSQLUser;
-  private String jSQLPassword;
-  private ArrayList<Itinerary> itineraries = new ArrayList<Itinerary>();;
+  // Where everything but the sessions is kept, chosen by flightservice.store
+  private FlightStore store;
 
-  // DB Connection
-  private Connection conn;
+  // Shared cache of search results, null unless flightservice.search_cache_size is set
+  private SearchCache searchCache;
 
-  // Logged In User
-  private String username; // customer username is unique
+  // Counts and latencies of the transactions, by type and outcome
+  private final TransactionMetrics metrics = new TransactionMetrics();
 
-  private static final int OFFSET = 18;
-
-  // Canned queries
-
-  private static final String CHECK_FLIGHT_CAPACITY = "SELECT capacity FROM Flights WHERE fid = ?";
-  private PreparedStatement checkFlightCapacityStatement;
-
-  private static final String CHECK_FLIGHT_CAPACITY2 = "SELECT capacity FROM Capacities WHERE fid = ?";
-  private PreparedStatement checkFlightCapacityStatement2;
-
-  private static final String GET_USER = "SELECT * FROM Users WHERE username = ? AND pass = ?";
-  private PreparedStatement getUserStatement;
-
-  private static final String CREATE_USER = "INSERT INTO Users VALUES(?, ?, ?)";
-  private PreparedStatement createUserStatement;
-
-  private static final String CHECK_RESERVE = "SELECT * FROM Reservations WHERE usr = ?";
-  private PreparedStatement checkReserveStatement;
-
-  private static final String GET_CAPACITY = "SELECT * FROM Flights WHERE fid = ?";
-  private PreparedStatement getCapacityStatement;
-
-  private static final String GET_USER2 = "SELECT * FROM Users WHERE username = ? and pass = ?;";
-  private PreparedStatement getUserStatement2;
-
-  private static final String INSERT_CAPACITY = "INSERT INTO Capacities "
-    + "SELECT F.fid, F.capacity "
-    + "FROM Flights F "
-    + "WHERE F.fid = ? "
-    + "AND NOT EXISTS "
-    + "(SELECT * FROM Capacities c WHERE c.fid = f.fid);";
-  private PreparedStatement insertCapacityStatement;
-
-  private static final String GET_RESERVATION_COUNT = "SELECT count FROM ReserveCount;";
-  private PreparedStatement getReservationCountStatement;
-
-  private static final String SET_RESERVATION_COUNT = "UPDATE ReserveCount SET count = ((SELECT count FROM ReserveCount) + 1);";
-  private PreparedStatement setReservationCountStatement;
-
-  private static final String INSERT_RESERVATION = "INSERT INTO Reservations VALUES (?,?,?,?,?,?,?);";
-  private PreparedStatement insertReservationStatement;
-
-  private static final String GET_RESERVATION = "SELECT * FROM Reservations WHERE usr = ?;";
-  private PreparedStatement getReservationStatement;
-
-  private static final String GET_ONE_RESERVATION = "SELECT * FROM Reservations WHERE rid = ? AND usr = ?;";
-  private PreparedStatement getOneReservation;
-
-  private static final String SET_CAPACITY = "UPDATE Capacities SET capacity = ((SELECT capacity FROM Capacities WHERE fid = ?) - 1) WHERE fid = ?";
-  private PreparedStatement setCapacityStatement;
-
-  private static final String ADD_CAPACITY = "UPDATE Capacities SET capacity = ((SELECT capacity FROM Capacities WHERE fid = ?) + 1) WHERE fid = ?";
-  private PreparedStatement addCapacityStatement;
-
-  private static final String ADD_MONEY = "UPDATE Users SET balance = ((SELECT balance FROM Users WHERE username = ?) + ?) WHERE username = ?";
-  private PreparedStatement addMoneyStatament;
-
-  private static final String SPEND_MONEY = "UPDATE Users SET balance = ((SELECT balance FROM Users WHERE username = ?) - ?) WHERE username = ?";
-  private PreparedStatement spendMoneyStatament;
-
-  private static final String GET_FLIGHT = "SELECT * FROM Flights WHERE fid = ?;";
-  private PreparedStatement getFlightStatement;
-  // transactions
-  private static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
-  private PreparedStatement beginTransactionStatement;
-
-  private static final String COMMIT_SQL = "COMMIT TRANSACTION";
-  private PreparedStatement commitTransactionStatement;
-
-  private static final String ROLLBACK_SQL = "ROLLBACK TRANSACTION";
-  private PreparedStatement rollbackTransactionStatement;
-
-  private static final String GET_PAID_STATUS = "SELECT * FROM Reservations WHERE rid = ? AND usr = ?;";
-  private PreparedStatement getPaidStatusStatement;
-
-  private static final String SET_PAID_STATUS = "UPDATE Reservations SET paid = ? WHERE rid = ? AND usr = ?;";
-  private PreparedStatement setPaidStatusStatement;
-
-  private static final String DELETE_RESERVATION = "DELETE FROM Reservations WHERE rid = ?;";
-  private PreparedStatement deleteReservationStatement;
-
-  private static final String GET_BALANCE = "SELECT balance FROM Users WHERE username = ?;";
-  private PreparedStatement getBalanceStatement;
-
-  private static final String DIRECT_SEARCH = "SELECT Top(?) * "
-                                            + "FROM Flights "
-                                            + "WHERE origin_city = ? AND dest_city = ? AND day_of_month = ? "
-                                            + "AND canceled != 1 ORDER BY actual_time ASC, fid ASC;";
-  private PreparedStatement directSearchStatement;
-
-  private static final String INDIRECT_SEARCH = "SELECT TOP (?) * FROM Flights F1, Flights F2 "
-                                              + "WHERE F1.origin_city = ? AND F1.dest_city = F2.origin_city AND F2.dest_city = ? "                                              + "AND F1.day_of_month = ? AND F1.day_of_month = F2.day_of_month "
-                                              + "AND F1.canceled != 1 AND F2.canceled != 1 "
-                                              + "ORDER BY (F1.actual_time + F2.actual_time), F1.fid ASC;";
-  private PreparedStatement indirectSearchStatement;
-
-
-
-  class Flight
+  static class Flight
   {
     public int fid;
     public int dayOfMonth;
-    public String carrierId;
+    public int carrier; // code in NameDictionary.CARRIERS
     public String flightNum;
-    public String originCity;
-    public String destCity;
+    public int origin; // code in NameDictionary.CITIES
+    public int dest; // code in NameDictionary.CITIES
     public int time;
     public int capacity;
     public int price;
@@ -138,34 +38,148 @@ public class Query
     @Override
     public String toString()
     {
-      return "ID: " + fid + " Day: " + dayOfMonth + " Carrier: " + carrierId +
-              " Number: " + flightNum + " Origin: " + originCity + " Dest: " + destCity + " Duration: " + time +
-              " Capacity: " + capacity + " Price: " + price;
+      StringBuilder sb = new StringBuilder(128);
+      try {
+        appendTo(sb);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e); // StringBuilder does not throw
+      }
+      return sb.toString();
+    }
+
+    public String carrierId()
+    {
+      return NameDictionary.CARRIERS.name(carrier);
+    }
+
+    public String originCity()
+    {
+      return NameDictionary.CITIES.name(origin);
+    }
+
+    public String destCity()
+    {
+      return NameDictionary.CITIES.name(dest);
+    }
+
+    /**
+     * Writes the same text as {@link #toString()}, without building it first.
+     */
+    public void appendTo(Appendable out) throws IOException
+    {
+      out.append("ID: ");
+      appendInt(out, fid);
+      out.append(" Day: ");
+      appendInt(out, dayOfMonth);
+      out.append(" Carrier: ").append(carrierId());
+      out.append(" Number: ").append(flightNum);
+      out.append(" Origin: ").append(originCity());
+      out.append(" Dest: ").append(destCity());
+      out.append(" Duration: ");
+      appendInt(out, time);
+      out.append(" Capacity: ");
+      appendInt(out, capacity);
+      out.append(" Price: ");
+      appendInt(out, price);
+    }
+  }
+
+  /**
+   * One reservation of a user, as listed by {@code transaction_reservations}.
+   */
+  static class Reservation
+  {
+    public int rid;
+    public boolean paid;
+    public Flight f1;
+    public Flight f2; // null for a direct reservation
+    public Flight[] more; // the flights after f2, null unless there are more than two
+  }
+
+  /* Appendable has no append(int); write the digits one by one instead of through a String */
+  static void appendInt(Appendable out, int value) throws IOException
+  {
+    if (value < 0) {
+      if (value == Integer.MIN_VALUE) {
+        out.append("-2147483648");
+        return;
+      }
+      out.append('-');
+      value = -value;
     }
+    int divisor = 1;
+    while (value / divisor >= 10)
+      divisor *= 10;
+    for (; divisor > 0; divisor /= 10)
+      out.append((char) ('0' + value / divisor % 10));
   }
 
-  class Itinerary implements Comparable<Itinerary>{
+  static class Itinerary implements Comparable<Itinerary>{
     public Flight f1;
     public Flight f2;
+    public Flight[] more; // the flights after f2, null unless there are more than two
     public int dayOfMonth;
     public int cost;
+    public int layover; // minutes of connections counted in the total, see RoutePlanner
+
+    /**
+     * @return the total flight time of the itinerary, with its layovers
+     */
+    public int time()
+    {
+      int time = this.layover + this.f1.time;
+      if (this.f2 != null)
+        time += this.f2.time;
+      if (this.more != null)
+        for (Flight f : this.more)
+          time += f.time;
+      return time;
+    }
+
+    /**
+     * @return the number of flights
+     */
+    public int legs()
+    {
+      return this.f2 == null ? 1 : this.more == null ? 2 : 2 + this.more.length;
+    }
+
+    /**
+     * @return the i-th flight, from 0
+     */
+    public Flight leg(int i)
+    {
+      return i == 0 ? this.f1 : i == 1 ? this.f2 : this.more[i - 2];
+    }
 
+    /**
+     * @return the fid of the second flight, or -1 for a direct itinerary
+     */
+    public int fid2()
+    {
+      return this.f2 != null ? this.f2.fid : -1;
+    }
+
+    /* by total time, then by the fids of the flights in order; an itinerary sorts before
+       a longer one of the same time that starts with the same flights */
     public int compareTo(Itinerary other)
     {
-      int time1;
-      int time2;
-      if (this.f2 != null){
-        time1 = this.f1.time + this.f2.time;
-      } else  {
-        time1 = this.f1.time;
-      }
-      if (other.f2 != null){
-        time2 = other.f1.time + other.f2.time;
-      } else  {
-        time2 = other.f1.time;
+      int time1 = this.time();
+      int time2 = other.time();
+      if (time1 != time2)
+        return Integer.compare(time1, time2);
+      if (this.f1.fid != other.f1.fid)
+        return Integer.compare(this.f1.fid, other.f1.fid);
+      if (this.fid2() != other.fid2() || (this.more == null && other.more == null))
+        return Integer.compare(this.fid2(), other.fid2());
+      int legs = Math.max(this.legs(), other.legs());
+      for (int i = 2; i < legs; i++) {
+        int fid1 = i < this.legs() ? this.leg(i).fid : -1;
+        int fid2 = i < other.legs() ? other.leg(i).fid : -1;
+        if (fid1 != fid2)
+          return Integer.compare(fid1, fid2);
       }
-
-      return time1 - time2;
+      return 0;
     }
 
   }
@@ -180,30 +194,27 @@ public class Query
   {
     configProps.load(new FileInputStream(configFilename));
 
-    jSQLDriver = configProps.getProperty("flightservice.jdbc_driver");
-    jSQLUrl = configProps.getProperty("flightservice.url");
-    jSQLUser = configProps.getProperty("flightservice.sqlazure_username");
-    jSQLPassword = configProps.getProperty("flightservice.sqlazure_password");
-
-    /* load jdbc drivers */
-    Class.forName(jSQLDriver).newInstance();
-
-    /* open connections to the flights database */
-    conn = DriverManager.getConnection(jSQLUrl, // database
-            jSQLUser, // user
-            jSQLPassword); // password
+    String storeType = configProps.getProperty("flightservice.store", "jdbc");
+    if (storeType.equals("jdbc")) {
+      store = new JdbcFlightStore(configProps, metrics);
+    } else if (storeType.equals("memory")) {
+      List<Flight> flights = MemoryFlightStore.loadFlights(configProps);
+      store = new MemoryFlightStore(flights, RoutePlanner.configure(configProps, flights));
+    } else {
+      throw new IllegalArgumentException("unknown flightservice.store: " + storeType);
+    }
 
-    conn.setAutoCommit(true); //by default automatically commit after each statement
+    int cacheSize = Integer.parseInt(configProps.getProperty("flightservice.search_cache_size", "0"));
+    if (cacheSize > 0)
+      searchCache = new SearchCache(cacheSize);
 
-    /* You will also want to appropriately set the transaction's isolation level through:
-       conn.setTransactionIsolation(...)
-       See Connection class' JavaDoc for details.
-    */
+    metrics.registerMBeans();
   }
 
   public void closeConnection() throws Exception
   {
-    conn.close();
+    metrics.unregisterMBeans();
+    store.close();
   }
 
   /**
@@ -214,61 +225,78 @@ public class Query
   public void clearTables ()
   {
     try {
-      beginTransaction();
-      Statement clear = conn.createStatement();
-      clear.executeUpdate("DELETE FROM Reservations");
-      clear.executeUpdate("DELETE FROM Users");
-      clear.executeUpdate("DELETE FROM Capacities");
-      clear.executeUpdate("DELETE FROM ReserveCount");
-      commitTransaction();
+      store.clear();
+      if (searchCache != null)
+        searchCache.clear();
     } catch (SQLException e) { 
       e.printStackTrace(); 
     }
   }
 
   /**
-   * prepare all the SQL statements in this method.
+   * prepare all the SQL statements on every pooled connection.
    * "preparing" a statement is almost like compiling it.
    * Note that the parameters (with ?) are still not filled in
    */
   public void prepareStatements() throws Exception
   {
-    beginTransactionStatement = conn.prepareStatement(BEGIN_TRANSACTION_SQL);
-    commitTransactionStatement = conn.prepareStatement(COMMIT_SQL);
-    rollbackTransactionStatement = conn.prepareStatement(ROLLBACK_SQL);
-
-    checkFlightCapacityStatement = conn.prepareStatement(CHECK_FLIGHT_CAPACITY);
-
-    directSearchStatement = conn.prepareStatement(DIRECT_SEARCH);
-    indirectSearchStatement = conn.prepareStatement(INDIRECT_SEARCH);
-    getUserStatement = conn.prepareStatement(GET_USER);
-    createUserStatement = conn.prepareStatement(CREATE_USER);
-    checkReserveStatement = conn.prepareStatement(CHECK_RESERVE);
-    getCapacityStatement = conn.prepareStatement(GET_CAPACITY);
-    setCapacityStatement = conn.prepareStatement(SET_CAPACITY);
-    insertCapacityStatement = conn.prepareStatement(INSERT_CAPACITY);
-    getReservationCountStatement = conn.prepareStatement(GET_RESERVATION_COUNT);
-    setReservationCountStatement = conn.prepareStatement(SET_RESERVATION_COUNT);
-    insertReservationStatement = conn.prepareStatement(INSERT_RESERVATION);
-    getReservationStatement = conn.prepareStatement(GET_RESERVATION);
-    getFlightStatement = conn.prepareStatement(GET_FLIGHT);
-    getOneReservation = conn.prepareStatement(GET_ONE_RESERVATION);
-    addCapacityStatement = conn.prepareStatement(ADD_CAPACITY);
-    addMoneyStatament = conn.prepareStatement(ADD_MONEY);
-    spendMoneyStatament = conn.prepareStatement(SPEND_MONEY);
-    getPaidStatusStatement = conn.prepareStatement(GET_PAID_STATUS);
-    setPaidStatusStatement = conn.prepareStatement(SET_PAID_STATUS);
-    deleteReservationStatement = conn.prepareStatement(DELETE_RESERVATION);
-    getBalanceStatement = conn.prepareStatement(GET_BALANCE);
-    getUserStatement2 = conn.prepareStatement(GET_USER2);
-    checkFlightCapacityStatement2 = conn.prepareStatement(CHECK_FLIGHT_CAPACITY2);
-    /* add here more prepare statements for all the other queries you need */
-    /* . . . . . . */
+    store.prepare();
+  }
+
+  /**
+   * @return a setting from the configuration file, or defaultValue if it is not set
+   */
+  public String getProperty(String key, String defaultValue)
+  {
+    return configProps.getProperty(key, defaultValue);
+  }
+
+  /**
+   * @return the shared search result cache, or null if caching is disabled
+   */
+  public SearchCache getSearchCache()
+  {
+    return searchCache;
+  }
+
+  /**
+   * @return the store behind every transaction
+   */
+  public FlightStore getStore()
+  {
+    return store;
+  }
+
+  /**
+   * @return the counts and latencies of every transaction run so far
+   */
+  public TransactionMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * Writes the transaction metrics, followed by what the store measures of itself.
+   */
+  public void appendStats(Appendable out) throws IOException
+  {
+    metrics.appendTo(out);
+    store.appendStats(out);
+  }
+
+  /**
+   * @return a new, logged out session. Sessions are cheap; any number of them
+   * may run transactions concurrently, bounded only by the connection pool.
+   */
+  public Session newSession()
+  {
+    return new Session();
   }
 
   /**
    * Takes a user's username and password and attempts to log the user in.
    *
+   * @param session the session of the calling client
    * @param username
    * @param password
    *
@@ -277,30 +305,22 @@ public class Query
    *
    * Otherwise, return "Logged in as [username]\n".
    */
-  public String transaction_login(String username, String password)
+  public String transaction_login(Session session, String username, String password)
   {
-    if (this.username != null) {
-      return "User already logged in\n";
+    long start = System.nanoTime();
+    if (session.username != null) {
+      return metrics.rejected(TransactionMetrics.Type.LOGIN, start, "User already logged in\n");
     } else {
       try {
-        beginTransaction();
-
-        getUserStatement.clearParameters();
-        getUserStatement.setString(1, username);
-        getUserStatement.setString(2, password);
-        ResultSet results = getUserStatement.executeQuery();
-        if (results.next()) {
-          this.username = username;
-          results.close();
-          commitTransaction();
-          return "Logged in as " + username + "\n"; 
+        boolean found = store.login(username, password);
+        if (found) {
+          session.username = username;
+          return metrics.success(TransactionMetrics.Type.LOGIN, start, "Logged in as " + username + "\n");
         }
-        rollbackTransaction();
-        results.close();
-        return "Login failed\n";
+        return metrics.rejected(TransactionMetrics.Type.LOGIN, start, "Login failed\n");
       } catch (SQLException e) {
         e.printStackTrace();
-        return "Login failed\n";
+        return metrics.error(TransactionMetrics.Type.LOGIN, e, start, "Login failed\n");
       }
     }
   }
@@ -308,41 +328,28 @@ public class Query
   /**
    * Implement the create user function.
    *
+   * @param session the session of the calling client (creating a user does not log it in)
    * @param username new user's username. User names are unique the system.
    * @param password new user's password.
    * @param initAmount initial amount to deposit into the user's account, should be >= 0 (failure otherwise).
    *
    * @return either "Created user {@code username}\n" or "Failed to create user\n" if failed.
    */
-  public String transaction_createCustomer (String username, String password, int initAmount)
+  public String transaction_createCustomer (Session session, String username, String password, int initAmount)
   {
     //check if user DOES NOT exist
     //then create customer
+    long start = System.nanoTime();
     if (initAmount >=0){
       try{
-        beginTransaction();
-        getUserStatement2.clearParameters();
-        getUserStatement2.setString(1,username);
-        getUserStatement2.setString(2,password);
-        ResultSet re = getUserStatement2.executeQuery();
-        //THERE ALREADY EXISTS A USER W SAME USERNAME
-        if (re.next()){
-          re.close();
-          rollbackTransaction();
-          return "Failed to create user\n";
-        }
-        createUserStatement.clearParameters();
-        createUserStatement.setString(1,username);
-        createUserStatement.setString(2,password);
-        createUserStatement.setInt(3,initAmount);
-        createUserStatement.execute();
-        commitTransaction();
-        return "Created user " + username + "\n";
-        } catch (SQLException e) {
+        if (store.createUser(username, password, initAmount))
+          return metrics.success(TransactionMetrics.Type.CREATE, start, "Created user " + username + "\n");
+      } catch (SQLException e) {
         //e.printStackTrace();
+        return metrics.error(TransactionMetrics.Type.CREATE, e, start, "Failed to create user\n");
       }
-      }
-      return "Failed to create user\n";
+    }
+    return metrics.rejected(TransactionMetrics.Type.CREATE, start, "Failed to create user\n");
   }
 
   /**
@@ -354,8 +361,10 @@ public class Query
    * and flights with two "hops." Only searches for up to the number of
    * itineraries given by {@code numberOfItineraries}.
    *
-   * The results are sorted based on total flight time.
+   * The results are sorted based on total flight time, ties broken by fid. Direct and
+   * one-stop itineraries are ranked together: the fastest ones win regardless of hops.
    *
+   * @param session the session of the calling client; its itineraries are replaced by the results
    * @param originCity
    * @param destinationCity
    * @param directFlight if true, then only search for direct flights, otherwise include indirect flights as well
@@ -377,167 +386,145 @@ public class Query
    *
    * @see Flight#toString()
    */
-  public String transaction_search(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
-                                   int numberOfItineraries)
+  public String transaction_search(Session session, String originCity, String destinationCity, boolean directFlight,
+                                   int dayOfMonth, int numberOfItineraries)
+  {
+    StringBuilder sb = new StringBuilder();
+    try {
+      transaction_search(session, originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries, sb);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // StringBuilder does not throw
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Like {@link #transaction_search(Session, String, String, boolean, int, int)}, but writes the
+   * response to {@code out} as it is rendered instead of returning it. The search itself is
+   * over before anything is written.
+   *
+   * @throws IOException only if {@code out} does
+   */
+  public void transaction_search(Session session, String originCity, String destinationCity, boolean directFlight,
+                                 int dayOfMonth, int numberOfItineraries, Appendable out) throws IOException
   {
-    StringBuffer sb = new StringBuffer();
-    this.itineraries = new ArrayList<Itinerary>();
-    int numItineratries = numberOfItineraries;
-    int count = 0;
+    long start = System.nanoTime();
+    session.itineraries = new ArrayList<Itinerary>();
+    session.cursor = null;
+
+    SearchCache.Key key = null;
+    List<Itinerary> cached = null;
+    // by folded code: a search in another case has the same result
+    int origin = NameDictionary.CITIES.findFolded(originCity);
+    int destination = NameDictionary.CITIES.findFolded(destinationCity);
+    // a city with no code has not been seen in Flights yet; its searches are not cached
+    if (searchCache != null && origin != NameDictionary.NONE && destination != NameDictionary.NONE) {
+      key = new SearchCache.Key(origin, destination, directFlight, dayOfMonth, numberOfItineraries);
+      cached = searchCache.get(key);
+    }
 
     try{
-      beginTransaction();
-      // direct flight data 
-      directSearchStatement.clearParameters();
-      directSearchStatement.setInt(1, numItineratries);
-      directSearchStatement.setString(2, originCity);
-      directSearchStatement.setString(3, destinationCity);
-      directSearchStatement.setInt(4, dayOfMonth);
-
-      ResultSet oneHopResults = directSearchStatement.executeQuery();
-
-      while (oneHopResults.next() && numItineratries > 0) {
-        Flight flight = parser(oneHopResults, true);
-        //sb.append("Itinerary " + count + ": 1 flight(s), "+ flight.time +" minutes\n");
-        //sb.append(flight.toString() + "\n");
-        Itinerary it = new Itinerary();
-        it.f1 = flight;
-        it.f2 = null;
-        it.dayOfMonth = flight.dayOfMonth;
-        it.cost = flight.price;
-        this.itineraries.add(it);
-        numItineratries --;
-        count ++;
-      } 
-      oneHopResults.close();
-
-      if (numItineratries > 0 && !directFlight) {
-        indirectSearchStatement.clearParameters();
-        indirectSearchStatement.setInt(1, numItineratries);
-        indirectSearchStatement.setString(2, originCity);
-        indirectSearchStatement.setString(3, destinationCity);
-        indirectSearchStatement.setInt(4, dayOfMonth);
-
-        ResultSet twoHopResults = indirectSearchStatement.executeQuery();
-
-        while (twoHopResults.next() && numItineratries > 0){
-          Flight flight1 = parser(twoHopResults, true);
-          Flight flight2 = parser(twoHopResults, false);
-          //int totalTime = flight1.time + flight2.time;
-
-          Itinerary it = new Itinerary();
-          it.f1 = flight1;
-          it.f2 = flight2;
-          it.dayOfMonth = flight1.dayOfMonth; 
-          it.cost = flight1.price + flight2.price;
-          this.itineraries.add(it);
-
-          //sb.append("Itinerary " + count + ": 2 flight(s), "+ totalTime +" minutes\n");
-          //sb.append(flight1.toString() + "\n");
-          //sb.append(flight2.toString() + "\n");
-          numItineratries --;
-          count ++;
-        }
-        twoHopResults.close();
-      }
-      Collections.sort(this.itineraries);
-      for (int i = 0; i < this.itineraries.size(); i ++) {
-        Itinerary out = this.itineraries.get(i);
-        if (out.f2 != null) {
-          sb.append("Itinerary " + i + ": 2 flight(s), "+ (out.f1.time + out.f2.time) +" minutes\n");
-          sb.append(out.f1.toString() + "\n");
-          sb.append(out.f2.toString() + "\n");
-        } else  {
-          sb.append("Itinerary " + i + ": 1 flight(s), "+ out.f1.time +" minutes\n");
-          sb.append(out.f1.toString() + "\n");
-        }
+      if (cached != null) {
+        // flights are static, a cached result is as good as a fresh one
+        session.itineraries = cached;
+      } else {
+        List<Itinerary> found = store.search(originCity, destinationCity, directFlight, dayOfMonth,
+                                             numberOfItineraries);
+        if (key != null)
+          session.itineraries = searchCache.put(key, found);
+        else
+          session.itineraries = found;
       }
-      commitTransaction();
+      metrics.record(TransactionMetrics.Type.SEARCH, TransactionMetrics.Outcome.SUCCESS, start);
     } catch (SQLException e) { 
       // e.printStackTrace();
+      metrics.error(TransactionMetrics.Type.SEARCH, e, start);
     }
 
-    if (count == 0) {
-      return "No flights match your selection\n";
-    }
-    // sort this.itineraries then create out put
+    // a full page may not be the last one
+    if (session.itineraries.size() == numberOfItineraries && numberOfItineraries > 0)
+      session.cursor = SearchCursor.after(originCity, destinationCity, directFlight, dayOfMonth,
+                                          numberOfItineraries, session.itineraries.get(numberOfItineraries - 1));
 
-    return sb.toString();
-    //return transaction_search_unsafe(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
-  }
-
-  private Flight parser(ResultSet results, boolean direct) throws SQLException {
-    int offset = 0;
-    if (!direct){
-      offset = this.OFFSET;
-    }
-    Flight flight = new Flight();
-    flight.fid = results.getInt(1 + offset);
-    flight.dayOfMonth = results.getInt(3 + offset);
-    flight.carrierId = results.getString(5 + offset);
-    flight.flightNum = results.getString(6 + offset);
-    flight.originCity = results.getString(7 + offset);
-    flight.destCity = results.getString(9 + offset);
-    flight.time = results.getInt(15 + offset);
-    flight.capacity = results.getInt(17 + offset);
-    flight.price = results.getInt(18 + offset);
-    return flight;
+    if (session.itineraries.isEmpty()) {
+      out.append("No flights match your selection\n");
+      return;
+    }
+    appendItineraries(out, session.itineraries, 0);
   }
 
   /**
-   * Same as {@code transaction_search} except that it only performs single hop search and
-   * do it in an unsafe manner.
+   * Continues the last search of the session with the itineraries ranked right after the ones
+   * it has returned so far, found by seeking past the last of them rather than by searching
+   * again for more. Itinerary numbers carry on from the previous page, and every itinerary
+   * returned since the search stays bookable by its number.
    *
-   * @param originCity
-   * @param destinationCity
-   * @param directFlight
-   * @param dayOfMonth
-   * @param numberOfItineraries
+   * @param numberOfItineraries the size of the page, or 0 for the size of the search's first page
+   *
+   * @return the itineraries of the page in the format of {@code transaction_search}, or
+   * "No more flights match your selection\n" if there were no more, or none was searched for.
    *
-   * @return The search results. Note that this implementation *does not conform* to the format required by
-   * {@code transaction_search}.
+   * @throws IOException only if {@code out} does
    */
-  private String transaction_search_unsafe(String originCity, String destinationCity, boolean directFlight,
-                                          int dayOfMonth, int numberOfItineraries)
+  public void transaction_next(Session session, int numberOfItineraries, Appendable out) throws IOException
   {
-    StringBuffer sb = new StringBuffer();
+    long start = System.nanoTime();
+    SearchCursor cursor = session.cursor;
+    if (cursor == null) {
+      metrics.record(TransactionMetrics.Type.SEARCH, TransactionMetrics.Outcome.REJECTED, start);
+      out.append("No more flights match your selection\n");
+      return;
+    }
+    int pageSize = numberOfItineraries > 0 ? numberOfItineraries : cursor.pageSize;
 
-    try
-    {
-      // one hop itineraries
-      String unsafeSearchSQL =
-              "SELECT TOP (" + numberOfItineraries + ") day_of_month,carrier_id,flight_num,origin_city,dest_city,actual_time,capacity,price "
-                      + "FROM Flights "
-                      + "WHERE origin_city = \'" + originCity + "\' AND dest_city = \'" + destinationCity + "\' AND day_of_month =  " + dayOfMonth + " "
-                      + "ORDER BY actual_time ASC";
-
-      Statement searchStatement = conn.createStatement();
-      ResultSet oneHopResults = searchStatement.executeQuery(unsafeSearchSQL);
-
-      while (oneHopResults.next())
-      {
-        int result_dayOfMonth = oneHopResults.getInt("day_of_month");
-        String result_carrierId = oneHopResults.getString("carrier_id");
-        String result_flightNum = oneHopResults.getString("flight_num");
-        String result_originCity = oneHopResults.getString("origin_city");
-        String result_destCity = oneHopResults.getString("dest_city");
-        int result_time = oneHopResults.getInt("actual_time");
-        int result_capacity = oneHopResults.getInt("capacity");
-        int result_price = oneHopResults.getInt("price");
-
-        sb.append("Day: " + result_dayOfMonth + " Carrier: " + result_carrierId + " Number: " + result_flightNum + " Origin: " + result_originCity + " Destination: " + result_destCity + " Duration: " + result_time + " Capacity: " + result_capacity + " Price: " + result_price + "\n");
-      }
-      oneHopResults.close();
-    } catch (SQLException e) { 
-      //e.printStackTrace(); 
+    List<Itinerary> page;
+    try {
+      page = store.search(cursor.originCity, cursor.destinationCity, cursor.directFlight, cursor.dayOfMonth,
+                          pageSize, cursor);
+      metrics.record(TransactionMetrics.Type.SEARCH, TransactionMetrics.Outcome.SUCCESS, start);
+    } catch (SQLException e) {
+      metrics.error(TransactionMetrics.Type.SEARCH, e, start);
+      out.append("Failed to search\n");
+      return;
     }
 
-    return sb.toString();
+    session.cursor = page.size() == pageSize ? cursor.after(page.get(pageSize - 1)) : null;
+    if (page.isEmpty()) {
+      out.append("No more flights match your selection\n");
+      return;
+    }
+    // the earlier pages may be a list shared with the search cache
+    int first = session.itineraries.size();
+    List<Itinerary> all = new ArrayList<Itinerary>(first + page.size());
+    all.addAll(session.itineraries);
+    all.addAll(page);
+    session.itineraries = all;
+    appendItineraries(out, all, first);
+  }
+
+  /* prints the itineraries from the first one on, each numbered by its index */
+  private static void appendItineraries(Appendable out, List<Itinerary> itineraries, int first) throws IOException
+  {
+    for (int i = first; i < itineraries.size(); i ++) {
+      Itinerary it = itineraries.get(i);
+      out.append("Itinerary ");
+      appendInt(out, i);
+      out.append(": ");
+      appendInt(out, it.legs());
+      out.append(" flight(s), ");
+      appendInt(out, it.time());
+      out.append(" minutes\n");
+      for (int leg = 0; leg < it.legs(); leg++) {
+        it.leg(leg).appendTo(out);
+        out.append('\n');
+      }
+    }
   }
 
   /**
    * Implements the book itinerary function.
    *
+   * @param session the session of the calling client
    * @param itineraryId ID of the itinerary to book. This must be one that is returned by search in the current session.
    *
    * @return If the user is not logged in, then return "Cannot book reservations, not logged in\n".
@@ -548,142 +535,39 @@ public class Query
    *
    * And if booking succeeded, return "Booked flight(s), reservation ID: [reservationId]\n" where
    * reservationId is a unique number in the reservation system that starts from 1 and increments by 1 each time a
-   * successful reservation is made by any user in the system.
+   * successful reservation is made by any user in the system. When IDs are allocated in blocks
+   * (flightservice.reservation_id_block) they are still unique, but may skip numbers, and concurrent
+   * bookings need not get them in the order they commit.
    */
-  public String transaction_book(int itineraryId)
+  public String transaction_book(Session session, int itineraryId)
   {
-    if(this.username == null)
-      return "Cannot book reservations, not logged in\n";
+    long start = System.nanoTime();
+    if(session.username == null)
+      return metrics.rejected(TransactionMetrics.Type.BOOK, start, "Cannot book reservations, not logged in\n");
 
-    if(itineraryId < 0 || itineraryId >= this.itineraries.size())
-      return "No such itinerary "+ itineraryId +"\n";
+    if(itineraryId < 0 || itineraryId >= session.itineraries.size())
+      return metrics.rejected(TransactionMetrics.Type.BOOK, start, "No such itinerary "+ itineraryId +"\n");
 
-    Itinerary it = this.itineraries.get(itineraryId);
+    Itinerary it = session.itineraries.get(itineraryId);
 
     try {
-      beginTransaction();
-      checkReserveStatement.clearParameters();
-      checkReserveStatement.setString(1, this.username);
-      ResultSet result = checkReserveStatement.executeQuery();
-      while (result.next()) {
-        int bookedDay = result.getInt("day");
-
-        if (it.dayOfMonth == bookedDay) {
-          result.close();
-          rollbackTransaction();
-          return "You cannot book two flights in the same day\n";
-        }
-      }
-    
-      result.close();
-
-      // check capacity of flight 1
-      int capacity1;
-      checkFlightCapacityStatement2.clearParameters();
-      checkFlightCapacityStatement2.setInt(1, it.f1.fid);
-      ResultSet re = checkFlightCapacityStatement2.executeQuery();
-      if (re.isBeforeFirst()) {
-        re.next();
-        capacity1 = re.getInt("capacity");
-      } else {
-        insertCapacityStatement.clearParameters();
-        insertCapacityStatement.setInt(1, it.f1.fid);
-        insertCapacityStatement.executeUpdate();
-        getCapacityStatement.clearParameters();
-        getCapacityStatement.setInt(1, it.f1.fid);
-        ResultSet capacityresult = getCapacityStatement.executeQuery();
-        capacityresult.next();
-        capacity1 = capacityresult.getInt("capacity");
-        capacityresult.close();
-      }
-      re.close();
-
-      if (capacity1 == 0) {
-        rollbackTransaction();
-        return "Booking failed\n";
-      }
-
-      // check capacity of flight 2 
-      if (it.f2 != null) {
-        int capacity2;
-        checkFlightCapacityStatement2.clearParameters();
-        checkFlightCapacityStatement2.setInt(1, it.f2.fid);
-        ResultSet re2 = checkFlightCapacityStatement2.executeQuery();
-        if (re2.isBeforeFirst()) {
-          re2.next();
-          capacity2 = re2.getInt("capacity");
-        } else {
-          insertCapacityStatement.clearParameters();
-          insertCapacityStatement.setInt(1, it.f2.fid);
-          insertCapacityStatement.executeUpdate();
-          getCapacityStatement.clearParameters();
-          getCapacityStatement.setInt(1, it.f2.fid);
-          ResultSet capacityresult2 = getCapacityStatement.executeQuery();
-          capacityresult2.next();
-          capacity2 = capacityresult2.getInt("capacity");
-          capacityresult2.close();
-        }
-        re2.close();
-
-        if (capacity2 == 0) {
-          rollbackTransaction();
-          return "Booking failed\n";
-        }
-      }
-
-      // update capacity 
-
-      setCapacityStatement.clearParameters();
-      setCapacityStatement.setInt(1, it.f1.fid);
-      setCapacityStatement.setInt(2, it.f1.fid);
-      setCapacityStatement.executeUpdate();
-
-      if (it.f2 != null) {
-        setCapacityStatement.clearParameters();
-        setCapacityStatement.setInt(1, it.f2.fid);
-        setCapacityStatement.setInt(2, it.f2.fid);
-        setCapacityStatement.executeUpdate();
-      }
-
-      // update reservation
-      getReservationCountStatement.clearParameters();
-      ResultSet reserveCount = getReservationCountStatement.executeQuery();
-      int count;
-      if (reserveCount.isBeforeFirst()) {
-        reserveCount.next();
-        count = reserveCount.getInt("count");
-      } else {
-        Statement ini = conn.createStatement();
-        ini.executeUpdate("INSERT INTO ReserveCount VALUES (0)");
-        count = 0;
-      }
-
-      reserveCount.close();
-      setReservationCountStatement.clearParameters();
-      setReservationCountStatement.executeUpdate();
-
-      insertReservationStatement.clearParameters();
-      insertReservationStatement.setInt(1, count+1);
-      insertReservationStatement.setInt(2, it.f1.fid);
-      if (it.f2 != null)
-        insertReservationStatement.setInt(3, it.f2.fid);
-      else 
-        insertReservationStatement.setInt(3, -1);
-      insertReservationStatement.setString(4, this.username);
-      insertReservationStatement.setInt(5, 0);
-      insertReservationStatement.setInt(6, it.cost);
-      insertReservationStatement.setInt(7, it.f1.dayOfMonth);
-      insertReservationStatement.executeUpdate();
-      commitTransaction();
-      return "Booked flight(s), reservation ID: " + (count+1) + "\n";
+      int rid = store.book(session.username, it);
+      if (rid == FlightStore.SAME_DAY)
+        return metrics.rejected(TransactionMetrics.Type.BOOK, start, "You cannot book two flights in the same day\n");
+      if (rid == FlightStore.NO_SEATS)
+        return metrics.rejected(TransactionMetrics.Type.BOOK, start, "Booking failed\n");
+      return metrics.success(TransactionMetrics.Type.BOOK, start, "Booked flight(s), reservation ID: " + rid + "\n");
     } catch (SQLException e) {
       // e.printStackTrace();
-      return "Booking failed\n";
+      return metrics.error(TransactionMetrics.Type.BOOK, e, start, "Booking failed\n");
     }
   }
+
   /**
    * Implements the reservations function.
    *
+   * @param session the session of the calling client
+   *
    * @return If no user has logged in, then return "Cannot view reservations, not logged in\n"
    * If the user has no reservations, then return "No reservations found\n"
    * For all other errors, return "Failed to retrieve reservations\n"
@@ -702,60 +586,69 @@ public class Query
    *
    * @see Flight#toString()
    */
-  public String transaction_reservations()
+  public String transaction_reservations(Session session)
+  {
+    StringBuilder sb = new StringBuilder();
+    try {
+      transaction_reservations(session, sb);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e); // StringBuilder does not throw
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Like {@link #transaction_reservations(Session)}, but writes the response to {@code out}.
+   * The reservations are read first and written once the transaction is over, so a slow
+   * {@code out} never holds a connection.
+   *
+   * @throws IOException only if {@code out} does
+   */
+  public void transaction_reservations(Session session, Appendable out) throws IOException
   {
-    if (this.username == null) {
-      return "Cannot view reservations, not logged in\n";
+    long start = System.nanoTime();
+    if (session.username == null) {
+      out.append(metrics.rejected(TransactionMetrics.Type.RESERVATIONS, start,
+                                  "Cannot view reservations, not logged in\n"));
+      return;
     }
+    List<Reservation> reservations;
     try {
-      beginTransaction();
-      getReservationStatement.clearParameters();
-      getReservationStatement.setString(1, this.username);
-      ResultSet resever = getReservationStatement.executeQuery();
-      if (resever.isBeforeFirst()) {
-        StringBuffer sb = new StringBuffer();
-        while(resever.next()) {
-          int rid = resever.getInt("rid");
-          int pid = resever.getInt("paid");
-          int fid1 = resever.getInt("fid1");
-          int fid2 = resever.getInt("fid2");
-          String paid;
-          if (pid == 1)
-            paid = "true";
-          else
-            paid = "false";
-          sb.append("Reservation "+ rid +" paid: " + paid + ":\n");
-          sb.append(flightinfo(fid1)+ "\n");
-          if (fid2 != -1)
-            sb.append(flightinfo(fid2)+ "\n");
-        }
-        return sb.toString();
-      } else {
-        resever.close();
-        commitTransaction();
-        return "No reservations found\n";
-      }
+      reservations = store.reservations(session.username);
     } catch (SQLException e) {
       // e.printStackTrace();
-      return "Failed to retrieve reservations\n";
+      out.append(metrics.error(TransactionMetrics.Type.RESERVATIONS, e, start, "Failed to retrieve reservations\n"));
+      return;
     }
-  }
+    metrics.record(TransactionMetrics.Type.RESERVATIONS, TransactionMetrics.Outcome.SUCCESS, start);
 
-  private String flightinfo(int fid) throws SQLException{
-    beginTransaction();
-    getFlightStatement.clearParameters();
-    getFlightStatement.setInt(1, fid);
-    ResultSet re = getFlightStatement.executeQuery();
-    re.next();
-    Flight f = parser(re, true);
-    re.close();
-    commitTransaction();
-    return f.toString();
+    if (reservations.isEmpty()) {
+      out.append("No reservations found\n");
+      return;
+    }
+    for (Reservation r : reservations) {
+      out.append("Reservation ");
+      appendInt(out, r.rid);
+      out.append(r.paid ? " paid: true:\n" : " paid: false:\n");
+      r.f1.appendTo(out);
+      out.append('\n');
+      if (r.f2 != null) {
+        r.f2.appendTo(out);
+        out.append('\n');
+      }
+      if (r.more != null) {
+        for (Flight f : r.more) {
+          f.appendTo(out);
+          out.append('\n');
+        }
+      }
+    }
   }
 
   /**
    * Implements the cancel operation.
    *
+   * @param session the session of the calling client
    * @param reservationId the reservation ID to cancel
    *
    * @return If no user has logged in, then return "Cannot cancel reservations, not logged in\n"
@@ -765,62 +658,29 @@ public class Query
    *
    * Even though a reservation has been canceled, its ID should not be reused by the system.
    */
-  public String transaction_cancel(int reservationId)
+  public String transaction_cancel(Session session, int reservationId)
   {
     // only implement this if you are interested in earning extra credit for the HW!
-    if (this.username == null) {
-      return "Cannot cancel reservations, not logged in\n";
+    long start = System.nanoTime();
+    if (session.username == null) {
+      return metrics.rejected(TransactionMetrics.Type.CANCEL, start, "Cannot cancel reservations, not logged in\n");
     }
     try {
-      beginTransaction();
-      getOneReservation.clearParameters();
-      getOneReservation.setInt(1, reservationId);
-      getOneReservation.setString(2, this.username);
-      ResultSet re = getOneReservation.executeQuery();
-      if (re.isBeforeFirst()) {
-        re.next();
-        int pid = re.getInt("paid");
-        int fid1 = re.getInt("fid1");
-        int fid2 = re.getInt("fid2");
-
-        // add capacity
-        addCapacityStatement.clearParameters();
-        addCapacityStatement.setInt(1, fid1);
-        addCapacityStatement.setInt(2, fid1);
-        addCapacityStatement.executeUpdate();
-        if (fid2 != -1) {
-          addCapacityStatement.clearParameters();
-          addCapacityStatement.setInt(1, fid2);
-          addCapacityStatement.setInt(2, fid2);
-          addCapacityStatement.executeUpdate();
-        }
-        // refund
-        if (pid == 1) {
-          int money = re.getInt("cost");
-          addMoneyStatament.clearParameters();
-          addMoneyStatament.setString(1, this.username);
-          addMoneyStatament.setInt(2, money);
-          addMoneyStatament.setString(3, this.username);
-          addMoneyStatament.executeUpdate();
-        }
-        re.close();
-        // delete reservation
-        deleteReservationStatement.clearParameters();
-        deleteReservationStatement.setInt(1, reservationId);
-        deleteReservationStatement.executeUpdate();
-        commitTransaction();
-        return "Canceled reservation " + reservationId + "\n";
-      }
-      return "Failed to cancel reservation " + reservationId + "\n";
+      if (store.cancel(session.username, reservationId))
+        return metrics.success(TransactionMetrics.Type.CANCEL, start, "Canceled reservation " + reservationId + "\n");
+      return metrics.rejected(TransactionMetrics.Type.CANCEL, start,
+                              "Failed to cancel reservation " + reservationId + "\n");
     } catch (SQLException e) {
       // e.printStackTrace();
-      return "Failed to cancel reservation " + reservationId + "\n";
+      return metrics.error(TransactionMetrics.Type.CANCEL, e, start,
+                           "Failed to cancel reservation " + reservationId + "\n");
     }
   }
 
   /**
    * Implements the pay function.
    *
+   * @param session the session of the calling client
    * @param reservationId the reservation to pay for.
    *
    * @return If no user has logged in, then return "Cannot pay, not logged in\n"
@@ -833,96 +693,25 @@ public class Query
    * If successful, return "Paid reservation: [reservationId] remaining balance: [balance]\n"
    * where [balance] is the remaining balance in the user's account.
    */
-  public String transaction_pay (int reservationId)
+  public String transaction_pay (Session session, int reservationId)
   {
-    if (this.username == null){
-      return "Cannot pay, not logged in\n";
+    long start = System.nanoTime();
+    if (session.username == null){
+      return metrics.rejected(TransactionMetrics.Type.PAY, start, "Cannot pay, not logged in\n");
     }
     try {
-      beginTransaction();
-      getPaidStatusStatement.clearParameters();
-      getPaidStatusStatement.setInt(1, reservationId);
-      getPaidStatusStatement.setString(2, this.username);
-
-      ResultSet p = getPaidStatusStatement.executeQuery();
-      if (!p.isBeforeFirst()) {
-        return "Cannot find unpaid reservation " + reservationId + " under user: " + this.username + "\n";
-      } else {
-        p.next();
-        int paid = p.getInt("paid");
-        if (paid == 1) {
-          p.close();
-          rollbackTransaction();
-          return "Cannot find unpaid reservation " + reservationId + " under user: " + this.username + "\n";
-        } 
-
-        int cost = p.getInt("cost");
-
-        getBalanceStatement.clearParameters();
-        getBalanceStatement.setString(1, this.username);
-        ResultSet re = getBalanceStatement.executeQuery();
-        re.next();
-        int balance = re.getInt("balance");
-        if (cost > balance) {
-          p.close();
-          re.close();
-          rollbackTransaction();
-          return "User has only " + balance + " in account but itinerary costs " + cost + "\n";
-        } else {
-          spendMoneyStatament.clearParameters();
-          spendMoneyStatament.setString(1, this.username);
-          spendMoneyStatament.setInt(2, cost);
-          spendMoneyStatament.setString(3, this.username);
-          spendMoneyStatament.executeUpdate();
-
-          setPaidStatusStatement.clearParameters();
-          setPaidStatusStatement.setInt(1, 1);
-          setPaidStatusStatement.setInt(2, reservationId);
-          setPaidStatusStatement.setString(3, this.username);
-          setPaidStatusStatement.executeUpdate();
-          commitTransaction();
-          return "Paid reservation: " + reservationId + " remaining balance: " + (balance - cost) + "\n";
-        }
-      }
+      FlightStore.Payment payment = store.pay(session.username, reservationId);
+      if (payment == FlightStore.Payment.NOT_FOUND)
+        return metrics.rejected(TransactionMetrics.Type.PAY, start, "Cannot find unpaid reservation " + reservationId
+                                + " under user: " + session.username + "\n");
+      if (!payment.paid)
+        return metrics.rejected(TransactionMetrics.Type.PAY, start, "User has only " + payment.balance
+                                + " in account but itinerary costs " + payment.cost + "\n");
+      return metrics.success(TransactionMetrics.Type.PAY, start, "Paid reservation: " + reservationId
+                             + " remaining balance: " + payment.balance + "\n");
     } catch (SQLException e) { 
       // e.printStackTrace(); 
-    } 
-    return "Failed to pay for reservation " + reservationId + "\n";
-  }
-
-  /* some utility functions below */
-
-  public void beginTransaction() throws SQLException
-  {
-    conn.setAutoCommit(false);
-    beginTransactionStatement.executeUpdate();
-  }
-
-  public void commitTransaction() throws SQLException
-  {
-    commitTransactionStatement.executeUpdate();
-    conn.setAutoCommit(true);
-  }
-
-  public void rollbackTransaction() throws SQLException
-  {
-    rollbackTransactionStatement.executeUpdate();
-    conn.setAutoCommit(true);
-  }
-
-  /**
-   * Shows an example of using PreparedStatements after setting arguments. You don't need to
-   * use this method if you don't want to.
-   */
-  private int checkFlightCapacity(int fid) throws SQLException
-  {
-    checkFlightCapacityStatement.clearParameters();
-    checkFlightCapacityStatement.setInt(1, fid);
-    ResultSet results = checkFlightCapacityStatement.executeQuery();
-    results.next();
-    int capacity = results.getInt("capacity");
-    results.close();
-
-    return capacity;
+      return metrics.error(TransactionMetrics.Type.PAY, e, start, "Failed to pay for reservation " + reservationId + "\n");
+    }
   }
 }
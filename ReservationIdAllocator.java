@@ -0,0 +1,194 @@
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out reservation IDs. IDs are unique and never reused, even after a cancel.
+ *
+ * In strict-dense mode (block size 0) every ID is read and bumped in ReserveCount inside
+ * the booking transaction, exactly as before: IDs have no gaps, but all bookers serialize on
+ * that one row until they commit.
+ *
+ * In block mode the allocator reserves {@code blockSize} IDs at a time by moving
+ * ReserveCount forward in a short transaction of its own, on a dedicated connection, and
+ * hands them out in-process with a lock-free increment. The ReserveCount row is then only
+ * locked once per block. IDs left unused in a block when the process stops are skipped,
+ * so IDs stay unique but may have gaps.
+ */
+public class ReservationIdAllocator
+{
+  static final String RESERVE_BLOCK = "UPDATE ReserveCount SET count = count + ?;";
+  static final String INIT_COUNT = "INSERT INTO ReserveCount VALUES (?);";
+
+  private final int blockSize;
+  private final PooledConnection dedicated; // block mode only
+  private PreparedStatement reserveBlockStatement;
+  private PreparedStatement initCountStatement;
+
+  // IDs in (next - 1, end] are free; swapped for a new block when used up
+  private volatile Block block;
+  // held while reserving a block; a lock rather than a monitor, so a virtual thread waiting on
+  // the database in refill() does not pin its carrier thread
+  private final ReentrantLock refillLock = new ReentrantLock();
+
+  private static final class Block
+  {
+    final AtomicInteger next;
+    final int end;
+
+    Block(int first, int end)
+    {
+      this.next = new AtomicInteger(first);
+      this.end = end;
+    }
+  }
+
+  /**
+   * @param blockSize the number of IDs reserved at a time, or 0 for strict-dense mode
+   */
+  public ReservationIdAllocator(ConnectionPool pool, int blockSize) throws SQLException
+  {
+    if (blockSize < 0)
+      throw new IllegalArgumentException("block size must not be negative: " + blockSize);
+    this.blockSize = blockSize;
+    if (blockSize > 0) {
+      dedicated = pool.openDedicated();
+      dedicated.prepareStatements();
+      reserveBlockStatement = dedicated.conn.prepareStatement(RESERVE_BLOCK);
+      initCountStatement = dedicated.conn.prepareStatement(INIT_COUNT);
+    } else {
+      dedicated = null;
+    }
+  }
+
+  public boolean isDense()
+  {
+    return blockSize == 0;
+  }
+
+  /**
+   * @param c the connection of the booking transaction; only used in strict-dense mode,
+   * where the ID is allocated as part of that transaction.
+   *
+   * @return the next reservation ID
+   */
+  public int next(PooledConnection c) throws SQLException
+  {
+    if (isDense())
+      return nextDense(c);
+    while (true) {
+      Block b = block;
+      if (b != null) {
+        int id = b.next.getAndIncrement();
+        if (id <= b.end)
+          return id;
+      }
+      refill(b);
+    }
+  }
+
+  /**
+   * Like {@link #next(PooledConnection)}, for {@code n} reservations at once; in strict-dense
+   * mode ReserveCount is read and moved forward only once for all of them.
+   *
+   * @return n new reservation IDs, in increasing order
+   */
+  public int[] next(PooledConnection c, int n) throws SQLException
+  {
+    int[] ids = new int[n];
+    if (isDense()) {
+      int last = nextDense(c, n);
+      for (int i = 0; i < n; i++)
+        ids[i] = last - n + 1 + i;
+    } else {
+      for (int i = 0; i < n; i++)
+        ids[i] = next(c);
+    }
+    return ids;
+  }
+
+  private int nextDense(PooledConnection c) throws SQLException
+  {
+    return nextDense(c, 1);
+  }
+
+  /* moves ReserveCount forward by n and returns the last ID taken */
+  private int nextDense(PooledConnection c, int n) throws SQLException
+  {
+    c.getReservationCountStatement.clearParameters();
+    ResultSet reserveCount = c.getReservationCountStatement.executeQuery();
+    int count;
+    if (reserveCount.isBeforeFirst()) {
+      reserveCount.next();
+      count = reserveCount.getInt("count");
+    } else {
+      Statement ini = c.conn.createStatement();
+      ini.executeUpdate("INSERT INTO ReserveCount VALUES (0)");
+      ini.close();
+      count = 0;
+    }
+    reserveCount.close();
+    if (n == 1) {
+      c.setReservationCountStatement.clearParameters();
+      c.setReservationCountStatement.executeUpdate();
+    } else {
+      c.addReservationCountStatement.clearParameters();
+      c.addReservationCountStatement.setInt(1, n);
+      c.addReservationCountStatement.executeUpdate();
+    }
+    return count + n;
+  }
+
+  /* only the thread that finds the block it saw still in place reserves the next one */
+  private void refill(Block seen) throws SQLException
+  {
+    refillLock.lock();
+    boolean done = false;
+    try {
+      if (block != seen)
+        return;
+      dedicated.beginTransaction();
+      reserveBlockStatement.setInt(1, blockSize);
+      if (reserveBlockStatement.executeUpdate() == 0) {
+        initCountStatement.setInt(1, blockSize);
+        initCountStatement.executeUpdate();
+      }
+      ResultSet result = dedicated.getReservationCountStatement.executeQuery();
+      result.next();
+      int end = result.getInt("count");
+      result.close();
+      dedicated.commitTransaction();
+      done = true;
+      block = new Block(end - blockSize + 1, end);
+    } finally {
+      try {
+        if (!done && dedicated.inTransaction())
+          dedicated.rollbackTransaction();
+      } finally {
+        refillLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Drops the current block, for when ReserveCount has been cleared.
+   */
+  public void reset()
+  {
+    refillLock.lock();
+    try {
+      block = null;
+    } finally {
+      refillLock.unlock();
+    }
+  }
+
+  public void close() throws SQLException
+  {
+    if (dedicated != null)
+      dedicated.close();
+  }
+}
@@ -0,0 +1,291 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeSet;
+
+/**
+ * In-memory index of all non-canceled flights, keyed by (origin_city, day_of_month) and
+ * then dest_city, all by their folded {@link NameDictionary} codes so that cities match in
+ * any case, as they do in SQL Server.
+ *
+ * Flights are static reference data, so the index is loaded once and then answers
+ * both the direct and the one-stop searches of {@code Query.transaction_search}
+ * without a round trip to the database. Results come out in the same order as
+ * DIRECT_SEARCH and INDIRECT_SEARCH: by total flight time, then by fid.
+ */
+public class RouteIndex
+{
+  static final String LOAD_FLIGHTS = "SELECT * FROM Flights WHERE canceled != 1;";
+
+  /* flights sorted by (actual_time, fid), the order of DIRECT_SEARCH */
+  static final Comparator<Query.Flight> BY_TIME = new Comparator<Query.Flight>() {
+    public int compare(Query.Flight a, Query.Flight b)
+    {
+      if (a.time != b.time)
+        return Integer.compare(a.time, b.time);
+      return Integer.compare(a.fid, b.fid);
+    }
+  };
+
+  private static final Query.Flight[] NO_FLIGHTS = new Query.Flight[0];
+
+  private static final int DAYS = 32; // day_of_month is 1-31
+
+  /* the flights leaving one city on one day, by destination */
+  private static final class Departures
+  {
+    final int[] dests; // city codes, ascending
+    final Query.Flight[][] legs; // legs[i] go to dests[i], sorted BY_TIME
+
+    Departures(int[] dests, Query.Flight[][] legs)
+    {
+      this.dests = dests;
+      this.legs = legs;
+    }
+
+    Query.Flight[] to(int dest)
+    {
+      int i = Arrays.binarySearch(dests, dest);
+      return i < 0 ? NO_FLIGHTS : legs[i];
+    }
+  }
+
+  /* indexed by origin * DAYS + day_of_month; null where no flight leaves */
+  private final Departures[] departures;
+  private final int size;
+
+  private RouteIndex(Departures[] departures, int size)
+  {
+    this.departures = departures;
+    this.size = size;
+  }
+
+  /**
+   * Reads every non-canceled flight once and builds the index.
+   */
+  public static RouteIndex load(PooledConnection c) throws SQLException
+  {
+    return build(loadFlights(c));
+  }
+
+  /**
+   * @return every non-canceled flight
+   */
+  static List<Query.Flight> loadFlights(PooledConnection c) throws SQLException
+  {
+    List<Query.Flight> flights = new ArrayList<>();
+    Statement load = c.conn.createStatement();
+    try {
+      ResultSet results = load.executeQuery(LOAD_FLIGHTS);
+      while (results.next())
+        flights.add(JdbcFlightStore.parser(results, true));
+      results.close();
+    } finally {
+      load.close();
+    }
+    return flights;
+  }
+
+  static RouteIndex build(List<Query.Flight> flights)
+  {
+    int cities = 0;
+    for (Query.Flight f : flights)
+      cities = Math.max(cities, Math.max(f.origin, f.dest) + 1);
+
+    // group by (origin, day), then by destination, cities by folded code
+    List<Map<Integer, List<Query.Flight>>> grouped = new ArrayList<>(Collections.nCopies(cities * DAYS, null));
+    for (Query.Flight f : flights) {
+      // no search matches a NULL city, nor does SQL join legs on one
+      if (f.dayOfMonth < 0 || f.dayOfMonth >= DAYS
+          || f.origin == NameDictionary.NULL || f.dest == NameDictionary.NULL)
+        continue;
+      int slot = NameDictionary.CITIES.fold(f.origin) * DAYS + f.dayOfMonth;
+      if (grouped.get(slot) == null)
+        grouped.set(slot, new HashMap<>());
+      grouped.get(slot).computeIfAbsent(NameDictionary.CITIES.fold(f.dest), k -> new ArrayList<>()).add(f);
+    }
+
+    Departures[] departures = new Departures[cities * DAYS];
+    for (int slot = 0; slot < departures.length; slot++) {
+      Map<Integer, List<Query.Flight>> byDest = grouped.get(slot);
+      if (byDest == null)
+        continue;
+      int[] dests = new int[byDest.size()];
+      int n = 0;
+      for (int dest : byDest.keySet())
+        dests[n++] = dest;
+      Arrays.sort(dests);
+      Query.Flight[][] legs = new Query.Flight[dests.length][];
+      for (int i = 0; i < dests.length; i++) {
+        legs[i] = byDest.get(dests[i]).toArray(NO_FLIGHTS);
+        Arrays.sort(legs[i], BY_TIME);
+      }
+      departures[slot] = new Departures(dests, legs);
+    }
+    return new RouteIndex(departures, flights.size());
+  }
+
+  /**
+   * @return every city a flight in the index leaves from, sorted
+   */
+  public List<String> originCities()
+  {
+    TreeSet<String> cities = new TreeSet<>();
+    for (int slot = 0; slot < departures.length; slot++)
+      if (departures[slot] != null)
+        cities.add(NameDictionary.CITIES.name(slot / DAYS));
+    return new ArrayList<>(cities);
+  }
+
+  /**
+   * @return the number of flights in the index
+   */
+  public int size()
+  {
+    return size;
+  }
+
+  /* the flights leaving origin on that day, or null */
+  private Departures departures(int dayOfMonth, int origin)
+  {
+    if (origin < 0 || dayOfMonth < 0 || dayOfMonth >= DAYS)
+      return null;
+    int slot = origin * DAYS + dayOfMonth;
+    return slot < departures.length ? departures[slot] : null;
+  }
+
+  /**
+   * @return the non-canceled flights from origin to dest on the given day, sorted by (time, fid);
+   * both cities by folded code
+   */
+  Query.Flight[] legs(int dayOfMonth, int origin, int dest)
+  {
+    Departures from = departures(dayOfMonth, origin);
+    return from == null ? NO_FLIGHTS : from.to(dest);
+  }
+
+  /**
+   * Same as running DIRECT_SEARCH and, unless {@code directFlight} is set, INDIRECT_SEARCH:
+   * offers the candidates to {@code ranker} fastest first and stops each stream as soon
+   * as the ranker cannot take any more of it.
+   */
+  public void search(ItineraryRanker ranker, String originCity, String destinationCity, boolean directFlight,
+                     int dayOfMonth)
+  {
+    search(ranker, originCity, destinationCity, directFlight, dayOfMonth, null);
+  }
+
+  /**
+   * Like {@link #search(ItineraryRanker, String, String, boolean, int)}, but only offers the
+   * itineraries after {@code after}, or all if it is null. Every list of legs is entered
+   * by binary search at the first one that can follow the cursor, so nothing before it is read.
+   */
+  public void search(ItineraryRanker ranker, String originCity, String destinationCity, boolean directFlight,
+                     int dayOfMonth, SearchCursor after)
+  {
+    int origin = NameDictionary.CITIES.findFolded(originCity);
+    int dest = NameDictionary.CITIES.findFolded(destinationCity);
+    Departures from = departures(dayOfMonth, origin);
+    if (from == null || dest == NameDictionary.NONE)
+      return;
+
+    // a direct itinerary has fid2 -1, so it follows the cursor only with a greater (time, fid)
+    Query.Flight[] direct = from.to(dest);
+    for (int i = after == null ? 0 : firstAfter(direct, after.time, after.fid1); i < direct.length; i++) {
+      Query.Flight f = direct[i];
+      if (!ranker.accepts(f.time))
+        break;
+      ranker.offer(itinerary(f, null));
+    }
+    if (directFlight)
+      return;
+
+    // k-way merge over every first leg, each paired with its second legs in time order
+    PriorityQueue<Pairing> frontier = new PriorityQueue<>();
+    for (Query.Flight[] firstLegs : from.legs) {
+      for (Query.Flight f1 : firstLegs) {
+        Query.Flight[] secondLegs = legs(dayOfMonth, NameDictionary.CITIES.fold(f1.dest), dest);
+        int first = after == null ? 0 : firstSecondLeg(secondLegs, f1, after);
+        if (first < secondLegs.length)
+          frontier.add(new Pairing(f1, secondLegs, first));
+      }
+    }
+    while (!frontier.isEmpty() && ranker.accepts(frontier.peek().time)) {
+      Pairing next = frontier.poll();
+      ranker.offer(itinerary(next.f1, next.secondLegs[next.i]));
+      if (next.i + 1 < next.secondLegs.length)
+        frontier.add(new Pairing(next.f1, next.secondLegs, next.i + 1));
+    }
+  }
+
+  /* the index of the first second leg that makes an itinerary after the cursor with f1 */
+  private static int firstSecondLeg(Query.Flight[] secondLegs, Query.Flight f1, SearchCursor after)
+  {
+    int time = after.time - f1.time;
+    if (f1.fid > after.fid1)
+      return firstAfter(secondLegs, time, Integer.MIN_VALUE); // same total time will do
+    if (f1.fid == after.fid1)
+      return firstAfter(secondLegs, time, after.fid2);
+    return firstAfter(secondLegs, time, Integer.MAX_VALUE); // only a longer total time will
+  }
+
+  /* the index of the first of the legs, sorted BY_TIME, that comes after (time, fid) */
+  private static int firstAfter(Query.Flight[] legs, int time, int fid)
+  {
+    int lo = 0;
+    int hi = legs.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      Query.Flight f = legs[mid];
+      if (f.time < time || (f.time == time && f.fid <= fid))
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+  private static Query.Itinerary itinerary(Query.Flight f1, Query.Flight f2)
+  {
+    Query.Itinerary it = new Query.Itinerary();
+    it.f1 = f1;
+    it.f2 = f2;
+    it.dayOfMonth = f1.dayOfMonth;
+    it.cost = f2 == null ? f1.price : f1.price + f2.price;
+    return it;
+  }
+
+  /* a first leg paired with its i-th fastest second leg, ordered like INDIRECT_SEARCH */
+  private static final class Pairing implements Comparable<Pairing>
+  {
+    final Query.Flight f1;
+    final Query.Flight[] secondLegs;
+    final int i;
+    final int time;
+
+    Pairing(Query.Flight f1, Query.Flight[] secondLegs, int i)
+    {
+      this.f1 = f1;
+      this.secondLegs = secondLegs;
+      this.i = i;
+      this.time = f1.time + secondLegs[i].time;
+    }
+
+    public int compareTo(Pairing o)
+    {
+      if (time != o.time)
+        return Integer.compare(time, o.time);
+      if (f1.fid != o.f1.fid)
+        return Integer.compare(f1.fid, o.f1.fid);
+      return Integer.compare(secondLegs[i].fid, o.secondLegs[o.i].fid);
+    }
+  }
+}
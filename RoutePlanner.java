@@ -0,0 +1,283 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Properties;
+
+/**
+ * Finds the fastest itineraries of up to {@code maxLegs} flights, for the searches that want
+ * more than the direct and one-stop itineraries of {@link RouteIndex}.
+ *
+ * The timetable is a set of primitive arrays over all non-canceled flights, sorted by
+ * (day_of_month, origin_city) so that the flights leaving a city on a day are one range, cities
+ * by their folded {@link NameDictionary} code so that they match in any case. A
+ * search first works backwards from the destination: for every city and number of flights
+ * left, the least time still needed to get there, ignoring that a route may not pass a city
+ * twice, so it never overestimates. Routes are then extended best-first by their time so far
+ * plus that bound; a route whose bound cannot make the top K is never extended, and the
+ * search stops as soon as no route left can.
+ *
+ * Flights has the day and duration of every flight but no clock times, so connections cannot
+ * be timed: instead each one adds {@code minConnection} minutes to the total time of an
+ * itinerary. With {@code nextDay}, the later flights of an itinerary may leave on the day
+ * after the first one. An itinerary never visits a city twice, except that it may end where
+ * it started, as one-stop searches may.
+ */
+public class RoutePlanner
+{
+  static final int MAX_LEGS = 6;
+
+  private static final int DAYS = 32; // day_of_month is 1-31
+  private static final int UNREACHABLE = Integer.MAX_VALUE / 2;
+
+  private final int cities;
+  private final int[] start; // the flights leaving city c on day d are [start[d * cities + c], start[d * cities + c + 1])
+  private final int[] dest;
+  private final int[] time;
+  private final Query.Flight[] flights;
+
+  private final int maxLegs;
+  private final int minConnection;
+  private final boolean nextDay;
+
+  /* a route from the origin, as a chain back to its first flight */
+  private static final class Route implements Comparable<Route>
+  {
+    final Route previous; // null for the first flight
+    final int flight;
+    final int city; // where it has got to
+    final int day; // 1 once a flight has left on the day after the search's
+    final int legs;
+    final int time;
+    final int bound; // time plus the least time left to the destination
+
+    Route(Route previous, int flight, int city, int day, int legs, int time, int bound)
+    {
+      this.previous = previous;
+      this.flight = flight;
+      this.city = city;
+      this.day = day;
+      this.legs = legs;
+      this.time = time;
+      this.bound = bound;
+    }
+
+    public int compareTo(Route o)
+    {
+      return Integer.compare(bound, o.bound);
+    }
+  }
+
+  private RoutePlanner(int cities, int[] start, int[] dest, int[] time, Query.Flight[] flights,
+                       int maxLegs, int minConnection, boolean nextDay)
+  {
+    this.cities = cities;
+    this.start = start;
+    this.dest = dest;
+    this.time = time;
+    this.flights = flights;
+    this.maxLegs = maxLegs;
+    this.minConnection = minConnection;
+    this.nextDay = nextDay;
+  }
+
+  /**
+   * @return the most flights an itinerary may have, from flightservice.max_legs (default 2)
+   */
+  static int maxLegs(Properties configProps)
+  {
+    int maxLegs = Integer.parseInt(configProps.getProperty("flightservice.max_legs", "2"));
+    if (maxLegs < 1 || maxLegs > MAX_LEGS)
+      throw new IllegalArgumentException("flightservice.max_legs must be from 1 to " + MAX_LEGS + ": " + maxLegs);
+    return maxLegs;
+  }
+
+  /**
+   * @return true if flightservice.max_legs, flightservice.min_connection_minutes or
+   * flightservice.next_day_connections ask for searches that need a planner
+   */
+  static boolean wanted(Properties configProps)
+  {
+    return maxLegs(configProps) != 2
+           || Integer.parseInt(configProps.getProperty("flightservice.min_connection_minutes", "0")) != 0
+           || Boolean.parseBoolean(configProps.getProperty("flightservice.next_day_connections", "false"));
+  }
+
+  /**
+   * @return the planner the configuration asks for, or null if it {@link #wanted asks for none}
+   */
+  static RoutePlanner configure(Properties configProps, List<Query.Flight> flights)
+  {
+    if (!wanted(configProps))
+      return null;
+    int minConnection = Integer.parseInt(configProps.getProperty("flightservice.min_connection_minutes", "0"));
+    if (minConnection < 0)
+      throw new IllegalArgumentException("flightservice.min_connection_minutes is negative: " + minConnection);
+    return build(flights, maxLegs(configProps), minConnection,
+                 Boolean.parseBoolean(configProps.getProperty("flightservice.next_day_connections", "false")));
+  }
+
+  static RoutePlanner build(List<Query.Flight> flights, int maxLegs, int minConnection, boolean nextDay)
+  {
+    int cities = 0;
+    for (Query.Flight f : flights)
+      cities = Math.max(cities, Math.max(f.origin, f.dest) + 1);
+
+    // counting sort by (day, origin), each range then by (time, fid); no route goes through a NULL city
+    int[] start = new int[DAYS * cities + 1];
+    for (Query.Flight f : flights)
+      if (planned(f))
+        start[f.dayOfMonth * cities + NameDictionary.CITIES.fold(f.origin) + 1]++;
+    for (int slot = 0; slot < DAYS * cities; slot++)
+      start[slot + 1] += start[slot];
+    Query.Flight[] sorted = new Query.Flight[start[DAYS * cities]];
+    int[] next = Arrays.copyOf(start, start.length);
+    for (Query.Flight f : flights)
+      if (planned(f))
+        sorted[next[f.dayOfMonth * cities + NameDictionary.CITIES.fold(f.origin)]++] = f;
+    for (int slot = 0; slot < DAYS * cities; slot++)
+      Arrays.sort(sorted, start[slot], start[slot + 1], RouteIndex.BY_TIME);
+
+    int[] dest = new int[sorted.length];
+    int[] time = new int[sorted.length];
+    for (int i = 0; i < sorted.length; i++) {
+      dest[i] = NameDictionary.CITIES.fold(sorted[i].dest);
+      time[i] = sorted[i].time;
+    }
+    return new RoutePlanner(cities, start, dest, time, sorted, maxLegs, minConnection, nextDay);
+  }
+
+  private static boolean planned(Query.Flight f)
+  {
+    return f.dayOfMonth >= 0 && f.dayOfMonth < DAYS && f.origin != NameDictionary.NULL && f.dest != NameDictionary.NULL;
+  }
+
+  public int maxLegs()
+  {
+    return maxLegs;
+  }
+
+  /**
+   * Offers {@code ranker} the best itineraries from origin to destination leaving on that day,
+   * or only those after {@code after} if it is not null; the ranker keeps the top K of them.
+   */
+  public void search(ItineraryRanker ranker, String originCity, String destinationCity, int dayOfMonth,
+                     SearchCursor after)
+  {
+    int origin = NameDictionary.CITIES.findFolded(originCity);
+    int target = NameDictionary.CITIES.findFolded(destinationCity);
+    if (origin < 0 || origin >= cities || target < 0 || target >= cities || dayOfMonth < 0 || dayOfMonth >= DAYS)
+      return;
+    int days = nextDay && dayOfMonth + 1 < DAYS ? 2 : 1;
+    int[][][] left = bounds(target, dayOfMonth, days);
+
+    PriorityQueue<Route> open = new PriorityQueue<>();
+    extend(open, ranker, after, left, null, origin, dayOfMonth, 0, origin, target);
+    while (!open.isEmpty() && ranker.accepts(open.peek().bound)) {
+      Route r = open.poll();
+      if (r.city == target) {
+        ranker.offer(itinerary(r));
+      } else if (r.legs < maxLegs) {
+        extend(open, ranker, after, left, r, r.city, dayOfMonth, r.day, origin, target);
+        if (r.day == 0 && days == 2)
+          extend(open, ranker, after, left, r, r.city, dayOfMonth, 1, origin, target);
+      }
+    }
+  }
+
+  /*
+   * queues every flight from city on the day that can still make the top K after route r; a
+   * route it takes to the target is finished, with its time and key known, so it is dropped
+   * here if it ranks at or before the cursor. Unfinished routes are queued whatever their
+   * bound, which only says how soon they could get there, not how late.
+   */
+  private void extend(PriorityQueue<Route> open, ItineraryRanker ranker, SearchCursor after, int[][][] left,
+                      Route r, int city, int dayOfMonth, int day, int origin, int target)
+  {
+    int legs = r == null ? 1 : r.legs + 1;
+    int slot = (dayOfMonth + day) * cities + city;
+    for (int f = start[slot]; f < start[slot + 1]; f++) {
+      int to = dest[f];
+      if (visited(r, to, origin, target))
+        continue;
+      int rest = left[day][maxLegs - legs][to];
+      if (rest >= UNREACHABLE)
+        continue;
+      int time = (r == null ? 0 : r.time + minConnection) + this.time[f];
+      if (!ranker.accepts(time + rest))
+        continue;
+      Route next = new Route(r, f, to, day, legs, time, time + rest);
+      if (to == target && !after(after, next))
+        continue;
+      open.add(next);
+    }
+  }
+
+  /* the origin may only be visited again as the destination of a round trip */
+  private boolean visited(Route r, int city, int origin, int target)
+  {
+    if (city == origin && city != target)
+      return true;
+    for (; r != null; r = r.previous)
+      if (dest[r.flight] == city)
+        return true;
+    return false;
+  }
+
+  /*
+   * left[day][legs][city]: the least time from city to target with at most legs more flights,
+   * each a connection, the first leaving on the search's day plus day or, from day 0 with
+   * next-day connections, on the day after
+   */
+  private int[][][] bounds(int target, int dayOfMonth, int days)
+  {
+    int[][][] left = new int[days][maxLegs][cities];
+    for (int day = days - 1; day >= 0; day--) {
+      for (int legs = 0; legs < maxLegs; legs++) {
+        int[] bound = left[day][legs];
+        Arrays.fill(bound, UNREACHABLE);
+        bound[target] = 0;
+        if (legs == 0)
+          continue;
+        int[] fewer = left[day][legs - 1];
+        int[] later = day + 1 < days ? left[day + 1][legs] : null;
+        for (int city = 0; city < cities; city++) {
+          if (city == target)
+            continue;
+          int best = fewer[city];
+          if (later != null)
+            best = Math.min(best, later[city]);
+          int slot = (dayOfMonth + day) * cities + city;
+          for (int f = start[slot]; f < start[slot + 1]; f++)
+            if (fewer[dest[f]] < UNREACHABLE)
+              best = Math.min(best, minConnection + time[f] + fewer[dest[f]]);
+          bound[city] = best;
+        }
+      }
+    }
+    return left;
+  }
+
+  /* true if the finished route ranks after the cursor, or there is none */
+  private boolean after(SearchCursor after, Route r)
+  {
+    if (after == null || r.time != after.time)
+      return after == null || r.time > after.time;
+    return after.precedes(itinerary(r));
+  }
+
+  private Query.Itinerary itinerary(Route r)
+  {
+    Query.Flight[] legs = new Query.Flight[r.legs];
+    for (Route leg = r; leg != null; leg = leg.previous)
+      legs[leg.legs - 1] = flights[leg.flight];
+    Query.Itinerary it = new Query.Itinerary();
+    it.f1 = legs[0];
+    it.f2 = legs.length > 1 ? legs[1] : null;
+    it.more = legs.length > 2 ? Arrays.copyOfRange(legs, 2, legs.length) : null;
+    it.dayOfMonth = legs[0].dayOfMonth;
+    it.layover = (legs.length - 1) * minConnection;
+    for (Query.Flight f : legs)
+      it.cost += f.price;
+    return it;
+  }
+}
@@ -0,0 +1,331 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Brings the tables of createTables.sql and the indexes the workload needs up to date,
+ * and checks that the live schema is what the canned queries expect.
+ *
+ * The schema is versioned: SchemaVersion holds a row per migration applied. {@link #migrate()}
+ * applies the missing ones in order, in one transaction, holding an application lock so that
+ * two services starting together do not both apply them. Migrations are idempotent, so a
+ * database created from an up-to-date createTables.sql is migrated by recording versions alone.
+ *
+ * {@link #drift()} compares the live schema with the expected one: every table with its
+ * columns in order (the canned queries read and insert by position), the primary keys, and
+ * the key and included columns of every index.
+ */
+public class SchemaManager
+{
+  static final String CREATE_VERSION_TABLE = "IF OBJECT_ID('SchemaVersion') IS NULL "
+    + "CREATE TABLE SchemaVersion (version INT NOT NULL PRIMARY KEY, description VARCHAR(200) NOT NULL, "
+    + "applied DATETIME2 NOT NULL DEFAULT SYSUTCDATETIME());";
+
+  static final String LOCK_SCHEMA = "EXEC sp_getapplock @Resource = 'flightservice-schema', "
+    + "@LockMode = 'Exclusive', @LockOwner = 'Transaction';";
+
+  static final String RECORD_VERSION = "INSERT INTO SchemaVersion (version, description) VALUES (?, ?);";
+
+  static final String GET_COLUMNS = "SELECT COLUMN_NAME FROM INFORMATION_SCHEMA.COLUMNS "
+    + "WHERE TABLE_SCHEMA = SCHEMA_NAME() AND TABLE_NAME = ? ORDER BY ORDINAL_POSITION;";
+
+  static final String GET_PRIMARY_KEY = "SELECT K.COLUMN_NAME "
+    + "FROM INFORMATION_SCHEMA.TABLE_CONSTRAINTS T JOIN INFORMATION_SCHEMA.KEY_COLUMN_USAGE K "
+    + "ON K.CONSTRAINT_SCHEMA = T.CONSTRAINT_SCHEMA AND K.CONSTRAINT_NAME = T.CONSTRAINT_NAME "
+    + "WHERE T.TABLE_SCHEMA = SCHEMA_NAME() AND T.TABLE_NAME = ? AND T.CONSTRAINT_TYPE = 'PRIMARY KEY' "
+    + "ORDER BY K.ORDINAL_POSITION;";
+
+  static final String GET_INDEX_COLUMNS = "SELECT C.name, IC.key_ordinal, IC.is_included_column "
+    + "FROM sys.indexes I JOIN sys.index_columns IC ON IC.object_id = I.object_id AND IC.index_id = I.index_id "
+    + "JOIN sys.columns C ON C.object_id = IC.object_id AND C.column_id = IC.column_id "
+    + "WHERE I.object_id = OBJECT_ID(?) AND I.name = ? ORDER BY IC.key_ordinal;";
+
+  /* every table with its primary key, null where it is not checked, and its columns in order */
+  private static final Table[] TABLES = {
+    new Table("Flights", null, "fid", "month_id", "day_of_month", "day_of_week_id", "carrier_id", "flight_num",
+              "origin_city", "origin_state", "dest_city", "dest_state", "departure_delay", "taxi_out",
+              "arrival_delay", "canceled", "actual_time", "distance", "capacity", "price"),
+    new Table("Users", "username", "username", "pass", "balance"),
+    new Table("Reservations", "rid", "rid", "fid1", "fid2", "usr", "paid", "cost", "day"),
+    new Table("Capacities", "fid", "fid", "capacity"),
+    new Table("ReserveCount", "count", "count"),
+    new Table("ReservationLegs", null, "rid", "leg", "fid"),
+  };
+
+  private static final Index[] INDEXES = {
+    // DIRECT_SEARCH and both legs of INDIRECT_SEARCH seek on it and read it in actual_time order
+    new Index("Flights", "IX_Flights_Route",
+              new String[] { "origin_city", "day_of_month", "dest_city", "actual_time", "fid" },
+              new String[] { "month_id", "day_of_week_id", "carrier_id", "flight_num", "origin_state",
+                             "dest_state", "departure_delay", "taxi_out", "arrival_delay", "canceled",
+                             "distance", "capacity", "price" }),
+    // CHECK_RESERVE, GET_RESERVATION
+    new Index("Reservations", "IX_Reservations_Usr",
+              new String[] { "usr" },
+              new String[] { "fid1", "fid2", "paid", "cost", "day" }),
+  };
+
+  private static final Migration[] MIGRATIONS = {
+    new Migration(1, "tables of createTables.sql",
+      "IF OBJECT_ID('Users') IS NULL CREATE TABLE Users ("
+        + "username VARCHAR(20) NOT NULL PRIMARY KEY, pass VARCHAR(20), balance INT);",
+      "IF OBJECT_ID('Reservations') IS NULL CREATE TABLE Reservations ("
+        + "rid INT NOT NULL PRIMARY KEY, fid1 INT NOT NULL REFERENCES Flights(fid), fid2 INT, "
+        + "usr VARCHAR(20) REFERENCES Users(username), paid INT, cost INT, day INT);",
+      "IF OBJECT_ID('Capacities') IS NULL CREATE TABLE Capacities ("
+        + "fid INT NOT NULL PRIMARY KEY REFERENCES Flights(fid), capacity INT);",
+      "IF OBJECT_ID('ReserveCount') IS NULL CREATE TABLE ReserveCount (count INT NOT NULL PRIMARY KEY);"),
+    new Migration(2, "covering indexes for search and reservations",
+      INDEXES[0].createSql(),
+      INDEXES[1].createSql()),
+    new Migration(3, "flights of reservations after the second",
+      "IF OBJECT_ID('ReservationLegs') IS NULL CREATE TABLE ReservationLegs ("
+        + "rid INT NOT NULL REFERENCES Reservations(rid), leg INT NOT NULL, "
+        + "fid INT NOT NULL REFERENCES Flights(fid), PRIMARY KEY (rid, leg));"),
+  };
+
+  /** the version this build expects */
+  static final int VERSION = MIGRATIONS.length;
+
+  private static final class Table
+  {
+    final String name;
+    final String primaryKey; // null if it has none to check
+    final String[] columns;
+
+    Table(String name, String primaryKey, String... columns)
+    {
+      this.name = name;
+      this.primaryKey = primaryKey;
+      this.columns = columns;
+    }
+  }
+
+  private static final class Index
+  {
+    final String table;
+    final String name;
+    final String[] keys;
+    final String[] included;
+
+    Index(String table, String name, String[] keys, String[] included)
+    {
+      this.table = table;
+      this.name = name;
+      this.keys = keys;
+      this.included = included;
+    }
+
+    String createSql()
+    {
+      return "IF NOT EXISTS (SELECT * FROM sys.indexes WHERE object_id = OBJECT_ID('" + table + "') "
+        + "AND name = '" + name + "') "
+        + "CREATE INDEX " + name + " ON " + table + " (" + String.join(", ", keys) + ") "
+        + "INCLUDE (" + String.join(", ", included) + ");";
+    }
+  }
+
+  private static final class Migration
+  {
+    final int version;
+    final String description;
+    final String[] statements;
+
+    Migration(int version, String description, String... statements)
+    {
+      this.version = version;
+      this.description = description;
+      this.statements = statements;
+    }
+  }
+
+  private final Connection conn;
+
+  /**
+   * @param conn a connection in auto-commit mode, not used by anything else meanwhile
+   */
+  public SchemaManager(Connection conn)
+  {
+    this.conn = conn;
+  }
+
+  /**
+   * @return the last migration applied to the database, 0 if none
+   */
+  public int version() throws SQLException
+  {
+    try (Statement s = conn.createStatement()) {
+      ResultSet exists = s.executeQuery("SELECT OBJECT_ID('SchemaVersion');");
+      exists.next();
+      exists.getObject(1);
+      boolean found = !exists.wasNull();
+      exists.close();
+      if (!found)
+        return 0;
+      ResultSet results = s.executeQuery("SELECT MAX(version) FROM SchemaVersion;");
+      results.next();
+      int version = results.getInt(1);
+      results.close();
+      return version;
+    }
+  }
+
+  /**
+   * @return true if the table exists, whatever the version; tables a migration added are
+   * missing from databases that were never migrated to it
+   */
+  public boolean hasTable(String name) throws SQLException
+  {
+    try (ResultSet tables = conn.getMetaData().getTables(null, null, null, new String[] { "TABLE" })) {
+      while (tables.next())
+        if (tables.getString("TABLE_NAME").equalsIgnoreCase(name))
+          return true;
+    }
+    return false;
+  }
+
+  /**
+   * Applies the migrations the database does not have yet.
+   *
+   * @return a line for each migration applied
+   * @throws IllegalStateException if the database is at a version newer than this build
+   */
+  public List<String> migrate() throws SQLException
+  {
+    List<String> applied = new ArrayList<>();
+    conn.setAutoCommit(false);
+    try (Statement s = conn.createStatement()) {
+      s.execute(LOCK_SCHEMA);
+      s.execute(CREATE_VERSION_TABLE);
+      PreparedStatement record = conn.prepareStatement(RECORD_VERSION);
+      int version = version();
+      if (version > VERSION)
+        throw new IllegalStateException("database schema is at version " + version
+                                        + ", newer than the version " + VERSION + " this build knows");
+      for (Migration m : MIGRATIONS) {
+        if (m.version <= version)
+          continue;
+        for (String sql : m.statements)
+          s.execute(sql);
+        record.setInt(1, m.version);
+        record.setString(2, m.description);
+        record.executeUpdate();
+        applied.add("version " + m.version + ": " + m.description);
+      }
+      record.close();
+      conn.commit();
+    } catch (SQLException | RuntimeException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+    return applied;
+  }
+
+  /**
+   * @return every difference between the live schema and the one this build expects, empty
+   * if there is none
+   */
+  public List<String> drift() throws SQLException
+  {
+    List<String> problems = new ArrayList<>();
+    int version = version();
+    if (version != VERSION)
+      problems.add("schema version is " + version + ", expected " + VERSION);
+
+    try (PreparedStatement columns = conn.prepareStatement(GET_COLUMNS);
+         PreparedStatement primaryKey = conn.prepareStatement(GET_PRIMARY_KEY)) {
+      for (Table t : TABLES) {
+        List<String> live = strings(columns, t.name);
+        if (live.isEmpty()) {
+          problems.add("table " + t.name + " is missing");
+          continue;
+        }
+        if (!sameNames(live, Arrays.asList(t.columns)))
+          problems.add("table " + t.name + " has columns (" + String.join(", ", live) + "), expected ("
+                       + String.join(", ", t.columns) + ")");
+        if (t.primaryKey != null) {
+          List<String> key = strings(primaryKey, t.name);
+          if (!sameNames(key, List.of(t.primaryKey)))
+            problems.add("table " + t.name + (key.isEmpty() ? " has no primary key" : " has primary key ("
+                         + String.join(", ", key) + ")") + ", expected (" + t.primaryKey + ")");
+        }
+      }
+    }
+
+    try (PreparedStatement indexColumns = conn.prepareStatement(GET_INDEX_COLUMNS)) {
+      for (Index index : INDEXES) {
+        indexColumns.setString(1, index.table);
+        indexColumns.setString(2, index.name);
+        List<String> keys = new ArrayList<>();
+        Set<String> included = new HashSet<>();
+        ResultSet results = indexColumns.executeQuery();
+        while (results.next()) {
+          String column = results.getString(1).toLowerCase(Locale.ROOT);
+          if (results.getBoolean(3))
+            included.add(column);
+          else
+            keys.add(column);
+        }
+        results.close();
+        if (keys.isEmpty()) {
+          problems.add("index " + index.name + " on " + index.table + " is missing");
+          continue;
+        }
+        if (!sameNames(keys, Arrays.asList(index.keys)))
+          problems.add("index " + index.name + " on " + index.table + " has keys (" + String.join(", ", keys)
+                       + "), expected (" + String.join(", ", index.keys) + ")");
+        for (String column : index.included)
+          if (!included.contains(column.toLowerCase(Locale.ROOT)))
+            problems.add("index " + index.name + " on " + index.table + " does not include " + column);
+      }
+    }
+    return problems;
+  }
+
+  /**
+   * @throws IllegalStateException listing every difference, if the live schema is not the expected one
+   */
+  public void verify() throws SQLException
+  {
+    List<String> problems = drift();
+    if (problems.isEmpty())
+      return;
+    StringBuilder report = new StringBuilder("The database schema does not match what this build expects:");
+    for (String problem : problems)
+      report.append("\n  - ").append(problem);
+    report.append("\nStart with flightservice.schema=migrate to bring it up to date, or fix it by hand.");
+    throw new IllegalStateException(report.toString());
+  }
+
+  private static List<String> strings(PreparedStatement query, String parameter) throws SQLException
+  {
+    query.setString(1, parameter);
+    List<String> strings = new ArrayList<>();
+    ResultSet results = query.executeQuery();
+    while (results.next())
+      strings.add(results.getString(1));
+    results.close();
+    return strings;
+  }
+
+  /* identifiers are not case sensitive */
+  private static boolean sameNames(List<String> a, List<String> b)
+  {
+    if (a.size() != b.size())
+      return false;
+    for (int i = 0; i < a.size(); i++)
+      if (!a.get(i).equalsIgnoreCase(b.get(i)))
+        return false;
+    return true;
+  }
+}
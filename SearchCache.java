@@ -0,0 +1,149 @@
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of search results shared by all sessions, keyed by the parameters
+ * of {@code Query.transaction_search}.
+ *
+ * Flights is static reference data, so a cached result never goes stale on its own.
+ * Booking and canceling only change Capacities, and the capacity printed by
+ * {@code Flight.toString()} is the one from Flights, so they do not change what a cached
+ * search prints either; only {@link #clear()} (called from {@code Query.clearTables})
+ * drops entries, besides LRU eviction once the cache is full.
+ */
+public class SearchCache
+{
+  private final int capacity;
+  private final LinkedHashMap<Key, List<Query.Itinerary>> entries;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  static final class Key
+  {
+    final int origin; // codes in NameDictionary.CITIES
+    final int destination;
+    final boolean directFlight;
+    final int dayOfMonth;
+    final int numberOfItineraries;
+
+    Key(int origin, int destination, boolean directFlight, int dayOfMonth, int numberOfItineraries)
+    {
+      this.origin = origin;
+      this.destination = destination;
+      this.directFlight = directFlight;
+      this.dayOfMonth = dayOfMonth;
+      this.numberOfItineraries = numberOfItineraries;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+      if (!(o instanceof Key))
+        return false;
+      Key k = (Key) o;
+      return directFlight == k.directFlight && dayOfMonth == k.dayOfMonth
+             && numberOfItineraries == k.numberOfItineraries
+             && origin == k.origin && destination == k.destination;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      int h = origin;
+      h = 31 * h + destination;
+      h = 31 * h + (directFlight ? 1 : 0);
+      h = 31 * h + dayOfMonth;
+      return 31 * h + numberOfItineraries;
+    }
+  }
+
+  public SearchCache(int capacity)
+  {
+    if (capacity < 1)
+      throw new IllegalArgumentException("cache capacity must be at least 1: " + capacity);
+    this.capacity = capacity;
+    // access order turns the map into an LRU list, eldest first
+    this.entries = new LinkedHashMap<Key, List<Query.Itinerary>>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Key, List<Query.Itinerary>> eldest)
+      {
+        if (size() <= SearchCache.this.capacity)
+          return false;
+        evictions.incrementAndGet();
+        return true;
+      }
+    };
+  }
+
+  /**
+   * @return the cached itineraries for the search, best first, or null on a miss.
+   * The list is shared and must not be modified.
+   */
+  public List<Query.Itinerary> get(Key key)
+  {
+    List<Query.Itinerary> result;
+    synchronized (entries) {
+      result = entries.get(key);
+    }
+    if (result != null)
+      hits.incrementAndGet();
+    else
+      misses.incrementAndGet();
+    return result;
+  }
+
+  /**
+   * Caches the result of a search.
+   *
+   * @return the unmodifiable list that was cached
+   */
+  public List<Query.Itinerary> put(Key key, List<Query.Itinerary> itineraries)
+  {
+    List<Query.Itinerary> shared = Collections.unmodifiableList(itineraries);
+    synchronized (entries) {
+      entries.put(key, shared);
+    }
+    return shared;
+  }
+
+  public void clear()
+  {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  public int size()
+  {
+    synchronized (entries) {
+      return entries.size();
+    }
+  }
+
+  public long hits()
+  {
+    return hits.get();
+  }
+
+  public long misses()
+  {
+    return misses.get();
+  }
+
+  public long evictions()
+  {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "SearchCache size: " + size() + "/" + capacity + " hits: " + hits() + " misses: " + misses()
+           + " evictions: " + evictions();
+  }
+}
@@ -0,0 +1,87 @@
+import java.util.Arrays;
+
+/**
+ * Where a search left off: its parameters and the key of the last itinerary it returned,
+ * in the order searches rank by (total time, fid of the first flight, fid of the second, and
+ * so on for itineraries of more flights).
+ *
+ * The next page is found by seeking past the key instead of searching again for more
+ * results and skipping the ones already seen, so a page deep into the results costs what
+ * the first one did.
+ */
+public final class SearchCursor
+{
+  final String originCity;
+  final String destinationCity;
+  final boolean directFlight;
+  final int dayOfMonth;
+  final int pageSize;
+
+  final int time;
+  final int fid1;
+  final int fid2; // -1 after a direct itinerary
+  final int[] more; // the fids after fid2, empty unless the itinerary had more than two flights
+
+  private SearchCursor(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                       int pageSize, int time, int fid1, int fid2, int[] more)
+  {
+    this.originCity = originCity;
+    this.destinationCity = destinationCity;
+    this.directFlight = directFlight;
+    this.dayOfMonth = dayOfMonth;
+    this.pageSize = pageSize;
+    this.time = time;
+    this.fid1 = fid1;
+    this.fid2 = fid2;
+    this.more = more;
+  }
+
+  /**
+   * @param last the last itinerary of the page just returned
+   */
+  static SearchCursor after(String originCity, String destinationCity, boolean directFlight, int dayOfMonth,
+                            int pageSize, Query.Itinerary last)
+  {
+    int[] more = new int[Math.max(last.legs() - 2, 0)];
+    for (int i = 0; i < more.length; i++)
+      more[i] = last.leg(i + 2).fid;
+    return new SearchCursor(originCity, destinationCity, directFlight, dayOfMonth, pageSize,
+                            last.time(), last.f1.fid, last.fid2(), more);
+  }
+
+  /**
+   * @return the same search, positioned after {@code last} instead
+   */
+  SearchCursor after(Query.Itinerary last)
+  {
+    return after(originCity, destinationCity, directFlight, dayOfMonth, pageSize, last);
+  }
+
+  /**
+   * @return true if the itinerary ranks after the cursor
+   */
+  boolean precedes(Query.Itinerary it)
+  {
+    if (it.time() != time)
+      return it.time() > time;
+    if (it.f1.fid != fid1)
+      return it.f1.fid > fid1;
+    if (it.fid2() != fid2)
+      return it.fid2() > fid2;
+    int legs = Math.max(it.legs() - 2, more.length);
+    for (int i = 0; i < legs; i++) {
+      int fid = i + 2 < it.legs() ? it.leg(i + 2).fid : -1;
+      int key = i < more.length ? more[i] : -1;
+      if (fid != key)
+        return fid > key;
+    }
+    return false;
+  }
+
+  @Override
+  public String toString()
+  {
+    return originCity + " -> " + destinationCity + " day " + dayOfMonth + (directFlight ? " direct" : "")
+           + " after " + time + "/" + fid1 + "/" + fid2 + (more.length > 0 ? " " + Arrays.toString(more) : "");
+  }
+}
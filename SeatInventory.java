@@ -0,0 +1,290 @@
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remaining seats per flight, kept in memory and written behind to Capacities.
+ *
+ * Booking and canceling decide on the seats with a compare-and-set on a per-fid counter,
+ * so concurrent bookings of a popular flight no longer queue up on its Capacities row.
+ * Counters are seeded from Capacities at startup and lazily from Flights.capacity for
+ * flights that have never been booked. The changes to each counter are accumulated as
+ * deltas and flushed to Capacities in one batched transaction every flush interval.
+ *
+ * The counters are the authority on seats while the service runs, so this process must be
+ * the only one booking. If it stops without flushing, Reservations still has every booking;
+ * {@link #recover(PooledConnection)} rebuilds Capacities from it on the next start.
+ */
+public class SeatInventory
+{
+  // rows for every flight that has reservations, then their capacity recomputed from them
+  static final String RECOVER_MISSING_CAPACITIES = "INSERT INTO Capacities "
+    + "SELECT F.fid, F.capacity FROM Flights F "
+    + "WHERE F.fid IN (SELECT fid1 FROM Reservations UNION SELECT fid2 FROM Reservations "
+    + "UNION SELECT fid FROM ReservationLegs) "
+    + "AND NOT EXISTS (SELECT * FROM Capacities C WHERE C.fid = F.fid);";
+
+  static final String RECOVER_CAPACITIES = "UPDATE Capacities SET capacity = "
+    + "(SELECT F.capacity FROM Flights F WHERE F.fid = Capacities.fid) - "
+    + "(SELECT COUNT(*) FROM Reservations R WHERE R.fid1 = Capacities.fid OR R.fid2 = Capacities.fid) - "
+    + "(SELECT COUNT(*) FROM ReservationLegs L WHERE L.fid = Capacities.fid);";
+
+  // the same for databases from before ReservationLegs, where no reservation has more than two flights
+  static final String RECOVER_MISSING_TWO_LEG_CAPACITIES = "INSERT INTO Capacities "
+    + "SELECT F.fid, F.capacity FROM Flights F "
+    + "WHERE F.fid IN (SELECT fid1 FROM Reservations UNION SELECT fid2 FROM Reservations) "
+    + "AND NOT EXISTS (SELECT * FROM Capacities C WHERE C.fid = F.fid);";
+
+  static final String RECOVER_TWO_LEG_CAPACITIES = "UPDATE Capacities SET capacity = "
+    + "(SELECT F.capacity FROM Flights F WHERE F.fid = Capacities.fid) - "
+    + "(SELECT COUNT(*) FROM Reservations R WHERE R.fid1 = Capacities.fid OR R.fid2 = Capacities.fid);";
+
+  static final String LOAD_CAPACITIES = "SELECT fid, capacity FROM Capacities;";
+
+  private final ConnectionPool pool;
+  private final ConcurrentHashMap<Integer, AtomicInteger> remaining = new ConcurrentHashMap<>();
+  // changes to remaining that are not in Capacities yet
+  private final ConcurrentHashMap<Integer, AtomicInteger> pending = new ConcurrentHashMap<>();
+  private final long flushIntervalMillis;
+  private final ScheduledExecutorService flusher;
+
+  public SeatInventory(ConnectionPool pool, long flushIntervalMillis)
+  {
+    this.pool = pool;
+    this.flushIntervalMillis = flushIntervalMillis;
+    this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "seat-inventory-flusher");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  /**
+   * Starts flushing in the background, every flush interval.
+   */
+  public void start()
+  {
+    flusher.scheduleWithFixedDelay(() -> {
+      try {
+        flush();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Brings Capacities back in line with Reservations and loads it into the counters.
+   */
+  public synchronized void recover(PooledConnection c) throws SQLException
+  {
+    c.beginTransaction();
+    Statement s = c.conn.createStatement();
+    try {
+      recoverCapacities(c.conn, s);
+      remaining.clear();
+      pending.clear();
+      ResultSet results = s.executeQuery(LOAD_CAPACITIES);
+      while (results.next())
+        remaining.put(results.getInt("fid"), new AtomicInteger(results.getInt("capacity")));
+      results.close();
+    } finally {
+      s.close();
+    }
+    c.commitTransaction();
+  }
+
+  /**
+   * Recomputes Capacities for every flight with reservations, counting the flights of
+   * ReservationLegs too where the database has it.
+   */
+  static void recoverCapacities(Connection conn, Statement s) throws SQLException
+  {
+    if (new SchemaManager(conn).hasTable("ReservationLegs")) {
+      s.executeUpdate(RECOVER_MISSING_CAPACITIES);
+      s.executeUpdate(RECOVER_CAPACITIES);
+    } else {
+      s.executeUpdate(RECOVER_MISSING_TWO_LEG_CAPACITIES);
+      s.executeUpdate(RECOVER_TWO_LEG_CAPACITIES);
+    }
+  }
+
+  /**
+   * Takes one seat on each flight of the itinerary, or none at all.
+   *
+   * @param f2 the second flight, or null
+   * @return false if either flight is full
+   */
+  public boolean reserve(Query.Flight f1, Query.Flight f2)
+  {
+    if (!take(f1))
+      return false;
+    if (f2 != null && !take(f2)) {
+      giveBack(f1.fid);
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Like {@link #reserve(Query.Flight, Query.Flight)}, for an itinerary of any number of flights.
+   */
+  public boolean reserve(Query.Itinerary it)
+  {
+    for (int leg = 0; leg < it.legs(); leg++) {
+      if (!take(it.leg(leg))) {
+        for (int taken = 0; taken < leg; taken++)
+          giveBack(it.leg(taken).fid);
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private boolean take(Query.Flight f)
+  {
+    AtomicInteger seats = remaining.computeIfAbsent(f.fid, fid -> new AtomicInteger(f.capacity));
+    while (true) {
+      int n = seats.get();
+      if (n <= 0)
+        return false;
+      if (seats.compareAndSet(n, n - 1))
+        return true;
+    }
+  }
+
+  /**
+   * Gives back the seats of a {@link #reserve} whose booking did not commit.
+   */
+  public void undo(int fid1, int fid2)
+  {
+    giveBack(fid1);
+    if (fid2 != -1)
+      giveBack(fid2);
+  }
+
+  /**
+   * Records that the booking the seats were reserved for has committed.
+   */
+  public void booked(int fid1, int fid2)
+  {
+    delta(fid1, -1);
+    if (fid2 != -1)
+      delta(fid2, -1);
+  }
+
+  /**
+   * Gives back the seats of a reservation whose cancellation has committed.
+   */
+  public void canceled(int fid1, int fid2)
+  {
+    release(fid1);
+    if (fid2 != -1)
+      release(fid2);
+  }
+
+  private void release(int fid)
+  {
+    giveBack(fid);
+    delta(fid, 1);
+  }
+
+  /* a seat back on the flight's counter, unless clear() has dropped the counters since it was taken */
+  private void giveBack(int fid)
+  {
+    AtomicInteger seats = remaining.get(fid);
+    if (seats != null)
+      seats.incrementAndGet();
+  }
+
+  private void delta(int fid, int d)
+  {
+    pending.computeIfAbsent(fid, k -> new AtomicInteger()).addAndGet(d);
+  }
+
+  /**
+   * @return the seats left on a flight that has been booked or recovered, or -1 if unknown
+   */
+  public int remaining(int fid)
+  {
+    AtomicInteger seats = remaining.get(fid);
+    return seats == null ? -1 : seats.get();
+  }
+
+  /**
+   * Writes the accumulated changes to Capacities in one transaction. Changes that fail
+   * to write are kept for the next flush.
+   */
+  public synchronized void flush() throws SQLException
+  {
+    List<int[]> deltas = new ArrayList<>();
+    for (Map.Entry<Integer, AtomicInteger> e : pending.entrySet()) {
+      int d = e.getValue().getAndSet(0);
+      if (d != 0)
+        deltas.add(new int[] { e.getKey(), d });
+    }
+    if (deltas.isEmpty())
+      return;
+
+    PooledConnection c = null;
+    boolean written = false;
+    try {
+      c = pool.acquire();
+      c.beginTransaction();
+      // flights booked for the first time get their row, seeded from Flights
+      for (int[] d : deltas) {
+        c.insertCapacityStatement.clearParameters();
+        c.insertCapacityStatement.setInt(1, d[0]);
+        c.insertCapacityStatement.addBatch();
+      }
+      c.insertCapacityStatement.executeBatch();
+      for (int[] d : deltas) {
+        c.changeCapacityStatement.clearParameters();
+        c.changeCapacityStatement.setInt(1, d[1]);
+        c.changeCapacityStatement.setInt(2, d[0]);
+        c.changeCapacityStatement.addBatch();
+      }
+      c.changeCapacityStatement.executeBatch();
+      c.commitTransaction();
+      written = true;
+    } finally {
+      if (!written) {
+        for (int[] d : deltas)
+          delta(d[0], d[1]);
+      }
+      pool.release(c);
+    }
+  }
+
+  /**
+   * Forgets all counters and unwritten changes, for when Capacities is being cleared.
+   */
+  public synchronized void clear()
+  {
+    remaining.clear();
+    pending.clear();
+  }
+
+  /**
+   * Stops the background flusher and writes what is left.
+   */
+  public void close() throws SQLException
+  {
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+}
@@ -0,0 +1,25 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The state of one client of the flight service: who is logged in and the
+ * itineraries returned by that client's most recent search and its later pages.
+ *
+ * A session is used by a single client thread at a time. It holds no database
+ * resources; every transaction runs against the {@code Query} store.
+ */
+public class Session
+{
+  // Logged In User
+  String username; // customer username is unique
+
+  List<Query.Itinerary> itineraries = new ArrayList<Query.Itinerary>();
+
+  // where the pages of the most recent search end so far; null if it has no more
+  SearchCursor cursor;
+
+  public String getUsername()
+  {
+    return username;
+  }
+}
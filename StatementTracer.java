@@ -0,0 +1,223 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts, times and logs the executions of the canned statements.
+ *
+ * {@link #wrap} puts a proxy in front of a prepared statement that remembers the parameters
+ * bound to it and, for every execution, adds the time it took and the rows it returned or
+ * changed to the totals of its canned query. Rows of a query are counted as the caller reads
+ * them. An execution that takes at least the slow threshold is written to the slow-query log
+ * with its parameters; the parameters declared secret, the passwords, are written as
+ * {@code ***}.
+ *
+ * A wrapped statement is used by one thread at a time, like the connection it belongs to.
+ */
+public class StatementTracer
+{
+  private static final class Stats
+  {
+    final String name;
+    final LongAdder executions = new LongAdder();
+    final LongAdder rows = new LongAdder();
+    final LongAdder nanos = new LongAdder();
+    final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    Stats(String name)
+    {
+      this.name = name;
+    }
+  }
+
+  private final ConcurrentHashMap<String, Stats> stats = new ConcurrentHashMap<>();
+  private final long slowNanos;
+  private final PrintStream log;
+
+  /**
+   * @param slowMillis executions that take at least this long are logged; negative logs none
+   * @param log where slow executions are written
+   */
+  public StatementTracer(long slowMillis, PrintStream log)
+  {
+    this.slowNanos = slowMillis < 0 ? Long.MAX_VALUE : slowMillis * 1_000_000;
+    this.log = log;
+  }
+
+  /**
+   * @param name the name of the canned query, what its executions are counted under
+   * @param secret the 1-based indexes of the parameters never to log
+   * @return {@code statement}, traced
+   */
+  public PreparedStatement wrap(PreparedStatement statement, String name, int... secret)
+  {
+    Stats s = stats.computeIfAbsent(name, Stats::new);
+    return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                                                      new Class<?>[] { PreparedStatement.class },
+                                                      new TracedStatement(statement, s, secret));
+  }
+
+  private final class TracedStatement implements InvocationHandler
+  {
+    private final PreparedStatement target;
+    private final Stats stats;
+    private final int[] secret;
+    private Object[] parameters = new Object[4];
+
+    TracedStatement(PreparedStatement target, Stats stats, int[] secret)
+    {
+      this.target = target;
+      this.stats = stats;
+      this.secret = secret;
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+    {
+      String name = method.getName();
+      if (name.startsWith("execute"))
+        return execute(method, args);
+      if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer index)
+        bind(index, name.equals("setNull") ? null : args[1]);
+      else if (name.equals("clearParameters"))
+        Arrays.fill(parameters, null);
+      Object result = call(method, args);
+      if (name.equals("getResultSet") && result != null)
+        return countRows((ResultSet) result);
+      return result;
+    }
+
+    private void bind(int index, Object value)
+    {
+      if (index > parameters.length)
+        parameters = Arrays.copyOf(parameters, Math.max(index, 2 * parameters.length));
+      if (index >= 1)
+        parameters[index - 1] = value;
+    }
+
+    private Object execute(Method method, Object[] args) throws Throwable
+    {
+      long start = System.nanoTime();
+      Object result = null;
+      boolean failed = true;
+      try {
+        result = call(method, args);
+        failed = false;
+      } finally {
+        long elapsed = System.nanoTime() - start;
+        stats.executions.increment();
+        stats.nanos.add(elapsed);
+        stats.maxNanos.accumulate(elapsed);
+        if (result instanceof Integer n)
+          stats.rows.add(Math.max(n, 0));
+        else if (result instanceof Long n)
+          stats.rows.add(Math.max(n, 0));
+        else if (result instanceof int[] counts)
+          for (int n : counts)
+            stats.rows.add(Math.max(n, 0));
+        if (elapsed >= slowNanos)
+          logSlow(elapsed, failed);
+      }
+      return result instanceof ResultSet rs ? countRows(rs) : result;
+    }
+
+    private void logSlow(long elapsed, boolean failed)
+    {
+      StringBuilder line = new StringBuilder();
+      line.append(Instant.now()).append(' ').append(stats.name)
+          .append(String.format(" %.3f ms", elapsed / 1e6));
+      if (failed)
+        line.append(" failed");
+      line.append(" [");
+      int n = parameters.length;
+      while (n > 0 && parameters[n - 1] == null)
+        n--;
+      for (int i = 0; i < n; i++) {
+        if (i > 0)
+          line.append(", ");
+        Object value = parameters[i];
+        if (isSecret(i + 1))
+          line.append("***");
+        else if (value instanceof String)
+          line.append('\'').append(value).append('\'');
+        else
+          line.append(value);
+      }
+      line.append(']');
+      log.println(line);
+    }
+
+    private boolean isSecret(int index)
+    {
+      for (int s : secret)
+        if (s == index)
+          return true;
+      return false;
+    }
+
+    private ResultSet countRows(ResultSet rs)
+    {
+      return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                                                new Class<?>[] { ResultSet.class },
+                                                (proxy, method, args) -> {
+        Object result = StatementTracer.call(rs, method, args);
+        if (method.getName().equals("next") && Boolean.TRUE.equals(result))
+          stats.rows.increment();
+        return result;
+      });
+    }
+
+    private Object call(Method method, Object[] args) throws Throwable
+    {
+      return StatementTracer.call(target, method, args);
+    }
+  }
+
+  private static Object call(Object target, Method method, Object[] args) throws Throwable
+  {
+    try {
+      return method.invoke(target, args);
+    } catch (InvocationTargetException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Writes a table with a line per canned query that ran, the most total time first.
+   */
+  public void appendTo(Appendable out) throws IOException
+  {
+    List<Stats> all = new ArrayList<>(stats.values());
+    all.removeIf(s -> s.executions.sum() == 0);
+    all.sort(Comparator.comparingLong((Stats s) -> s.nanos.sum()).reversed());
+    out.append(String.format("%-30s %10s %10s %10s %9s %9s%n", "statement", "executions", "rows",
+                             "total ms", "mean ms", "max ms"));
+    for (Stats s : all) {
+      long n = s.executions.sum();
+      long nanos = s.nanos.sum();
+      out.append(String.format("%-30s %10d %10d %10.1f %9.3f %9.3f%n", s.name, n, s.rows.sum(), nanos / 1e6,
+                               nanos / 1e6 / n, s.maxNanos.get() / 1e6));
+    }
+  }
+
+  /**
+   * Closes the slow-query log, unless it is standard error.
+   */
+  public void close()
+  {
+    if (log != System.err)
+      log.close();
+  }
+}
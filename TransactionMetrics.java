@@ -0,0 +1,268 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+/**
+ * Counts and latencies of every transaction, by type and by outcome.
+ *
+ * A transaction succeeds, is rejected for a business reason (not logged in, no such
+ * itinerary, no seats left, balance too low...) or fails with an error; retries after a
+ * deadlock or lock timeout are counted separately, since the transaction goes on. Recording
+ * costs two clock reads and a few updates of striped counters ({@link LongAdder}), which
+ * threads recording at once do not contend on. The numbers are printed by
+ * the {@code stats} command and published over JMX as
+ * {@code flightservice:type=Transactions,name=<transaction>}.
+ */
+public class TransactionMetrics
+{
+  public enum Type
+  {
+    LOGIN, CREATE, SEARCH, BOOK, PAY, RESERVATIONS, CANCEL;
+
+    final String label = name().toLowerCase(Locale.ROOT);
+  }
+
+  public enum Outcome
+  {
+    SUCCESS, REJECTED, ERROR
+  }
+
+  /**
+   * What JMX shows of one type of transaction. Latencies are in milliseconds, over every outcome.
+   */
+  public interface StatsMBean
+  {
+    long getCount();
+    long getSuccesses();
+    long getRejections();
+    long getErrors();
+    long getRetries();
+    double getMeanMillis();
+    double getP50Millis();
+    double getP99Millis();
+    double getMaxMillis();
+    String getLastError();
+  }
+
+  private static final class Stats implements StatsMBean
+  {
+    final LongAdder[] counts = new LongAdder[Outcome.values().length];
+    final LatencyHistogram[] latencies = new LatencyHistogram[Outcome.values().length];
+    final LongAdder retries = new LongAdder();
+    volatile String lastError;
+
+    Stats()
+    {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] = new LongAdder();
+        latencies[i] = new LatencyHistogram();
+      }
+    }
+
+    LatencyHistogram all()
+    {
+      LatencyHistogram all = new LatencyHistogram();
+      for (LatencyHistogram h : latencies)
+        all.add(h);
+      return all;
+    }
+
+    public long getCount()
+    {
+      long n = 0;
+      for (LongAdder c : counts)
+        n += c.sum();
+      return n;
+    }
+
+    public long getSuccesses()
+    {
+      return counts[Outcome.SUCCESS.ordinal()].sum();
+    }
+
+    public long getRejections()
+    {
+      return counts[Outcome.REJECTED.ordinal()].sum();
+    }
+
+    public long getErrors()
+    {
+      return counts[Outcome.ERROR.ordinal()].sum();
+    }
+
+    public long getRetries()
+    {
+      return retries.sum();
+    }
+
+    public double getMeanMillis()
+    {
+      return all().mean() / 1000.0;
+    }
+
+    public double getP50Millis()
+    {
+      return all().percentile(50) / 1000.0;
+    }
+
+    public double getP99Millis()
+    {
+      return all().percentile(99) / 1000.0;
+    }
+
+    public double getMaxMillis()
+    {
+      return all().max() / 1000.0;
+    }
+
+    public String getLastError()
+    {
+      return lastError;
+    }
+  }
+
+  private final Stats[] stats = new Stats[Type.values().length];
+  private ObjectName[] registered;
+
+  public TransactionMetrics()
+  {
+    for (int i = 0; i < stats.length; i++)
+      stats[i] = new Stats();
+  }
+
+  /**
+   * Records a transaction that started at {@code startNanos} (from {@link System#nanoTime()}).
+   */
+  public void record(Type type, Outcome outcome, long startNanos)
+  {
+    Stats s = stats[type.ordinal()];
+    s.counts[outcome.ordinal()].increment();
+    s.latencies[outcome.ordinal()].record((System.nanoTime() - startNanos) / 1000);
+  }
+
+  /**
+   * Records a transaction that succeeded.
+   *
+   * @return {@code response}, so a transaction can record its outcome where it returns
+   */
+  public String success(Type type, long startNanos, String response)
+  {
+    record(type, Outcome.SUCCESS, startNanos);
+    return response;
+  }
+
+  /**
+   * Records a transaction that was turned down: not logged in, bad input, no seats, too
+   * little money...
+   *
+   * @return {@code response}
+   */
+  public String rejected(Type type, long startNanos, String response)
+  {
+    record(type, Outcome.REJECTED, startNanos);
+    return response;
+  }
+
+  /**
+   * Records a transaction that failed with an error, keeping the error to show.
+   */
+  public void error(Type type, Exception e, long startNanos)
+  {
+    stats[type.ordinal()].lastError = e.toString();
+    record(type, Outcome.ERROR, startNanos);
+  }
+
+  /**
+   * Like {@link #error(Type, Exception, long)}.
+   *
+   * @return {@code response}
+   */
+  public String error(Type type, Exception e, long startNanos, String response)
+  {
+    error(type, e, startNanos);
+    return response;
+  }
+
+  public void retried(Type type)
+  {
+    stats[type.ordinal()].retries.increment();
+  }
+
+  public long count(Type type, Outcome outcome)
+  {
+    return stats[type.ordinal()].counts[outcome.ordinal()].sum();
+  }
+
+  public long retries(Type type)
+  {
+    return stats[type.ordinal()].getRetries();
+  }
+
+  /**
+   * Publishes the metrics on the platform MBean server. Only the first set registered in a
+   * JVM is published; the names are taken by then.
+   */
+  public synchronized void registerMBeans()
+  {
+    if (registered != null)
+      return;
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName[] names = new ObjectName[stats.length];
+    try {
+      for (Type type : Type.values()) {
+        ObjectName name = new ObjectName("flightservice:type=Transactions,name=" + type.label);
+        if (server.isRegistered(name)) {
+          unregister(server, names);
+          return;
+        }
+        server.registerMBean(new StandardMBean(stats[type.ordinal()], StatsMBean.class), name);
+        names[type.ordinal()] = name;
+      }
+      registered = names;
+    } catch (JMException e) {
+      unregister(server, names);
+    }
+  }
+
+  public synchronized void unregisterMBeans()
+  {
+    if (registered != null)
+      unregister(ManagementFactory.getPlatformMBeanServer(), registered);
+    registered = null;
+  }
+
+  private static void unregister(MBeanServer server, ObjectName[] names)
+  {
+    for (ObjectName name : names) {
+      if (name == null)
+        continue;
+      try {
+        server.unregisterMBean(name);
+      } catch (JMException e) {
+        // already gone
+      }
+    }
+  }
+
+  /**
+   * Writes a table with a line per type of transaction.
+   */
+  public void appendTo(Appendable out) throws IOException
+  {
+    out.append(String.format("%-13s %8s %8s %8s %8s %8s %9s %9s %9s %9s%n", "transaction", "count", "success",
+                             "rejected", "errors", "retries", "mean ms", "p50 ms", "p99 ms", "max ms"));
+    for (Type type : Type.values()) {
+      Stats s = stats[type.ordinal()];
+      LatencyHistogram all = s.all();
+      out.append(String.format("%-13s %8d %8d %8d %8d %8d %9.2f %9.2f %9.2f %9.2f%n", type.label, all.count(),
+                               s.getSuccesses(), s.getRejections(), s.getErrors(), s.getRetries(),
+                               all.mean() / 1000.0, all.percentile(50) / 1000.0,
+                               all.percentile(99) / 1000.0, all.max() / 1000.0));
+    }
+  }
+}
@@ -0,0 +1,197 @@
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs a unit of work as one transaction on a pooled connection.
+ *
+ * The transaction is always closed out: the work may commit or roll back itself, a
+ * transaction it leaves open is committed when it returns and rolled back when it throws.
+ * Failures caused by concurrency (deadlock victim, serialization failure, lock timeout)
+ * are retried on a fresh transaction with jittered exponential backoff, up to
+ * {@code maxAttempts} in total; anything else, or the last failure, is thrown to the caller.
+ *
+ * Work can run more than once, so it must not change anything outside the transaction
+ * unless it undoes that change when it fails.
+ */
+public class TransactionRunner
+{
+  /* SQL Server errors a transaction can simply be retried after */
+  private static final int DEADLOCK_VICTIM = 1205;
+  private static final int LOCK_TIMEOUT = 1222;
+  private static final int SNAPSHOT_CONFLICT = 3960;
+
+  public interface Work<T>
+  {
+    T run(PooledConnection c) throws SQLException;
+  }
+
+  private final ConnectionPool pool;
+  private final int maxAttempts;
+  private final long backoffMillis;
+  private final long maxBackoffMillis;
+  private final TransactionMetrics metrics;
+
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong aborts = new AtomicLong();
+
+  /**
+   * @param maxAttempts total number of tries for a transaction, at least 1
+   * @param backoffMillis upper bound of the wait before the first retry; doubles on every retry
+   * @param maxBackoffMillis cap of the upper bound of the wait
+   * @param metrics where retries are counted, by type of transaction; may be null
+   */
+  public TransactionRunner(ConnectionPool pool, int maxAttempts, long backoffMillis, long maxBackoffMillis,
+                           TransactionMetrics metrics)
+  {
+    if (maxAttempts < 1)
+      throw new IllegalArgumentException("max attempts must be at least 1: " + maxAttempts);
+    this.pool = pool;
+    this.maxAttempts = maxAttempts;
+    this.backoffMillis = backoffMillis;
+    this.maxBackoffMillis = maxBackoffMillis;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return the result of the first attempt of {@code work} that did not fail
+   *
+   * @throws SQLException the failure of the last attempt, or the first failure that is not retryable
+   */
+  public <T> T run(Work<T> work) throws SQLException
+  {
+    return run(null, work, Mode.WRITE);
+  }
+
+  /**
+   * Like {@link #run(Work)}, counting its retries against {@code type}.
+   */
+  public <T> T run(TransactionMetrics.Type type, Work<T> work) throws SQLException
+  {
+    return run(type, work, Mode.WRITE);
+  }
+
+  /**
+   * Like {@link #run(Work)}, but for work that only reads: it runs at the read isolation
+   * level on a read-only connection instead of SERIALIZABLE.
+   */
+  public <T> T runReadOnly(Work<T> work) throws SQLException
+  {
+    return run(null, work, Mode.READ);
+  }
+
+  /**
+   * Like {@link #runReadOnly(Work)}, counting its retries against {@code type}.
+   */
+  public <T> T runReadOnly(TransactionMetrics.Type type, Work<T> work) throws SQLException
+  {
+    return run(type, work, Mode.READ);
+  }
+
+  /**
+   * Like {@link #run(TransactionMetrics.Type, Work)}, for work that is a single statement batch
+   * beginning and ending its own transaction: none is begun around it, so the whole
+   * transaction is one round trip. The batch must roll back whatever it began if it fails.
+   */
+  public <T> T runBatch(TransactionMetrics.Type type, Work<T> work) throws SQLException
+  {
+    return run(type, work, Mode.BATCH);
+  }
+
+  private enum Mode { WRITE, READ, BATCH }
+
+  private <T> T run(TransactionMetrics.Type type, Work<T> work, Mode mode) throws SQLException
+  {
+    for (int attempt = 1; ; attempt++) {
+      PooledConnection c = pool.acquire();
+      try {
+        if (mode == Mode.READ)
+          c.beginReadTransaction();
+        else if (mode == Mode.WRITE)
+          c.beginTransaction();
+        T result = work.run(c);
+        if (c.inTransaction())
+          c.commitTransaction();
+        completed.incrementAndGet();
+        return result;
+      } catch (SQLException e) {
+        rollbackQuietly(c);
+        if (attempt >= maxAttempts || !isRetryable(e)) {
+          aborts.incrementAndGet();
+          throw e;
+        }
+        retries.incrementAndGet();
+        if (metrics != null && type != null)
+          metrics.retried(type);
+        backoff(attempt);
+      } finally {
+        pool.release(c);
+      }
+    }
+  }
+
+  /**
+   * @return true if the failure was caused by concurrent transactions and the same work
+   * may well succeed when run again
+   */
+  public static boolean isRetryable(SQLException e)
+  {
+    for (SQLException x = e; x != null; x = x.getNextException()) {
+      if (x instanceof SQLTransientException)
+        return true;
+      String state = x.getSQLState();
+      if (state != null && state.startsWith("40")) // transaction rollback: deadlock, serialization failure
+        return true;
+      int code = x.getErrorCode();
+      if (code == DEADLOCK_VICTIM || code == LOCK_TIMEOUT || code == SNAPSHOT_CONFLICT)
+        return true;
+    }
+    return false;
+  }
+
+  private static void rollbackQuietly(PooledConnection c)
+  {
+    try {
+      if (c.inTransaction())
+        c.rollbackTransaction();
+    } catch (SQLException e) {
+      // the server may already have rolled back a deadlock victim
+    }
+  }
+
+  private void backoff(int attempt) throws SQLException
+  {
+    long cap = Math.min(maxBackoffMillis, backoffMillis << Math.min(attempt - 1, 20));
+    if (cap <= 0)
+      return;
+    try {
+      Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting to retry a transaction", e);
+    }
+  }
+
+  public long completed()
+  {
+    return completed.get();
+  }
+
+  public long retries()
+  {
+    return retries.get();
+  }
+
+  public long aborts()
+  {
+    return aborts.get();
+  }
+
+  @Override
+  public String toString()
+  {
+    return "Transactions completed: " + completed() + " retried: " + retries() + " aborted: " + aborts();
+  }
+}
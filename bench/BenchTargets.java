@@ -0,0 +1,153 @@
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The entry points the benchmarks measure, with the service types erased to Object.
+ *
+ * JMH does not allow benchmarks in the default package, and a named package cannot see
+ * the default one, so the benchmarks in {@code benchmarks} call these through method handles.
+ */
+public class BenchTargets
+{
+  /**
+   * @return a Query on {@link StubJdbc}, with its connections open and statements prepared
+   */
+  public static Object newQuery() throws Exception
+  {
+    File config = File.createTempFile("bench", ".properties");
+    config.deleteOnExit();
+    try (Writer w = new FileWriter(config)) {
+      w.write("flightservice.jdbc_driver=StubJdbc\n");
+      w.write("flightservice.url=" + StubJdbc.URL + "\n");
+      w.write("flightservice.sqlazure_username=\n");
+      w.write("flightservice.sqlazure_password=\n");
+      w.write("flightservice.pool_size=1\n");
+    }
+    Query q = new Query(config.getPath());
+    q.openConnection();
+    q.prepareStatements();
+    return q;
+  }
+
+  public static void close(Object q) throws Exception
+  {
+    ((Query) q).closeConnection();
+  }
+
+  /**
+   * @param username the user the session is logged in as, or null
+   */
+  public static Object newSession(Object q, String username)
+  {
+    Session session = ((Query) q).newSession();
+    session.username = username;
+    return session;
+  }
+
+  public static String[] tokenize(String command)
+  {
+    return FlightService.tokenize(command);
+  }
+
+  public static Object newCommandLine()
+  {
+    return new CommandLine();
+  }
+
+  /**
+   * @return the number of tokens in {@code command}, split in place into {@code line}
+   */
+  public static int parse(Object line, String command)
+  {
+    return ((CommandLine) line).parse(command).size();
+  }
+
+  public static String execute(Object q, Object session, String command)
+  {
+    return FlightService.execute((Query) q, (Session) session, command);
+  }
+
+  public static String search(Object q, Object session, int itineraries)
+  {
+    return ((Query) q).transaction_search((Session) session, "Seattle WA", "Boston MA", false, 1, itineraries);
+  }
+
+  /**
+   * @return the number of bytes of the search response, rendered into {@code buffer} from its start
+   */
+  public static int searchInto(Object q, Object session, int itineraries, ByteBuffer buffer) throws Exception
+  {
+    buffer.clear();
+    ((Query) q).transaction_search((Session) session, "Seattle WA", "Boston MA", false, 1, itineraries,
+                                   new ByteBufferSink(buffer));
+    return buffer.position();
+  }
+
+  public static String reservations(Object q, Object session)
+  {
+    return ((Query) q).transaction_reservations((Session) session);
+  }
+
+  /**
+   * @return a result set positioned on a one-stop search row
+   */
+  public static ResultSet indirectRow() throws Exception
+  {
+    ResultSet row = StubJdbc.resultSet(StubJdbc.INDIRECT_ROWS, new String[0]);
+    row.next();
+    return row;
+  }
+
+  public static Object parseFlight(ResultSet row, boolean direct) throws Exception
+  {
+    return JdbcFlightStore.parser(row, direct);
+  }
+
+  /**
+   * @return n direct and one-stop itineraries in random order
+   */
+  public static List<?> itineraries(int n, long seed) throws Exception
+  {
+    Random random = new Random(seed);
+    List<Query.Itinerary> list = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      Query.Itinerary it = new Query.Itinerary();
+      List<Object[]> rows = new ArrayList<>();
+      rows.add(StubJdbc.concat(StubJdbc.flight(2 * i, 60 + random.nextInt(300), random),
+                               StubJdbc.flight(2 * i + 1, 60 + random.nextInt(300), random)));
+      ResultSet row = StubJdbc.resultSet(rows, new String[0]);
+      row.next();
+      it.f1 = JdbcFlightStore.parser(row, true);
+      it.f2 = i % 2 == 0 ? null : JdbcFlightStore.parser(row, false);
+      it.dayOfMonth = it.f1.dayOfMonth;
+      it.cost = it.f1.price + (it.f2 == null ? 0 : it.f2.price);
+      list.add(it);
+    }
+    return list;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static List<?> sort(List<?> itineraries)
+  {
+    List<Query.Itinerary> list = new ArrayList<>((List<Query.Itinerary>) itineraries);
+    Collections.sort(list);
+    return list;
+  }
+
+  @SuppressWarnings("unchecked")
+  public static List<?> rank(List<?> itineraries, int n)
+  {
+    ItineraryRanker ranker = new ItineraryRanker(n);
+    for (Query.Itinerary it : (List<Query.Itinerary>) itineraries)
+      if (ranker.accepts(it.time()))
+        ranker.offer(it);
+    return ranker.toSortedList();
+  }
+}
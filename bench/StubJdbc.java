@@ -0,0 +1,250 @@
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.logging.Logger;
+
+/**
+ * An in-process stand-in for the database, so benchmarks measure the client side only.
+ *
+ * Connections opened on {@code jdbc:stub:} accept every statement; the canned search and
+ * reservation queries of {@link JdbcFlightStore} answer with fixed rows generated at class load,
+ * every other query with no rows. Rows are in the column layout of Flights. The metadata lists
+ * the tables of a database created from createTables.sql, for the checks made at startup.
+ */
+public class StubJdbc implements Driver
+{
+  public static final String URL = "jdbc:stub:";
+
+  static final int FLIGHT_COLUMNS = 18;
+
+  static final String[] CITIES = { "Seattle WA", "Boston MA", "Chicago IL", "Denver CO", "Austin TX" };
+
+  static final List<Object[]> DIRECT_ROWS = new ArrayList<>();
+  static final List<Object[]> INDIRECT_ROWS = new ArrayList<>();
+  static final List<Object[]> RESERVATION_ROWS = new ArrayList<>();
+  static final String[] RESERVATION_LABELS = { "rid", "paid" };
+  static final String[] TABLES = { "Flights", "Users", "Reservations", "Capacities", "ReserveCount", "ReservationLegs" };
+
+  static {
+    Random random = new Random(42);
+    for (int i = 0; i < 100; i++)
+      DIRECT_ROWS.add(flight(1000 + i, 60 + i, random));
+    for (int i = 0; i < 100; i++)
+      INDIRECT_ROWS.add(concat(flight(2000 + i, 60 + i, random), flight(3000 + i, 60 + i, random)));
+    for (int i = 0; i < 10; i++) {
+      Object[] second = i % 2 == 0 ? new Object[FLIGHT_COLUMNS] : flight(5000 + i, 90, random);
+      RESERVATION_ROWS.add(concat(new Object[] { i + 1, i % 3 == 0 ? 1 : 0 },
+                                  concat(flight(4000 + i, 120, random), second)));
+    }
+    try {
+      DriverManager.registerDriver(new StubJdbc());
+    } catch (SQLException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  static Object[] flight(int fid, int time, Random random)
+  {
+    Object[] row = new Object[FLIGHT_COLUMNS];
+    row[0] = fid;
+    row[1] = 7;
+    row[2] = 1 + random.nextInt(28);
+    row[3] = 1 + random.nextInt(7);
+    row[4] = "AA";
+    row[5] = 100 + random.nextInt(900);
+    row[6] = CITIES[random.nextInt(CITIES.length)];
+    row[7] = "WA";
+    row[8] = CITIES[random.nextInt(CITIES.length)];
+    row[9] = "MA";
+    row[10] = 0;
+    row[11] = 0;
+    row[12] = 0;
+    row[13] = 0;
+    row[14] = time;
+    row[15] = 500;
+    row[16] = 1 + random.nextInt(200);
+    row[17] = 100 + random.nextInt(900);
+    return row;
+  }
+
+  static Object[] concat(Object[] a, Object[] b)
+  {
+    Object[] row = new Object[a.length + b.length];
+    System.arraycopy(a, 0, row, 0, a.length);
+    System.arraycopy(b, 0, row, a.length, b.length);
+    return row;
+  }
+
+  /**
+   * @return a result set over the given rows, positioned before the first one
+   */
+  public static ResultSet resultSet(List<Object[]> rows, String[] labels)
+  {
+    return proxy(ResultSet.class, new InvocationHandler() {
+      int row = -1;
+      boolean wasNull;
+
+      public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args)
+      {
+        switch (method.getName()) {
+          case "next":
+            return ++row < rows.size();
+          case "isBeforeFirst":
+            return row < 0 && !rows.isEmpty();
+          case "getInt": {
+            Object v = value(args[0]);
+            wasNull = v == null;
+            return v == null ? 0 : ((Number) v).intValue();
+          }
+          case "getString": {
+            Object v = value(args[0]);
+            wasNull = v == null;
+            return v == null ? null : v.toString();
+          }
+          case "wasNull":
+            return wasNull;
+          default:
+            return defaultValue(method.getReturnType());
+        }
+      }
+
+      private Object value(Object column)
+      {
+        int index;
+        if (column instanceof String) {
+          index = -1;
+          for (int i = 0; i < labels.length; i++)
+            if (labels[i].equalsIgnoreCase((String) column))
+              index = i + 1;
+        } else {
+          index = (Integer) column;
+        }
+        return rows.get(row)[index - 1];
+      }
+    });
+  }
+
+  static Connection connection()
+  {
+    return proxy(Connection.class, new InvocationHandler() {
+      boolean autoCommit = true;
+
+      public Object invoke(Object proxy, java.lang.reflect.Method method, Object[] args)
+      {
+        switch (method.getName()) {
+          case "prepareStatement":
+            return statement(PreparedStatement.class, (String) args[0]);
+          case "createStatement":
+            return statement(Statement.class, null);
+          case "getMetaData":
+            return metaData();
+          case "setAutoCommit":
+            autoCommit = (Boolean) args[0];
+            return null;
+          case "getAutoCommit":
+            return autoCommit;
+          default:
+            return defaultValue(method.getReturnType());
+        }
+      }
+    });
+  }
+
+  static DatabaseMetaData metaData()
+  {
+    return proxy(DatabaseMetaData.class, (proxy, method, args) -> {
+      if (method.getName().equals("getTables")) {
+        List<Object[]> rows = new ArrayList<>();
+        for (String table : TABLES)
+          rows.add(new Object[] { table });
+        return resultSet(rows, new String[] { "TABLE_NAME" });
+      }
+      return defaultValue(method.getReturnType());
+    });
+  }
+
+  static <T> T statement(Class<T> type, String sql)
+  {
+    return proxy(type, (proxy, method, args) -> {
+      if (method.getName().equals("executeQuery")) {
+        String query = sql != null ? sql : (String) args[0];
+        if (query.equals(JdbcFlightStore.DIRECT_SEARCH))
+          return resultSet(DIRECT_ROWS, new String[0]);
+        if (query.equals(JdbcFlightStore.INDIRECT_SEARCH))
+          return resultSet(INDIRECT_ROWS, new String[0]);
+        if (query.equals(JdbcFlightStore.GET_RESERVATION))
+          return resultSet(RESERVATION_ROWS, RESERVATION_LABELS);
+        return resultSet(new ArrayList<>(), new String[0]);
+      }
+      if (method.getName().equals("executeBatch"))
+        return new int[0];
+      return defaultValue(method.getReturnType());
+    });
+  }
+
+  static <T> T proxy(Class<T> type, InvocationHandler handler)
+  {
+    return type.cast(Proxy.newProxyInstance(StubJdbc.class.getClassLoader(), new Class<?>[] { type }, handler));
+  }
+
+  static Object defaultValue(Class<?> type)
+  {
+    if (type == boolean.class)
+      return false;
+    if (type == int.class)
+      return 0;
+    if (type == long.class)
+      return 0L;
+    if (type == double.class)
+      return 0.0;
+    return null;
+  }
+
+  public Connection connect(String url, Properties info)
+  {
+    return acceptsURL(url) ? connection() : null;
+  }
+
+  public boolean acceptsURL(String url)
+  {
+    return url != null && url.startsWith(URL);
+  }
+
+  public DriverPropertyInfo[] getPropertyInfo(String url, Properties info)
+  {
+    return new DriverPropertyInfo[0];
+  }
+
+  public int getMajorVersion()
+  {
+    return 1;
+  }
+
+  public int getMinorVersion()
+  {
+    return 0;
+  }
+
+  public boolean jdbcCompliant()
+  {
+    return false;
+  }
+
+  public Logger getParentLogger() throws SQLFeatureNotSupportedException
+  {
+    throw new SQLFeatureNotSupportedException();
+  }
+}
@@ -0,0 +1,169 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.sql.ResultSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The client-side hot paths of a request: tokenizing, dispatch, mapping rows to flights,
+ * ordering itineraries and rendering responses. The database is StubJdbc, so only the
+ * time and garbage of this process are measured.
+ *
+ * The service lives in the default package, which a named package cannot see; it is called
+ * through static final method handles on BenchTargets, which the JIT inlines.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ClientBenchmark
+{
+  static final String[] COMMANDS = {
+    "search \"Seattle WA\" \"Boston MA\" 0 1 10",
+    "book 3",
+    "pay 12",
+    "reservations",
+    "cancel 12",
+    "login user password",
+    "bogus command",
+  };
+
+  // commands that stop before any transaction when nobody is logged in
+  static final String[] OFFLINE_COMMANDS = { "book 3", "pay 12", "reservations", "cancel 12", "bogus command", "" };
+
+  static final MethodHandle NEW_QUERY = target("newQuery", Object.class);
+  static final MethodHandle CLOSE = target("close", void.class, Object.class);
+  static final MethodHandle NEW_SESSION = target("newSession", Object.class, Object.class, String.class);
+  static final MethodHandle TOKENIZE = target("tokenize", String[].class, String.class);
+  static final MethodHandle NEW_COMMAND_LINE = target("newCommandLine", Object.class);
+  static final MethodHandle PARSE = target("parse", int.class, Object.class, String.class);
+  static final MethodHandle EXECUTE = target("execute", String.class, Object.class, Object.class, String.class);
+  static final MethodHandle SEARCH = target("search", String.class, Object.class, Object.class, int.class);
+  static final MethodHandle SEARCH_INTO = target("searchInto", int.class, Object.class, Object.class, int.class,
+                                                  ByteBuffer.class);
+  static final MethodHandle RESERVATIONS = target("reservations", String.class, Object.class, Object.class);
+  static final MethodHandle INDIRECT_ROW = target("indirectRow", ResultSet.class);
+  static final MethodHandle PARSE_FLIGHT = target("parseFlight", Object.class, ResultSet.class, boolean.class);
+  static final MethodHandle ITINERARIES = target("itineraries", List.class, int.class, long.class);
+  static final MethodHandle SORT = target("sort", List.class, List.class);
+  static final MethodHandle RANK = target("rank", List.class, List.class, int.class);
+
+  static MethodHandle target(String name, Class<?> returnType, Class<?>... parameterTypes)
+  {
+    try {
+      return MethodHandles.publicLookup().findStatic(Class.forName("BenchTargets"), name,
+                                                     MethodType.methodType(returnType, parameterTypes));
+    } catch (ReflectiveOperationException e) {
+      throw new ExceptionInInitializerError(e);
+    }
+  }
+
+  @Param({ "10", "100" })
+  int itineraries;
+
+  Object q;
+  Object session;
+  Object loggedIn;
+  Object commandLine;
+  ResultSet indirectRow;
+  ByteBuffer response = ByteBuffer.allocateDirect(64 * 1024);
+  List<?> unsorted;
+
+  @Setup(Level.Trial)
+  public void setUp() throws Throwable
+  {
+    q = (Object) NEW_QUERY.invokeExact();
+    session = (Object) NEW_SESSION.invokeExact(q, (String) null);
+    loggedIn = (Object) NEW_SESSION.invokeExact(q, "user");
+    commandLine = (Object) NEW_COMMAND_LINE.invokeExact();
+    indirectRow = (ResultSet) INDIRECT_ROW.invokeExact();
+    unsorted = (List<?>) ITINERARIES.invokeExact(itineraries, 7L);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws Throwable
+  {
+    CLOSE.invokeExact(q);
+  }
+
+  @Benchmark
+  public void tokenize(Blackhole bh) throws Throwable
+  {
+    for (String command : COMMANDS)
+      bh.consume((String[]) TOKENIZE.invokeExact(command));
+  }
+
+  /* splitting in place into a reused CommandLine, as the server does */
+  @Benchmark
+  public void parse(Blackhole bh) throws Throwable
+  {
+    for (String command : COMMANDS)
+      bh.consume((int) PARSE.invokeExact(commandLine, command));
+  }
+
+  @Benchmark
+  public void dispatch(Blackhole bh) throws Throwable
+  {
+    for (String command : OFFLINE_COMMANDS)
+      bh.consume((String) EXECUTE.invokeExact(q, session, command));
+  }
+
+  @Benchmark
+  public Object parseFlight() throws Throwable
+  {
+    return (Object) PARSE_FLIGHT.invokeExact(indirectRow, false);
+  }
+
+  @Benchmark
+  public List<?> sortItineraries() throws Throwable
+  {
+    return (List<?>) SORT.invokeExact(unsorted);
+  }
+
+  @Benchmark
+  public List<?> rankItineraries() throws Throwable
+  {
+    return (List<?>) RANK.invokeExact(unsorted, 10);
+  }
+
+  /* SQL path, row mapping, ranking and rendering of a search on stubbed results */
+  @Benchmark
+  public String search() throws Throwable
+  {
+    return (String) SEARCH.invokeExact(q, session, itineraries);
+  }
+
+  /* the same search rendered straight into a reused direct buffer */
+  @Benchmark
+  public int searchIntoBuffer() throws Throwable
+  {
+    return (int) SEARCH_INTO.invokeExact(q, session, itineraries, response);
+  }
+
+  @Benchmark
+  public String reservations() throws Throwable
+  {
+    return (String) RESERVATIONS.invokeExact(q, loggedIn);
+  }
+}
@@ -41,10 +41,27 @@ CREATE TABLE Reservations (
 );
 
 CREATE TABLE Capacities (
-	fid INT PRdaIMARY KEY REFERENCES Flights(fid),
+	fid INT NOT NULL PRIMARY KEY REFERENCES Flights(fid),
 	capacity INT
 );
 
 CREATE TABLE ReserveCount (
 	count int NOT NULL PRIMARY KEY 
 );
+
+-- the flights of a reservation after fid2, numbered from 3, for itineraries of more than two flights
+CREATE TABLE ReservationLegs (
+	rid INT NOT NULL REFERENCES Reservations(rid),
+	leg INT NOT NULL,
+	fid INT NOT NULL REFERENCES Flights(fid),
+	PRIMARY KEY (rid, leg)
+);
+
+-- covering indexes for search and reservation lookups; keep in line with SchemaManager,
+-- which creates them on existing databases when started with flightservice.schema=migrate
+
+CREATE INDEX IX_Flights_Route ON Flights (origin_city, day_of_month, dest_city, actual_time, fid)
+	INCLUDE (month_id, day_of_week_id, carrier_id, flight_num, origin_state, dest_state, departure_delay,
+	         taxi_out, arrival_delay, canceled, distance, capacity, price);
+
+CREATE INDEX IX_Reservations_Usr ON Reservations (usr) INCLUDE (fid1, fid2, paid, cost, day);
@@ -0,0 +1,18 @@
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+/**
+ * Every test, none of which needs a database: {@code java -cp out:lib/* org.junit.runner.JUnitCore AllTests}.
+ */
+@RunWith(Suite.class)
+@Suite.SuiteClasses({
+  FlightSnapshotTest.class,
+  ItineraryRankerTest.class,
+  LatencyHistogramTest.class,
+  RoutePlannerTest.class,
+  SearchCursorTest.class,
+  TransactionRunnerTest.class,
+})
+public class AllTests
+{
+}
@@ -0,0 +1,59 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class FlightSnapshotTest
+{
+  @Test
+  public void readsBackEveryFieldIncludingNulls() throws IOException
+  {
+    Query.Flight plain = TestFlights.flight(1, 3, "Snapshot A", "Snapshot B", 95, 120);
+    Query.Flight noNumber = TestFlights.flight(2, 4, "Snapshot B", "Snapshot A", 80, 150);
+    noNumber.flightNum = null;
+    Query.Flight noNames = TestFlights.flight(3, 5, "Snapshot A", "Snapshot C", 70, 90);
+    noNames.carrier = NameDictionary.NULL;
+    noNames.origin = NameDictionary.NULL;
+    noNames.flightNum = "0";
+    List<Query.Flight> flights = Arrays.asList(plain, noNumber, noNames);
+
+    Path file = Files.createTempFile("flights", ".snapshot");
+    try {
+      FlightSnapshot.write(file, 42L, flights, Arrays.asList(500, 600, 700));
+      FlightSnapshot snapshot = FlightSnapshot.open(file);
+      assertEquals(3, snapshot.size());
+      assertEquals(600, snapshot.distance(1));
+      List<Query.Flight> read = snapshot.flights();
+      for (int i = 0; i < flights.size(); i++)
+        assertEquals(flights.get(i).toString(), read.get(i).toString());
+      assertNull(read.get(1).flightNum);
+      assertEquals("0", read.get(2).flightNum);
+      assertEquals(NameDictionary.NULL, read.get(2).carrier);
+      assertEquals(NameDictionary.NULL, read.get(2).origin);
+    } finally {
+      Files.delete(file);
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void rejectsACorruptFile() throws IOException
+  {
+    Path file = Files.createTempFile("flights", ".snapshot");
+    try {
+      FlightSnapshot.write(file, 42L, Arrays.asList(TestFlights.flight(1, 3, "Snapshot A", "Snapshot B", 95)),
+                           Arrays.asList(500));
+      byte[] bytes = Files.readAllBytes(file);
+      bytes[bytes.length / 2] ^= 1;
+      Files.write(file, bytes);
+      FlightSnapshot.open(file);
+    } finally {
+      Files.delete(file);
+    }
+  }
+}
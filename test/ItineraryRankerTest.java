@@ -0,0 +1,87 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ItineraryRankerTest
+{
+  private static Query.Itinerary direct(int fid, int time)
+  {
+    return TestFlights.itinerary(TestFlights.flight(fid, 1, "Rank A", "Rank B", time));
+  }
+
+  private static Query.Itinerary oneStop(int fid1, int time1, int fid2, int time2)
+  {
+    return TestFlights.itinerary(TestFlights.flight(fid1, 1, "Rank A", "Rank C", time1),
+                                 TestFlights.flight(fid2, 1, "Rank C", "Rank B", time2));
+  }
+
+  @Test
+  public void keepsTheKBestOfAnyOfferOrder()
+  {
+    Random random = new Random(1);
+    List<Query.Itinerary> all = new ArrayList<>();
+    for (int fid = 1; fid <= 200; fid++)
+      all.add(random.nextBoolean() ? direct(fid, random.nextInt(50))
+                                   : oneStop(fid, random.nextInt(25), 1000 + fid, random.nextInt(25)));
+    List<Query.Itinerary> expected = new ArrayList<>(all);
+    Collections.sort(expected);
+
+    for (int k : new int[] { 1, 7, 50, 200, 500 }) {
+      Collections.shuffle(all, random);
+      ItineraryRanker ranker = new ItineraryRanker(k);
+      for (Query.Itinerary it : all)
+        ranker.offer(it);
+      assertEquals(expected.subList(0, Math.min(k, all.size())), ranker.toSortedList());
+    }
+  }
+
+  @Test
+  public void breaksTimeTiesByFidsInOrder()
+  {
+    ItineraryRanker ranker = new ItineraryRanker(4);
+    ranker.offer(oneStop(5, 50, 9, 50));
+    ranker.offer(oneStop(5, 60, 8, 40));
+    ranker.offer(direct(5, 100));
+    ranker.offer(direct(3, 100));
+    List<Query.Itinerary> sorted = ranker.toSortedList();
+    assertArrayEquals(new int[] { 3 }, TestFlights.fids(sorted.get(0)));
+    assertArrayEquals(new int[] { 5 }, TestFlights.fids(sorted.get(1))); // fid2 -1 of a direct flight comes first
+    assertArrayEquals(new int[] { 5, 8 }, TestFlights.fids(sorted.get(2)));
+    assertArrayEquals(new int[] { 5, 9 }, TestFlights.fids(sorted.get(3)));
+  }
+
+  @Test
+  public void acceptsOnlyTimesThatCanStillMakeTheTopK()
+  {
+    ItineraryRanker ranker = new ItineraryRanker(2);
+    assertTrue(ranker.accepts(Integer.MAX_VALUE));
+    ranker.offer(direct(1, 100));
+    ranker.offer(direct(2, 200));
+    assertTrue(ranker.accepts(150));
+    assertTrue(ranker.accepts(200)); // a tie may still win on fid
+    assertFalse(ranker.accepts(201));
+
+    assertFalse(ranker.offer(direct(3, 200))); // ranks after the 200 minutes of fid 2
+    assertTrue(ranker.offer(direct(0, 150))); // evicts fid 2
+    assertTrue(ranker.accepts(150));
+    assertFalse(ranker.accepts(151));
+    assertEquals(2, ranker.size());
+  }
+
+  @Test
+  public void keepsNothingForKZero()
+  {
+    ItineraryRanker ranker = new ItineraryRanker(0);
+    assertFalse(ranker.accepts(0));
+    assertFalse(ranker.offer(direct(1, 1)));
+    assertTrue(ranker.toSortedList().isEmpty());
+  }
+}
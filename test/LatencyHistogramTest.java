@@ -0,0 +1,89 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LatencyHistogramTest
+{
+  @Test
+  public void countsSmallValuesExactly()
+  {
+    for (long v = 0; v < 256; v++) {
+      assertEquals(v, LatencyHistogram.index(v));
+      assertEquals(v, LatencyHistogram.highestValue((int) v));
+    }
+  }
+
+  @Test
+  public void bucketsLargeValuesWithinOneInAHundredAndTwentyEight()
+  {
+    Random random = new Random(1);
+    for (int i = 0; i < 100000; i++) {
+      long v = 256 + (random.nextLong() >>> (20 + random.nextInt(24)));
+      int index = LatencyHistogram.index(v);
+      long high = LatencyHistogram.highestValue(index);
+      assertTrue(v + " above its bucket", high >= v);
+      assertTrue(v + " reported as " + high, high - v <= v / 128);
+      assertTrue(v + " below its bucket", LatencyHistogram.highestValue(index - 1) < v);
+    }
+  }
+
+  @Test
+  public void ordersBucketsByValue()
+  {
+    int previous = LatencyHistogram.index(0);
+    for (long v = 1; v < 1L << 45; v += 1 + v / 300) {
+      int index = LatencyHistogram.index(v);
+      assertTrue(index >= previous);
+      assertTrue(index <= previous + 1);
+      previous = index;
+    }
+  }
+
+  @Test
+  public void reportsCountMeanMaxAndPercentiles()
+  {
+    LatencyHistogram h = new LatencyHistogram();
+    assertEquals(0, h.percentile(50));
+    for (long v = 1000; v >= 1; v--)
+      h.record(v);
+    assertEquals(1000, h.count());
+    assertEquals(500.5, h.mean(), 1e-9);
+    assertEquals(1000, h.max());
+    assertEquals(1, h.percentile(0));
+    assertTrue(h.percentile(50) >= 500 && h.percentile(50) <= 500 + 500 / 128);
+    assertTrue(h.percentile(99) >= 990 && h.percentile(99) <= 990 + 990 / 128);
+    assertEquals(1000, h.percentile(100));
+  }
+
+  @Test
+  public void addsAnotherHistogram()
+  {
+    LatencyHistogram low = new LatencyHistogram();
+    LatencyHistogram high = new LatencyHistogram();
+    for (long v = 1; v <= 100; v++) {
+      low.record(v);
+      high.record(100 + v);
+    }
+    low.add(high);
+    assertEquals(200, low.count());
+    assertEquals(100.5, low.mean(), 1e-9);
+    assertEquals(200, low.max());
+    assertEquals(100, low.percentile(50));
+    assertEquals(100, high.count());
+  }
+
+  @Test
+  public void clampsValuesOutOfRange()
+  {
+    LatencyHistogram h = new LatencyHistogram();
+    h.record(-5);
+    assertEquals(0, h.max());
+    assertEquals(0, h.percentile(100));
+    h.record(Long.MAX_VALUE);
+    assertEquals((1L << 45) - 1, h.max());
+    assertEquals((1L << 45) - 1, h.percentile(100));
+  }
+}
@@ -0,0 +1,179 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RoutePlannerTest
+{
+  private static final int DAY = 2;
+
+  private static String city(int i)
+  {
+    return "Plan City " + i;
+  }
+
+  /* a few cities and days of flights, with repeated times so that the fids break ties */
+  private static List<Query.Flight> timetable(Random random, int cities, int flights)
+  {
+    List<Query.Flight> timetable = new ArrayList<>();
+    for (int fid = 1; fid <= flights; fid++) {
+      int origin = random.nextInt(cities);
+      int dest = random.nextInt(cities - 1);
+      if (dest >= origin)
+        dest++;
+      timetable.add(TestFlights.flight(fid, DAY - 1 + random.nextInt(3), city(origin), city(dest),
+                                       10 * (1 + random.nextInt(12)), 1 + random.nextInt(500)));
+    }
+    return timetable;
+  }
+
+  /* every itinerary the planner may return, found by trying every route */
+  private static List<Query.Itinerary> bruteForce(List<Query.Flight> timetable, int maxLegs, int minConnection,
+                                                  boolean nextDay, int origin, int target)
+  {
+    List<Query.Itinerary> found = new ArrayList<>();
+    extend(found, timetable, new ArrayList<>(), maxLegs, minConnection, nextDay,
+           NameDictionary.CITIES.code(city(origin)), NameDictionary.CITIES.code(city(target)));
+    Collections.sort(found);
+    return found;
+  }
+
+  private static void extend(List<Query.Itinerary> found, List<Query.Flight> timetable, List<Query.Flight> route,
+                             int maxLegs, int minConnection, boolean nextDay, int origin, int target)
+  {
+    Query.Flight last = route.isEmpty() ? null : route.get(route.size() - 1);
+    if (last != null && last.dest == target) {
+      Query.Itinerary it = TestFlights.itinerary(route.toArray(new Query.Flight[0]));
+      it.layover = (route.size() - 1) * minConnection;
+      found.add(it);
+      return;
+    }
+    if (route.size() == maxLegs)
+      return;
+    for (Query.Flight f : timetable) {
+      if (last == null ? f.origin != origin || f.dayOfMonth != DAY : f.origin != last.dest)
+        continue;
+      if (last != null && f.dayOfMonth != last.dayOfMonth && !(nextDay && f.dayOfMonth == last.dayOfMonth + 1))
+        continue;
+      if (f.dest == origin && f.dest != target)
+        continue;
+      boolean visited = false;
+      for (Query.Flight leg : route)
+        visited |= leg.dest == f.dest;
+      if (visited)
+        continue;
+      route.add(f);
+      extend(found, timetable, route, maxLegs, minConnection, nextDay, origin, target);
+      route.remove(route.size() - 1);
+    }
+  }
+
+  private static List<String> keys(List<Query.Itinerary> itineraries)
+  {
+    List<String> keys = new ArrayList<>();
+    for (Query.Itinerary it : itineraries)
+      keys.add(it.time() + " " + Arrays.toString(TestFlights.fids(it)));
+    return keys;
+  }
+
+  private static List<Query.Itinerary> search(RoutePlanner planner, int k, int origin, int target, SearchCursor after)
+  {
+    ItineraryRanker ranker = new ItineraryRanker(k);
+    planner.search(ranker, city(origin), city(target), DAY, after);
+    return ranker.toSortedList();
+  }
+
+  @Test
+  public void findsTheSameTopKAsTryingEveryRoute()
+  {
+    Random random = new Random(1);
+    for (int round = 0; round < 60; round++) {
+      int cities = 3 + random.nextInt(5);
+      List<Query.Flight> timetable = timetable(random, cities, 10 + random.nextInt(60));
+      int maxLegs = 1 + random.nextInt(4);
+      int minConnection = random.nextBoolean() ? 0 : 5 * random.nextInt(20);
+      boolean nextDay = random.nextBoolean();
+      RoutePlanner planner = RoutePlanner.build(timetable, maxLegs, minConnection, nextDay);
+      for (int origin = 0; origin < cities; origin++) {
+        for (int target = 0; target < cities; target++) {
+          List<Query.Itinerary> all = bruteForce(timetable, maxLegs, minConnection, nextDay, origin, target);
+          for (int k : new int[] { 1, 5, 1000 })
+            assertEquals("round " + round + ", " + origin + " to " + target + ", top " + k,
+                         keys(all.subList(0, Math.min(k, all.size()))), keys(search(planner, k, origin, target, null)));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void chainsTheLegsOfEveryItinerary()
+  {
+    Random random = new Random(2);
+    List<Query.Flight> timetable = timetable(random, 6, 150);
+    RoutePlanner planner = RoutePlanner.build(timetable, 4, 30, true);
+    int checked = 0;
+    for (int origin = 0; origin < 6; origin++) {
+      for (Query.Itinerary it : search(planner, 1000, origin, (origin + 1) % 6, null)) {
+        assertEquals(DAY, it.dayOfMonth);
+        assertEquals(DAY, it.f1.dayOfMonth);
+        assertEquals(NameDictionary.CITIES.code(city(origin)), it.f1.origin);
+        assertEquals(NameDictionary.CITIES.code(city((origin + 1) % 6)), it.leg(it.legs() - 1).dest);
+        assertEquals(it.legs() > 2, it.more != null);
+        int time = 0;
+        int cost = 0;
+        for (int i = 0; i < it.legs(); i++) {
+          if (i > 0) {
+            assertEquals(it.leg(i - 1).dest, it.leg(i).origin);
+            assertTrue(it.leg(i).dayOfMonth >= it.leg(i - 1).dayOfMonth);
+          }
+          time += it.leg(i).time;
+          cost += it.leg(i).price;
+        }
+        assertEquals(time + (it.legs() - 1) * 30, it.time());
+        assertEquals(cost, it.cost);
+        checked++;
+      }
+    }
+    assertTrue(checked > 0);
+  }
+
+  @Test
+  public void pagesThroughTheItinerariesWithACursor()
+  {
+    Random random = new Random(3);
+    List<Query.Flight> timetable = timetable(random, 6, 150);
+    RoutePlanner planner = RoutePlanner.build(timetable, 4, 0, true);
+    for (int origin = 0; origin < 6; origin++) {
+      int target = (origin + 2) % 6;
+      List<Query.Itinerary> all = search(planner, 100000, origin, target, null);
+      List<Query.Itinerary> paged = new ArrayList<>();
+      SearchCursor cursor = null;
+      while (true) {
+        List<Query.Itinerary> page = search(planner, 7, origin, target, cursor);
+        if (page.isEmpty())
+          break;
+        paged.addAll(page);
+        Query.Itinerary last = page.get(page.size() - 1);
+        cursor = SearchCursor.after(city(origin), city(target), false, DAY, 7, last);
+      }
+      assertEquals(keys(all), keys(paged));
+    }
+  }
+
+  @Test
+  public void findsNothingForUnknownCitiesOrDays()
+  {
+    RoutePlanner planner = RoutePlanner.build(timetable(new Random(4), 4, 40), 3, 0, false);
+    ItineraryRanker ranker = new ItineraryRanker(10);
+    planner.search(ranker, "Plan Nowhere", city(1), DAY, null);
+    planner.search(ranker, city(0), city(1), 40, null);
+    planner.search(ranker, city(0), city(1), -1, null);
+    assertTrue(ranker.toSortedList().isEmpty());
+  }
+}
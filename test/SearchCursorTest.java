@@ -0,0 +1,88 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SearchCursorTest
+{
+  /* itineraries of one to three flights over few times and fids, so that many tie */
+  private static List<Query.Itinerary> itineraries(Random random, int n)
+  {
+    List<Query.Itinerary> all = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      Query.Flight[] legs = new Query.Flight[1 + random.nextInt(3)];
+      for (int leg = 0; leg < legs.length; leg++)
+        legs[leg] = TestFlights.flight(1 + random.nextInt(4), 1, "Cursor " + leg, "Cursor " + (leg + 1),
+                                       1 + random.nextInt(3));
+      Query.Itinerary it = TestFlights.itinerary(legs);
+      it.layover = random.nextInt(2);
+      all.add(it);
+    }
+    return all;
+  }
+
+  private static SearchCursor after(int pageSize, Query.Itinerary last)
+  {
+    return SearchCursor.after("Cursor 0", "Cursor 3", false, 1, pageSize, last);
+  }
+
+  @Test
+  public void precedesExactlyTheItinerariesThatRankAfterIt()
+  {
+    List<Query.Itinerary> all = itineraries(new Random(1), 300);
+    for (Query.Itinerary a : all) {
+      SearchCursor cursor = after(10, a);
+      for (Query.Itinerary b : all)
+        assertEquals(cursor + " and " + b.time() + " " + Arrays.toString(TestFlights.fids(b)),
+                     b.compareTo(a) > 0, cursor.precedes(b));
+    }
+  }
+
+  @Test
+  public void doesNotPrecedeItsOwnItinerary()
+  {
+    for (Query.Itinerary it : itineraries(new Random(2), 100))
+      assertFalse(after(10, it).precedes(it));
+  }
+
+  @Test
+  public void pagesThroughEveryItineraryOnce()
+  {
+    Random random = new Random(3);
+    List<Query.Itinerary> all = itineraries(random, 500);
+    // keep one of every key, as a search returns each itinerary once
+    Collections.sort(all);
+    List<Query.Itinerary> distinct = new ArrayList<>();
+    for (Query.Itinerary it : all)
+      if (distinct.isEmpty() || distinct.get(distinct.size() - 1).compareTo(it) != 0)
+        distinct.add(it);
+    Collections.shuffle(distinct, random);
+
+    int pageSize = 7;
+    List<Query.Itinerary> paged = new ArrayList<>();
+    SearchCursor cursor = null;
+    while (true) {
+      List<Query.Itinerary> page = new ArrayList<>();
+      for (Query.Itinerary it : distinct)
+        if (cursor == null || cursor.precedes(it))
+          page.add(it);
+      Collections.sort(page);
+      page = page.subList(0, Math.min(pageSize, page.size()));
+      if (page.isEmpty())
+        break;
+      paged.addAll(page);
+      Query.Itinerary last = page.get(page.size() - 1);
+      cursor = cursor == null ? after(pageSize, last) : cursor.after(last);
+    }
+
+    List<Query.Itinerary> expected = new ArrayList<>(distinct);
+    Collections.sort(expected);
+    assertEquals(expected, paged);
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * Flights and itineraries for the tests, built in memory with cities and carriers coded in
+ * {@link NameDictionary} as the stores code them.
+ */
+final class TestFlights
+{
+  private TestFlights()
+  {
+  }
+
+  static Query.Flight flight(int fid, int dayOfMonth, String origin, String dest, int time)
+  {
+    return flight(fid, dayOfMonth, origin, dest, time, 100);
+  }
+
+  static Query.Flight flight(int fid, int dayOfMonth, String origin, String dest, int time, int price)
+  {
+    Query.Flight f = new Query.Flight();
+    f.fid = fid;
+    f.dayOfMonth = dayOfMonth;
+    f.carrier = NameDictionary.CARRIERS.code("AA");
+    f.flightNum = Integer.toString(fid);
+    f.origin = NameDictionary.CITIES.code(origin);
+    f.dest = NameDictionary.CITIES.code(dest);
+    f.time = time;
+    f.capacity = 10;
+    f.price = price;
+    return f;
+  }
+
+  /**
+   * @return the itinerary of these flights, in order, with no layover
+   */
+  static Query.Itinerary itinerary(Query.Flight... legs)
+  {
+    Query.Itinerary it = new Query.Itinerary();
+    it.f1 = legs[0];
+    it.f2 = legs.length > 1 ? legs[1] : null;
+    if (legs.length > 2) {
+      it.more = new Query.Flight[legs.length - 2];
+      System.arraycopy(legs, 2, it.more, 0, it.more.length);
+    }
+    it.dayOfMonth = legs[0].dayOfMonth;
+    for (Query.Flight f : legs)
+      it.cost += f.price;
+    return it;
+  }
+
+  /**
+   * @return the fids of the flights of the itinerary, in order
+   */
+  static int[] fids(Query.Itinerary it)
+  {
+    int[] fids = new int[it.legs()];
+    for (int i = 0; i < fids.length; i++)
+      fids[i] = it.leg(i).fid;
+    return fids;
+  }
+}
@@ -0,0 +1,50 @@
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransactionRollbackException;
+
+import org.junit.Test;
+
+public class TransactionRunnerTest
+{
+  @Test
+  public void retriesTheSqlServerConcurrencyErrors()
+  {
+    assertTrue(TransactionRunner.isRetryable(new SQLException("deadlock victim", "S0001", 1205)));
+    assertTrue(TransactionRunner.isRetryable(new SQLException("lock request time out", "S0001", 1222)));
+    assertTrue(TransactionRunner.isRetryable(new SQLException("snapshot update conflict", "S0001", 3960)));
+  }
+
+  @Test
+  public void retriesTransactionRollbackStates()
+  {
+    assertTrue(TransactionRunner.isRetryable(new SQLException("serialization failure", "40001")));
+    assertTrue(TransactionRunner.isRetryable(new SQLException("deadlock detected", "40P01")));
+    assertTrue(TransactionRunner.isRetryable(new SQLTransactionRollbackException("rolled back")));
+    assertTrue(TransactionRunner.isRetryable(new SQLTimeoutException("timed out")));
+  }
+
+  @Test
+  public void findsARetryableErrorAnywhereInTheChain()
+  {
+    SQLException first = new SQLException("statement aborted", "HY000", 3621);
+    first.setNextException(new SQLException("deadlock victim", "S0001", 1205));
+    assertTrue(TransactionRunner.isRetryable(first));
+  }
+
+  @Test
+  public void doesNotRetryOtherFailures()
+  {
+    assertFalse(TransactionRunner.isRetryable(new SQLException("duplicate key", "23000", 2627)));
+    assertFalse(TransactionRunner.isRetryable(new SQLIntegrityConstraintViolationException("foreign key", "23000", 547)));
+    assertFalse(TransactionRunner.isRetryable(new SQLException("invalid object name", "S0002", 208)));
+    assertFalse(TransactionRunner.isRetryable(new SQLException("no state, no code")));
+
+    SQLException chained = new SQLException("duplicate key", "23000", 2627);
+    chained.setNextException(new SQLException("statement terminated", "01000", 3621));
+    assertFalse(TransactionRunner.isRetryable(chained));
+  }
+}